@@ -0,0 +1,134 @@
+package uk.ac.westminster.ds.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.BalanceRequest;
+import uk.ac.westminster.ds.ewallet.grpc.BatchRequest;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.MultiBalanceRequest;
+import uk.ac.westminster.ds.ewallet.grpc.Operation;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.store.ZipfianKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code size} deposits (or balance reads) sent as {@code size} separate RPCs against one
+ * {@code batchApply} (or {@code multiGetBalance}) to the leader of an in-process replica group.
+ * Each invocation does the same work either way, so the scores compare directly: a batch takes
+ * one lock acquisition, one log entry and one quorum wait where the loop takes {@code size}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    @Param({"3"})
+    public int replicas;
+
+    @Param({"1000"})
+    public int accounts;
+
+    @Param({"1", "16", "64"})
+    public int size;
+
+    InProcessReplicaGroup group;
+    String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        group = new InProcessReplicaGroup(replicas);
+        WalletServiceGrpc.WalletServiceBlockingStub leader = group.leader();
+
+        ids = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            ids[i] = "acct-" + i;
+            leader.createAccount(CreateAccountRequest.newBuilder().setAccountId(ids[i]).build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        group.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final int SIZE = 1 << 16;
+
+        WalletServiceGrpc.WalletServiceBlockingStub stub;
+        int[] sequence;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(BatchBenchmark b) {
+            stub = b.group.leader();
+            sequence = new ZipfianKeys(b.accounts, 0).sequence(new SplittableRandom(Thread.currentThread().threadId()), SIZE);
+        }
+
+        List<String> nextIds(BatchBenchmark b) {
+            List<String> out = new ArrayList<>(b.size);
+            for (int i = 0; i < b.size; i++) {
+                out.add(b.ids[sequence[next++ & (SIZE - 1)]]);
+            }
+            return out;
+        }
+    }
+
+    @Benchmark
+    public int depositLoop(Client c) {
+        int ok = 0;
+        for (String id : c.nextIds(this)) {
+            if (c.stub.deposit(deposit(id)).getOk()) ok++;
+        }
+        return ok;
+    }
+
+    @Benchmark
+    public boolean depositBatch(Client c) {
+        BatchRequest.Builder batch = BatchRequest.newBuilder();
+        for (String id : c.nextIds(this)) {
+            batch.addOperations(Operation.newBuilder().setDeposit(deposit(id)));
+        }
+        return c.stub.batchApply(batch.build()).getOk();
+    }
+
+    @Benchmark
+    public double balanceLoop(Client c) {
+        double total = 0;
+        for (String id : c.nextIds(this)) {
+            total += c.stub.getBalance(BalanceRequest.newBuilder().setAccountId(id).build()).getBalance();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int balanceBatch(Client c) {
+        return c.stub.multiGetBalance(MultiBalanceRequest.newBuilder().addAllAccountIds(c.nextIds(this)).build())
+                .getBalancesCount();
+    }
+
+    private static AmountRequest deposit(String id) {
+        return AmountRequest.newBuilder().setAccountId(id).setAmount(1).build();
+    }
+}
@@ -0,0 +1,117 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.util.TransmitStatusRuntimeExceptionInterceptor;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.store.AccountStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * One partition's replica group wired up as {@link WalletServer} does, but over in-process gRPC
+ * and without ZooKeeper or etcd: the first replica is the leader and streams its log to the
+ * others. Write-ahead logs go to a temporary directory and are not fsynced.
+ */
+final class InProcessReplicaGroup implements AutoCloseable {
+
+    private static final int FIRST_PORT = 40_000;
+
+    private final Path dataDir;
+    private final List<Server> servers = new ArrayList<>();
+    private final List<QuorumReplicator> replicators = new ArrayList<>();
+    private final List<WriteBatcher> batchers = new ArrayList<>();
+    private final List<TransactionCoordinator> coordinators = new ArrayList<>();
+    private final List<StorePersistence> persistences = new ArrayList<>();
+    private final ReplicationChannels channels;
+    private final ManagedChannel clientChannel;
+
+    InProcessReplicaGroup(int replicas) throws IOException {
+        dataDir = Files.createTempDirectory("ewallet-bench");
+        channels = new ReplicationChannels(port -> InProcessChannelBuilder.forName(name(port)).build());
+
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < replicas; i++) {
+            ports.add(FIRST_PORT + i);
+        }
+        PartitionMap map = PartitionMap.initial(List.of(ports));
+
+        for (int port : ports) {
+            AccountStore store = new AccountStore();
+            AtomicBoolean isLeader = new AtomicBoolean(port == FIRST_PORT);
+            ReplicationLog log = new ReplicationLog(100_000);
+            IdempotencyCache dedup = new IdempotencyCache(100_000, 600_000);
+            LogApplier applier = new LogApplier(store, dedup);
+            StorePersistence persistence = StorePersistence.open(dataDir.resolve("r" + port),
+                    store, dedup, log, applier, 1, false, true, 1_000_000);
+            persistences.add(persistence);
+
+            QuorumReplicator replicator = new QuorumReplicator(channels, log, persistence, port, ports,
+                    QuorumReplicator.majority(replicas), 2000, 512, 8192);
+            replicators.add(replicator);
+            PartitionOwnership ownership = new PartitionOwnership(0, map);
+
+            TransactionCoordinator transactions = new TransactionCoordinator(store, log, persistence, replicator,
+                    ownership, channels, new NameServiceClient("http://localhost:2379"), "WalletService",
+                    isLeader, 60_000);
+            coordinators.add(transactions);
+            WriteBatcher writes = new WriteBatcher(store, ownership, log, persistence, replicator, 200, 256);
+            writes.start();
+            batchers.add(writes);
+
+            ReplicationServiceImpl replication = new ReplicationServiceImpl(store, log, applier, persistence, 1000);
+            servers.add(InProcessServerBuilder.forName(name(port))
+                    .addService(ServerInterceptors.intercept(
+                            new WalletServiceImpl(store, isLeader, () -> null, replication::lag, ownership,
+                                    log, replicator, persistence, transactions, dedup, writes),
+                            TransmitStatusRuntimeExceptionInterceptor.instance()))
+                    .addService(replication)
+                    .build()
+                    .start());
+        }
+
+        replicators.get(0).start(1);
+        clientChannel = InProcessChannelBuilder.forName(name(FIRST_PORT)).build();
+    }
+
+    private static String name(int port) {
+        return "ewallet-bench-" + port;
+    }
+
+    WalletServiceGrpc.WalletServiceBlockingStub leader() {
+        return WalletServiceGrpc.newBlockingStub(clientChannel);
+    }
+
+    @Override
+    public void close() throws Exception {
+        clientChannel.shutdownNow();
+        replicators.forEach(QuorumReplicator::stop);
+        batchers.forEach(WriteBatcher::close);
+        coordinators.forEach(TransactionCoordinator::close);
+        channels.close();
+        for (Server s : servers) {
+            s.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (StorePersistence p : persistences) {
+            p.close();
+        }
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package uk.ac.westminster.ds.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.TransferRequest;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.store.ZipfianKeys;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link WalletServiceImpl} calls against the leader of an in-process replica group:
+ * each write is group-committed, logged, and acknowledged once a quorum of replicas has it.
+ * {@code replicas = 1} measures the leader alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class WalletServiceBenchmark {
+
+    @Param({"1", "3"})
+    public int replicas;
+
+    @Param({"1000"})
+    public int accounts;
+
+    @Param({"0", "0.99"})
+    public double theta;
+
+    InProcessReplicaGroup group;
+    String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        group = new InProcessReplicaGroup(replicas);
+        WalletServiceGrpc.WalletServiceBlockingStub leader = group.leader();
+
+        ids = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            ids[i] = "acct-" + i;
+            leader.createAccount(CreateAccountRequest.newBuilder().setAccountId(ids[i]).build());
+            leader.deposit(AmountRequest.newBuilder().setAccountId(ids[i]).setAmount(1_000_000).build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        group.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final int SIZE = 1 << 16;
+
+        WalletServiceGrpc.WalletServiceBlockingStub stub;
+        int[] sequence;
+        int next;
+        String txPrefix;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void setUp(WalletServiceBenchmark b) {
+            long thread = Thread.currentThread().threadId();
+            stub = b.group.leader();
+            sequence = new ZipfianKeys(b.accounts, b.theta).sequence(new SplittableRandom(thread), SIZE);
+            txPrefix = "1-" + thread + "-";
+        }
+
+        String nextId(String[] ids) {
+            return ids[sequence[next++ & (SIZE - 1)]];
+        }
+    }
+
+    @Benchmark
+    public boolean deposit(Client c) {
+        return c.stub.deposit(AmountRequest.newBuilder()
+                .setAccountId(c.nextId(ids))
+                .setAmount(1)
+                .build()).getOk();
+    }
+
+    @Benchmark
+    public boolean transfer(Client c) {
+        return c.stub.transfer(TransferRequest.newBuilder()
+                .setFromAccount(c.nextId(ids))
+                .setToAccount(c.nextId(ids))
+                .setAmount(1)
+                .build()).getOk();
+    }
+
+    /** The participant side of a cross-partition transfer: a replicated prepare, then a replicated commit. */
+    @Benchmark
+    public boolean prepareAndCommit(Client c) {
+        TransferRequest request = TransferRequest.newBuilder()
+                .setTxId(c.txPrefix + c.counter++)
+                .setCoordinatorPartition(1)
+                .setFromAccount("remote")
+                .setToAccount(c.nextId(ids))
+                .setAmount(1)
+                .build();
+        return c.stub.prepareTransfer(request).getOk() && c.stub.commitTransfer(request).getOk();
+    }
+}
@@ -0,0 +1,148 @@
+package uk.ac.westminster.ds.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-threaded {@link AccountStore} operations on both engines, at 1, 2, 4 and 8 threads
+ * (the nested {@code Threads*} classes) to show how the striped locks scale. Contention is set
+ * by {@code theta}: 0 spreads operations uniformly, 0.99 concentrates them Zipf-style on a few
+ * accounts. The {@code single-lock} engine is the map engine with every operation behind one
+ * global lock, the baseline the stripes are measured against.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AccountStoreBenchmark {
+
+    static final long OPENING_BALANCE = 1L << 40;
+
+    @Threads(1)
+    public static class Threads1 extends AccountStoreBenchmark { }
+
+    @Threads(2)
+    public static class Threads2 extends AccountStoreBenchmark { }
+
+    @Threads(4)
+    public static class Threads4 extends AccountStoreBenchmark { }
+
+    @Threads(8)
+    public static class Threads8 extends AccountStoreBenchmark { }
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"1000", "100000"})
+        public int accounts;
+
+        @Param({"0", "0.99"})
+        public double theta;
+
+        @Param({"map", "primitive", "single-lock"})
+        public String engine;
+
+        AccountStore store;
+        String[] ids;
+        ReentrantLock global; // only for single-lock
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            store = new AccountStore(engine.equals("primitive")
+                    ? new OpenAddressingBalanceTable(accounts)
+                    : new HashMapBalanceTable());
+            if (engine.equals("single-lock")) global = new ReentrantLock();
+            ids = new String[accounts];
+            for (int i = 0; i < accounts; i++) {
+                ids[i] = "acct-" + i;
+                store.importAccountMinor(ids[i], OPENING_BALANCE);
+            }
+        }
+
+        void enter() {
+            if (global != null) global.lock();
+        }
+
+        void exit() {
+            if (global != null) global.unlock();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final int SIZE = 1 << 16;
+
+        int[] sequence;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Store s) {
+            sequence = new ZipfianKeys(s.accounts, s.theta)
+                    .sequence(new SplittableRandom(Thread.currentThread().threadId()), SIZE);
+        }
+
+        String nextId(String[] ids) {
+            return ids[sequence[next++ & (SIZE - 1)]];
+        }
+    }
+
+    @Benchmark
+    public boolean deposit(Store s, Keys keys) {
+        String id = keys.nextId(s.ids);
+        s.enter();
+        try {
+            return s.store.depositMinor(id, 1);
+        } finally {
+            s.exit();
+        }
+    }
+
+    @Benchmark
+    public boolean withdraw(Store s, Keys keys) {
+        String id = keys.nextId(s.ids);
+        s.enter();
+        try {
+            return s.store.withdrawMinor(id, 1);
+        } finally {
+            s.exit();
+        }
+    }
+
+    @Benchmark
+    public boolean transfer(Store s, Keys keys) {
+        String from = keys.nextId(s.ids);
+        String to = keys.nextId(s.ids);
+        s.enter();
+        try {
+            return s.store.transferMinor(from, to, 1);
+        } finally {
+            s.exit();
+        }
+    }
+
+    @Benchmark
+    public long getBalance(Store s, Keys keys) {
+        String id = keys.nextId(s.ids);
+        s.enter();
+        try {
+            return s.store.getBalanceMinor(id);
+        } finally {
+            s.exit();
+        }
+    }
+}
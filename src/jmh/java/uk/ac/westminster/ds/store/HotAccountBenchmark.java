@@ -0,0 +1,93 @@
+package uk.ac.westminster.ds.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deposits on a skewed workload: a share {@code hotShare} of the operations credit account 0
+ * (a merchant account) and the rest pick an account from a Zipfian distribution. Compares a
+ * plain store with one that treats account 0 as a hot account.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class HotAccountBenchmark {
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"0", "0.9"})
+    public double hotShare;
+
+    @Param({"false", "true"})
+    public boolean hotMode;
+
+    AccountStore store;
+    String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ids = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            ids[i] = "acct-" + i;
+        }
+        store = new AccountStore(new HashMapBalanceTable(), hotMode ? Set.of(ids[0]) : Set.of());
+        for (String id : ids) {
+            store.createAccount(id);
+        }
+    }
+
+    /** A pre-drawn sequence of account indexes per thread, so the benchmark does not time the sampling. */
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final int SIZE = 1 << 16;
+
+        int[] sequence;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(HotAccountBenchmark b) {
+            ZipfianKeys zipf = new ZipfianKeys(b.accounts, 0.99);
+            SplittableRandom rnd = new SplittableRandom(Thread.currentThread().threadId());
+            sequence = new int[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                sequence[i] = rnd.nextDouble() < b.hotShare ? 0 : zipf.next(rnd);
+            }
+        }
+
+        String nextId(String[] ids) {
+            return ids[sequence[next++ & (SIZE - 1)]];
+        }
+    }
+
+    @Benchmark
+    public boolean deposit(Keys keys) {
+        return store.depositMinor(keys.nextId(ids), 1);
+    }
+
+    /** Mostly deposits, with every 64th operation a withdrawal that has to see every credit. */
+    @Benchmark
+    public boolean depositMostly(Keys keys) {
+        String id = keys.nextId(ids);
+        return (keys.next & 63) == 0 ? store.withdrawMinor(id, 1) : store.depositMinor(id, 1);
+    }
+}
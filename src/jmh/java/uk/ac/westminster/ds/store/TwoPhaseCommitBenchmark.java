@@ -0,0 +1,92 @@
+package uk.ac.westminster.ds.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both sides of a cross-partition transfer in {@link AccountStore}: the coordinator reserves,
+ * commits and forgets a debit; the participant prepares and commits a credit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class TwoPhaseCommitBenchmark {
+
+    @Param({"1000"})
+    public int accounts;
+
+    @Param({"0", "0.99"})
+    public double theta;
+
+    AccountStore store;
+    String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new AccountStore();
+        ids = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            ids[i] = "acct-" + i;
+            store.importAccountMinor(ids[i], AccountStoreBenchmark.OPENING_BALANCE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Transactions {
+        private static final int SIZE = 1 << 16;
+
+        int[] sequence;
+        int next;
+        String prefix;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void setUp(TwoPhaseCommitBenchmark b) {
+            long thread = Thread.currentThread().threadId();
+            sequence = new ZipfianKeys(b.accounts, b.theta).sequence(new SplittableRandom(thread), SIZE);
+            prefix = "0-" + thread + "-";
+        }
+
+        String nextId(String[] ids) {
+            return ids[sequence[next++ & (SIZE - 1)]];
+        }
+
+        String nextTxId() {
+            return prefix + counter++;
+        }
+    }
+
+    @Benchmark
+    public boolean debitSide(Transactions tx) {
+        String txId = tx.nextTxId();
+        AccountStore.TxHold hold = new AccountStore.TxHold(tx.nextId(ids), 1, true, 1, "peer");
+        boolean ok = store.prepareTx(txId, hold) && store.commitTx(txId);
+        store.forgetTx(txId);
+        return ok;
+    }
+
+    @Benchmark
+    public boolean creditSide(Transactions tx) {
+        String txId = tx.nextTxId();
+        AccountStore.TxHold hold = new AccountStore.TxHold(tx.nextId(ids), 1, false, 1, "peer");
+        return store.prepareTx(txId, hold) && store.commitTx(txId);
+    }
+}
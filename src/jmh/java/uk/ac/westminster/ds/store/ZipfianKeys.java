@@ -0,0 +1,39 @@
+package uk.ac.westminster.ds.store;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Draws indexes {@code 0..n-1} with probability proportional to {@code 1 / (i + 1)^theta}:
+ * {@code theta = 0} is uniform, and contention on the lowest indexes grows with {@code theta}.
+ */
+public final class ZipfianKeys {
+
+    private final double[] cdf;
+
+    public ZipfianKeys(int n, double theta) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, theta);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    public int next(SplittableRandom rnd) {
+        int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+    }
+
+    /** Pre-draws {@code size} indexes (a power of two), so benchmarks do not time the sampling. */
+    public int[] sequence(SplittableRandom rnd, int size) {
+        int[] out = new int[size];
+        for (int i = 0; i < size; i++) {
+            out[i] = next(rnd);
+        }
+        return out;
+    }
+}
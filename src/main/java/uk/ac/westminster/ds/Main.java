@@ -1,7 +1,20 @@
 package uk.ac.westminster.ds;
 
+import uk.ac.westminster.ds.client.LoadGenerator;
+import uk.ac.westminster.ds.client.PartitionAdmin;
 import uk.ac.westminster.ds.client.WalletClient;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.BalanceResponse;
+import uk.ac.westminster.ds.ewallet.grpc.BatchResponse;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.Operation;
+import uk.ac.westminster.ds.ewallet.grpc.ReadConsistency;
+import uk.ac.westminster.ds.ewallet.grpc.TransferRequest;
 import uk.ac.westminster.ds.server.WalletServer;
+import uk.ac.westminster.ds.tracing.Tracing;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
 
@@ -27,6 +40,8 @@ public class Main {
         }
 
         if (args[0].equalsIgnoreCase("client")) {
+            Tracing.configureFromProperties("client");
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracing::close));
             WalletClient client = new WalletClient();
 
             // Default: demo on alice
@@ -48,7 +63,67 @@ public class Main {
                 String to = args[3].trim();
                 double amount = Double.parseDouble(args[4]);
 
-                client.transfer(from, to, amount);
+                System.out.println(client.transfer(from, to, amount).getMessage());
+                client.close();
+                return;
+            }
+
+            // Load mode: client load [--concurrency <n> | --rate <ops/s>] [--duration <s>] ...
+            if (args[1].equalsIgnoreCase("load")) {
+                LoadGenerator load = LoadGenerator.fromArgs(client, args, 2);
+                if (load != null) load.run();
+                client.close();
+                return;
+            }
+
+            // Read mode: client balance <accountId> [leader|any|bounded <maxLag>]
+            if (args.length >= 2 && args[1].equalsIgnoreCase("balance")) {
+                if (args.length < 3) {
+                    System.out.println("Usage: client balance <accountId> [leader|any|bounded <maxLag>]");
+                    client.close();
+                    return;
+                }
+
+                String mode = args.length > 3 ? args[3] : "leader";
+                ReadConsistency consistency = ReadConsistency.valueOf(mode.toUpperCase());
+                long maxLag = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+                BalanceResponse r = client.getBalance(args[2].trim(), consistency, maxLag);
+                System.out.println(r.getFound() ? "Balance = " + r.getBalance() : r.getMessage());
+                client.close();
+                return;
+            }
+
+            // Batch mode: client batch [--atomic] <op> [<op> ...]
+            if (args[1].equalsIgnoreCase("batch")) {
+                boolean atomic = args.length > 2 && args[2].equalsIgnoreCase("--atomic");
+                List<Operation> ops = new ArrayList<>();
+                for (int i = atomic ? 3 : 2; i < args.length; i++) {
+                    ops.add(parseOperation(args[i]));
+                }
+                if (ops.isEmpty() || ops.contains(null)) {
+                    System.out.println(BATCH_USAGE);
+                    client.close();
+                    return;
+                }
+
+                BatchResponse r = client.batchApply(ops, atomic);
+                for (int i = 0; i < ops.size(); i++) {
+                    System.out.println(args[i + (atomic ? 3 : 2)] + ": " + r.getResults(i).getMessage());
+                }
+                System.out.println(r.getMessage());
+                client.close();
+                return;
+            }
+
+            // Multi-read mode: client balances <accountId> [<accountId> ...]
+            if (args[1].equalsIgnoreCase("balances")) {
+                List<String> ids = List.of(args).subList(2, args.length);
+                List<BalanceResponse> balances = client.multiGetBalance(ids, ReadConsistency.LEADER, 0);
+                for (int i = 0; i < ids.size(); i++) {
+                    BalanceResponse r = balances.get(i);
+                    System.out.println(ids.get(i) + ": " + (r.getFound() ? r.getBalance() : r.getMessage()));
+                }
                 client.close();
                 return;
             }
@@ -60,14 +135,71 @@ public class Main {
             return;
         }
 
+        if (args[0].equalsIgnoreCase("partitions")) {
+            try (PartitionAdmin admin = new PartitionAdmin(WalletServer.NAME_SERVICE_ADDRESS, WalletServer.SERVICE_NAME)) {
+                // Add mode: partitions add <partitionId> <port,port,port>
+                if (args.length == 4 && args[1].equalsIgnoreCase("add")) {
+                    List<Integer> ports = new ArrayList<>();
+                    for (String port : args[3].split(",")) {
+                        ports.add(Integer.parseInt(port.trim()));
+                    }
+                    admin.addPartition(Integer.parseInt(args[2]), ports);
+                }
+
+                // Move mode: partitions move <bucket> <partitionId>
+                if (args.length == 4 && args[1].equalsIgnoreCase("move")) {
+                    System.out.println(admin.move(Integer.parseInt(args[2]), Integer.parseInt(args[3])).getMessage());
+                }
+
+                // Rebalance mode: partitions rebalance
+                if (args.length == 2 && args[1].equalsIgnoreCase("rebalance")) {
+                    System.out.println(admin.rebalance() + " buckets moved");
+                }
+
+                System.out.println(admin.map());
+            }
+            return;
+        }
+
         System.out.println("Unknown mode: " + args[0]);
         printUsage();
     }
 
+    private static final String BATCH_USAGE = "Usage: client batch [--atomic] <op> [<op> ...]"
+            + " where op is create:<account>, deposit:<account>:<amount>, withdraw:<account>:<amount>"
+            + " or transfer:<from>:<to>:<amount>";
+
+    /** Parses one {@code client batch} operation, or returns null if it is malformed. */
+    private static Operation parseOperation(String spec) {
+        String[] f = spec.split(":");
+        try {
+            return switch (f[0].toLowerCase()) {
+                case "create" -> f.length != 2 ? null : Operation.newBuilder()
+                        .setCreateAccount(CreateAccountRequest.newBuilder().setAccountId(f[1])).build();
+                case "deposit" -> f.length != 3 ? null : Operation.newBuilder()
+                        .setDeposit(AmountRequest.newBuilder().setAccountId(f[1]).setAmount(Double.parseDouble(f[2]))).build();
+                case "withdraw" -> f.length != 3 ? null : Operation.newBuilder()
+                        .setWithdraw(AmountRequest.newBuilder().setAccountId(f[1]).setAmount(Double.parseDouble(f[2]))).build();
+                case "transfer" -> f.length != 4 ? null : Operation.newBuilder()
+                        .setTransfer(TransferRequest.newBuilder().setFromAccount(f[1]).setToAccount(f[2])
+                                .setAmount(Double.parseDouble(f[3]))).build();
+                default -> null;
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     private static void printUsage() {
         System.out.println("Usage:");
         System.out.println("  server <port> <replicaId> <partitionId>");
         System.out.println("  client [accountId]");
         System.out.println("  client transfer <fromAccount> <toAccount> <amount>");
+        System.out.println("  client balance <accountId> [leader|any|bounded <maxLag>]");
+        System.out.println("  client balances <accountId> [<accountId> ...]");
+        System.out.println("  client batch [--atomic] <op> [<op> ...]   (op: create:<a> | deposit:<a>:<amt> | withdraw:<a>:<amt> | transfer:<from>:<to>:<amt>)");
+        System.out.println("  client load [--concurrency <n> | --rate <ops/s>] [--duration <s>] [--warmup <s>]");
+        System.out.println("              [--accounts <n>] [--mix create=5,deposit=30,withdraw=20,transfer=30,xtransfer=15]");
+        System.out.println("  partitions [add <partitionId> <port,port,port> | move <bucket> <partitionId> | rebalance]");
     }
 }
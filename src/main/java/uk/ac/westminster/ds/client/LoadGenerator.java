@@ -0,0 +1,425 @@
+package uk.ac.westminster.ds.client;
+
+import io.grpc.StatusRuntimeException;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of wallet operations through a {@link WalletClient} and reports throughput and
+ * latency percentiles per operation type.
+ * <p>
+ * Closed loop ({@code --concurrency}): a fixed number of virtual threads each send the next
+ * operation as soon as the previous one returns, so the offered load adapts to the servers.
+ * Open loop ({@code --rate}): operations start on a fixed schedule whether or not earlier ones
+ * have finished, and latency is measured from the scheduled start, so a stalled server shows up
+ * as queueing delay rather than as a gap in the samples.
+ * <p>
+ * Every run works on its own pool of accounts, created and funded before the clock starts.
+ * Same-partition transfers pick both accounts from one partition's share of the pool and
+ * cross-partition transfers pick them from different partitions, so the latter always take the
+ * two-phase commit path.
+ */
+public final class LoadGenerator {
+
+    enum Op {
+        CREATE, DEPOSIT, WITHDRAW, TRANSFER, XTRANSFER;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final String USAGE = "Usage: client load [--concurrency <n> | --rate <ops/s>] [--duration <s>]"
+            + " [--warmup <s>] [--accounts <n>] [--mix create=5,deposit=30,withdraw=20,transfer=30,xtransfer=15]";
+
+    private static final long REPORT_INTERVAL_MS = 5_000;
+    private static final double OPENING_BALANCE = 1_000_000;
+    private static final int MAX_AMOUNT = 10;
+    // Open loop: scheduled operations beyond this many outstanding are counted as dropped
+    private static final int MAX_IN_FLIGHT = 10_000;
+
+    private final WalletClient client;
+    private final int concurrency;
+    private final int rate;
+    private final long durationMs;
+    private final long warmupMs;
+    private final int accounts;
+    private final EnumMap<Op, Integer> mix;
+
+    private final String runTag = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicLong nextCreated = new AtomicLong();
+    private final EnumMap<Op, OpStats> stats = new EnumMap<>(Op.class);
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private List<String> pool;
+    private List<List<String>> byPartition; // only partitions that got at least one pool account
+    private Map<String, Integer> partitionIndex;
+    private Op[] schedule; // one slot per unit of weight
+
+    /** Latency of one operation type, in microseconds. */
+    private static final class OpStats {
+        final Recorder recorder = new Recorder(3);
+        final Histogram total = new Histogram(3);
+        final LongAdder ok = new LongAdder();
+        final LongAdder failed = new LongAdder(); // answered, but not applied (e.g. insufficient funds)
+        final LongAdder errors = new LongAdder(); // the RPC itself failed
+        Histogram interval; // recycled through the recorder once it has handed one out
+
+        void record(long startNanos, boolean applied) {
+            recorder.recordValue(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+            (applied ? ok : failed).increment();
+        }
+
+        void reset() {
+            recorder.reset();
+            total.reset();
+            ok.reset();
+            failed.reset();
+            errors.reset();
+        }
+
+        /** Moves what was recorded since the last call into {@link #interval} and {@link #total}. */
+        void roll() {
+            interval = interval == null ? recorder.getIntervalHistogram() : recorder.getIntervalHistogram(interval);
+            total.add(interval);
+        }
+    }
+
+    private LoadGenerator(WalletClient client, int concurrency, int rate, long durationMs, long warmupMs,
+                          int accounts, EnumMap<Op, Integer> mix) {
+        this.client = client;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.durationMs = durationMs;
+        this.warmupMs = warmupMs;
+        this.accounts = accounts;
+        this.mix = mix;
+        for (Op op : Op.values()) {
+            stats.put(op, new OpStats());
+        }
+    }
+
+    /**
+     * Parses the {@code client load} options starting at {@code args[from]}.
+     *
+     * @return null (after printing the usage) if the options are malformed
+     */
+    public static LoadGenerator fromArgs(WalletClient client, String[] args, int from) {
+        int concurrency = 0;
+        int rate = 0;
+        long durationMs = 30_000;
+        long warmupMs = 5_000;
+        int accounts = 1000;
+        EnumMap<Op, Integer> mix = parseMix("create=5,deposit=30,withdraw=20,transfer=30,xtransfer=15");
+
+        try {
+            for (int i = from; i < args.length; i += 2) {
+                if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + args[i]);
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--concurrency" -> concurrency = Integer.parseInt(value);
+                    case "--rate" -> rate = Integer.parseInt(value);
+                    case "--duration" -> durationMs = Long.parseLong(value) * 1000;
+                    case "--warmup" -> warmupMs = Long.parseLong(value) * 1000;
+                    case "--accounts" -> accounts = Integer.parseInt(value);
+                    case "--mix" -> mix = parseMix(value);
+                    default -> throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (concurrency > 0 && rate > 0) throw new IllegalArgumentException("give --concurrency or --rate, not both");
+            if (concurrency < 0 || rate < 0 || durationMs <= 0 || warmupMs < 0 || accounts < 2) {
+                throw new IllegalArgumentException("values out of range");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid load options: " + e.getMessage());
+            System.out.println(USAGE);
+            return null;
+        }
+
+        if (concurrency == 0 && rate == 0) concurrency = 16;
+        return new LoadGenerator(client, concurrency, rate, durationMs, warmupMs, accounts, mix);
+    }
+
+    private static EnumMap<Op, Integer> parseMix(String spec) {
+        EnumMap<Op, Integer> mix = new EnumMap<>(Op.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (kv.length != 2) throw new IllegalArgumentException("bad mix entry '" + part + "'");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) throw new IllegalArgumentException("negative weight for " + kv[0]);
+            mix.put(Op.valueOf(kv[0].trim().toUpperCase()), weight);
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("mix has no operations");
+        }
+        return mix;
+    }
+
+    public void run() throws Exception {
+        prepare();
+
+        System.out.printf("Running %s for %ds after %ds warmup: %s%n",
+                rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop with " + concurrency + " clients",
+                durationMs / 1000, warmupMs / 1000, mix);
+
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmupMs;
+        long end = measureFrom + durationMs;
+
+        Thread reporter = Thread.ofPlatform().daemon().name("load-reporter").start(() -> report(measureFrom, end));
+        if (rate > 0) {
+            openLoop(end);
+        } else {
+            closedLoop(end);
+        }
+        long elapsedMs = System.currentTimeMillis() - measureFrom;
+        reporter.interrupt();
+        reporter.join();
+
+        summary(elapsedMs);
+    }
+
+    /* ---------------- Setup ---------------- */
+
+    private void prepare() throws Exception {
+        System.out.println("Creating and funding " + accounts + " accounts ...");
+        List<String> ids = new ArrayList<>(accounts);
+        for (int i = 0; i < accounts; i++) {
+            ids.add("load-" + runTag + "-" + i);
+        }
+
+        AtomicInteger setupErrors = new AtomicInteger();
+        try (ExecutorService setup = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String id : ids) {
+                setup.submit(() -> {
+                    try {
+                        client.createAccount(id);
+                        client.deposit(id, OPENING_BALANCE);
+                    } catch (Exception e) {
+                        if (setupErrors.getAndIncrement() == 0) {
+                            System.err.println("Setup of " + id + " failed: " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        }
+        if (setupErrors.get() > 0) {
+            throw new IllegalStateException(setupErrors.get() + " accounts could not be set up");
+        }
+
+        Map<Integer, List<String>> grouped = new TreeMap<>();
+        for (String id : ids) {
+            grouped.computeIfAbsent(client.partitionOf(id), p -> new ArrayList<>()).add(id);
+        }
+        pool = ids;
+        byPartition = new ArrayList<>(grouped.values());
+        partitionIndex = new HashMap<>();
+        for (int i = 0; i < byPartition.size(); i++) {
+            for (String id : byPartition.get(i)) {
+                partitionIndex.put(id, i);
+            }
+        }
+
+        if (byPartition.size() < 2 && mix.getOrDefault(Op.XTRANSFER, 0) > 0) {
+            System.out.println("Only one partition holds accounts, so cross-partition transfers are left out of the mix");
+            mix.put(Op.XTRANSFER, 0);
+            if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+                throw new IllegalStateException("nothing left in the mix");
+            }
+        }
+
+        List<Op> slots = new ArrayList<>();
+        mix.forEach((op, weight) -> {
+            for (int i = 0; i < weight; i++) slots.add(op);
+        });
+        schedule = slots.toArray(new Op[0]);
+    }
+
+    /* ---------------- Drivers ---------------- */
+
+    private void closedLoop(long end) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            clients.add(Thread.ofVirtual().name("load-" + i).start(() -> {
+                while (System.currentTimeMillis() < end) {
+                    execute(System.nanoTime());
+                }
+            }));
+        }
+        for (Thread t : clients) {
+            t.join();
+        }
+    }
+
+    private void openLoop(long end) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        AtomicInteger inFlight = new AtomicInteger();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long first = System.nanoTime();
+            long endNanos = first + TimeUnit.MILLISECONDS.toNanos(end - System.currentTimeMillis());
+            for (long i = 0; ; i++) {
+                long scheduled = first + i * intervalNanos;
+                if (scheduled >= endNanos) break;
+
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+
+                if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+                    inFlight.decrementAndGet();
+                    dropped.increment();
+                    continue;
+                }
+                executor.submit(() -> {
+                    try {
+                        execute(scheduled);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    /** Runs one operation drawn from the mix and records its latency from {@code startNanos}. */
+    private void execute(long startNanos) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        Op op = schedule[rnd.nextInt(schedule.length)];
+        OpStats s = stats.get(op);
+        try {
+            boolean applied = switch (op) {
+                case CREATE -> client.createAccount("load-" + runTag + "-n" + nextCreated.incrementAndGet()).getCreated();
+                case DEPOSIT -> client.deposit(pick(rnd), amount(rnd)).getOk();
+                case WITHDRAW -> client.withdraw(pick(rnd), amount(rnd)).getOk();
+                case TRANSFER -> {
+                    List<String> group = byPartition.get(rnd.nextInt(byPartition.size()));
+                    String from = group.get(rnd.nextInt(group.size()));
+                    String to = group.size() > 1 ? other(group, from, rnd) : pick(rnd);
+                    yield client.transfer(from, to, amount(rnd)).getOk();
+                }
+                case XTRANSFER -> {
+                    String from = pick(rnd);
+                    int p = partitionIndex.get(from);
+                    int q = (p + 1 + rnd.nextInt(byPartition.size() - 1)) % byPartition.size();
+                    List<String> group = byPartition.get(q);
+                    yield client.transfer(from, group.get(rnd.nextInt(group.size())), amount(rnd)).getOk();
+                }
+            };
+            s.record(startNanos, applied);
+        } catch (StatusRuntimeException e) {
+            s.errors.increment();
+            errors.computeIfAbsent(op.label() + ": " + e.getStatus().getCode()
+                    + (e.getStatus().getDescription() == null ? "" : " " + e.getStatus().getDescription()),
+                    k -> new LongAdder()).increment();
+        } catch (Exception e) {
+            s.errors.increment();
+            errors.computeIfAbsent(op.label() + ": " + e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+        }
+    }
+
+    private String pick(ThreadLocalRandom rnd) {
+        return pool.get(rnd.nextInt(pool.size()));
+    }
+
+    private static String other(List<String> group, String id, ThreadLocalRandom rnd) {
+        String to;
+        do {
+            to = group.get(rnd.nextInt(group.size()));
+        } while (to.equals(id));
+        return to;
+    }
+
+    private static double amount(ThreadLocalRandom rnd) {
+        return 1 + rnd.nextInt(MAX_AMOUNT);
+    }
+
+    /* ---------------- Reporting ---------------- */
+
+    private void report(long measureFrom, long end) {
+        boolean measuring = false;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (!measuring) {
+                    if (now < measureFrom) {
+                        Thread.sleep(measureFrom - now);
+                    }
+                    stats.values().forEach(OpStats::reset);
+                    errors.clear();
+                    dropped.reset();
+                    measuring = true;
+                    continue;
+                }
+                if (now >= end) {
+                    Thread.sleep(Long.MAX_VALUE); // until run() interrupts us
+                }
+                Thread.sleep(Math.min(REPORT_INTERVAL_MS, end - now));
+                printInterval((System.currentTimeMillis() - measureFrom) / 1000);
+            }
+        } catch (InterruptedException e) {
+            // run() is done; summary() takes what is left
+        }
+    }
+
+    private void printInterval(long second) {
+        String stamp = String.format("[%4ds]", second);
+        StringBuilder line = new StringBuilder(stamp);
+        for (Op op : Op.values()) {
+            OpStats s = stats.get(op);
+            s.roll();
+            if (s.interval.getTotalCount() == 0) continue;
+            line.append(String.format("  %s %d p99=%.1fms", op.label(), s.interval.getTotalCount(),
+                    s.interval.getValueAtPercentile(99) / 1000.0));
+        }
+        if (line.length() > stamp.length()) System.out.println(line);
+    }
+
+    private void summary(long elapsedMs) {
+        double seconds = elapsedMs / 1000.0;
+        long all = 0;
+
+        System.out.println();
+        System.out.printf("%-10s %9s %9s %8s %8s %9s %9s %9s %9s %9s %9s%n",
+                "op", "count", "ok", "failed", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : Op.values()) {
+            OpStats s = stats.get(op);
+            s.roll();
+            Histogram h = s.total;
+            long count = h.getTotalCount();
+            all += count;
+            if (count == 0 && s.errors.sum() == 0) continue;
+            System.out.printf("%-10s %9d %9d %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    op.label(), count, s.ok.sum(), s.failed.sum(), s.errors.sum(), count / seconds,
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMaxValue() / 1000.0);
+        }
+        System.out.printf("%-10s %9d %49.1f%n", "total", all, all / seconds);
+
+        if (dropped.sum() > 0) {
+            System.out.println(dropped.sum() + " scheduled operations dropped with " + MAX_IN_FLIGHT + " already in flight");
+        }
+        if (!errors.isEmpty()) {
+            System.out.println("Errors:");
+            new TreeMap<>(errors).forEach((reason, n) -> System.out.println("  " + reason + " x" + n.sum()));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package uk.ac.westminster.ds.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import uk.ac.westminster.ds.ewallet.grpc.MigrateBucketRequest;
+import uk.ac.westminster.ds.ewallet.grpc.MigrateBucketResponse;
+import uk.ac.westminster.ds.ewallet.grpc.MigrationServiceGrpc;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operator commands for the partition map: register partitions and move buckets between
+ * them. Buckets are moved live by the source partition's leader (see {@code BucketMigrator}).
+ */
+public class PartitionAdmin implements AutoCloseable {
+
+    private final NameServiceClient ns;
+    private final String service;
+    private final Map<String, ManagedChannel> channels = new HashMap<>();
+
+    public PartitionAdmin(String nameServiceAddress, String service) {
+        this.ns = new NameServiceClient(nameServiceAddress);
+        this.service = service;
+    }
+
+    public PartitionMap map() throws IOException {
+        PartitionMap map = PartitionMap.load(ns.getEtcdClient());
+        return map == null ? PartitionMap.defaultMap() : map;
+    }
+
+    /** Registers an empty partition; start its replicas, then {@link #rebalance()}. */
+    public PartitionMap addPartition(int partition, List<Integer> replicaPorts) throws IOException {
+        return PartitionMap.update(ns.getEtcdClient(), current ->
+                (current == null ? PartitionMap.defaultMap() : current).withReplicaGroup(partition, replicaPorts));
+    }
+
+    /** Asks the leader of the bucket's current owner to migrate it to {@code target}. */
+    public MigrateBucketResponse move(int bucket, int target) throws IOException {
+        int source = map().ownerOf(bucket);
+        NameServiceClient.ServiceDetails leader = ns.lookupService(service + "/p" + source);
+        if (leader == null) throw new IOException("No leader registered for partition " + source);
+
+        ManagedChannel channel = channels.computeIfAbsent(leader.getIPAddress() + ":" + leader.getPort(),
+                a -> ManagedChannelBuilder.forAddress(leader.getIPAddress(), leader.getPort()).usePlaintext().build());
+        return MigrationServiceGrpc.newBlockingStub(channel).migrateBucket(
+                MigrateBucketRequest.newBuilder().setBucket(bucket).setTargetPartition(target).build());
+    }
+
+    /**
+     * Moves buckets one at a time until every partition owns its share.
+     *
+     * @return the number of buckets moved; stops at the first failed move
+     */
+    public int rebalance() throws IOException {
+        PartitionMap current = map();
+        PartitionMap plan = current.rebalanced();
+
+        int moved = 0;
+        for (int bucket = 0; bucket < PartitionMap.BUCKETS; bucket++) {
+            int target = plan.ownerOf(bucket);
+            if (current.ownerOf(bucket) == target) continue;
+
+            MigrateBucketResponse r = move(bucket, target);
+            System.out.println("bucket " + bucket + " -> partition " + target + ": " + r.getMessage());
+            if (!r.getOk()) break;
+            moved++;
+        }
+        return moved;
+    }
+
+    @Override
+    public void close() {
+        channels.values().forEach(ManagedChannel::shutdownNow);
+        channels.clear();
+    }
+}
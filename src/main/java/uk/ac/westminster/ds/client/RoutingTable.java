@@ -0,0 +1,286 @@
+package uk.ac.westminster.ds.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.nameservice.EtcdClient;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
+import uk.ac.westminster.ds.tracing.TracingClientInterceptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side cache of the leader address of each partition, with one channel per address.
+ * <p>
+ * Routes are looked up in etcd on first use and then kept current by an etcd watch on the
+ * service's keys, so steady-state calls never touch etcd. When a replica says it is not the
+ * leader, callers {@link #redirect} to the leader it names or {@link #invalidate} the route so
+ * the next call looks it up again.
+ * <p>
+ * The table also tracks every replica of each partition (registered under
+ * {@code <service>/replicas/p<partition>/<replicaId>}) so reads that tolerate staleness can be
+ * spread across the whole replica group with {@link #replicaStub}, and the {@link PartitionMap}
+ * that says which partition owns an account.
+ */
+public class RoutingTable implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoutingTable.class);
+
+    private static final long LOOKUP_TIMEOUT_MS = 10_000;
+    private static final long MAX_BACKOFF_MS = 2_000;
+
+    private record Route(String address, WalletServiceGrpc.WalletServiceBlockingStub stub) {
+    }
+
+    private final NameServiceClient ns;
+    private final String keyPrefix;
+    private final ConcurrentHashMap<Integer, Route> routes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+    private final Closeable watch;
+
+    private final String replicaPrefix;
+    private final ConcurrentHashMap<Integer, Map<String, WalletServiceGrpc.WalletServiceBlockingStub>> replicas =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final Closeable replicaWatch;
+
+    private volatile PartitionMap partitionMap;
+    private final Closeable partitionMapWatch;
+
+    public RoutingTable(String nameServiceAddress, String service) {
+        this.ns = new NameServiceClient(nameServiceAddress);
+        this.keyPrefix = service + "/p";
+        this.replicaPrefix = service + "/replicas/p";
+        this.watch = ns.getEtcdClient().watchPrefix(keyPrefix, new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                int partition = partitionOf(key);
+                if (partition < 0) return;
+                try {
+                    NameServiceClient.ServiceDetails sd = NameServiceClient.ServiceDetails.fromEntry(value);
+                    routes.put(partition, routeTo(sd.getIPAddress(), sd.getPort()));
+                } catch (RuntimeException e) {
+                    logger.atWarn().addKeyValue("key", key).log("Ignoring malformed registration: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onDelete(String key) {
+                int partition = partitionOf(key);
+                if (partition >= 0) routes.remove(partition);
+            }
+
+            @Override
+            public void onResync(Map<String, String> current) {
+                routes.keySet().removeIf(partition -> !current.containsKey(keyPrefix + partition));
+                current.forEach(this::onPut);
+            }
+        });
+        this.replicaWatch = ns.getEtcdClient().watchPrefix(replicaPrefix, new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                addReplica(key, value);
+            }
+
+            @Override
+            public void onDelete(String key) {
+                int slash = key.indexOf('/', replicaPrefix.length());
+                if (slash < 0) return;
+                Map<String, WalletServiceGrpc.WalletServiceBlockingStub> group = replicas.get(replicaPartitionOf(key));
+                if (group != null) group.remove(key.substring(slash + 1));
+            }
+
+            @Override
+            public void onResync(Map<String, String> current) {
+                replicas.forEach((partition, group) -> group.keySet()
+                        .removeIf(replicaId -> !current.containsKey(replicaPrefix + partition + "/" + replicaId)));
+                current.forEach(this::onPut);
+            }
+        });
+        this.partitionMapWatch = ns.getEtcdClient().watchPrefix(PartitionMap.ETCD_KEY, new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                if (!key.equals(PartitionMap.ETCD_KEY)) return;
+                try {
+                    PartitionMap next = PartitionMap.fromJson(value);
+                    PartitionMap current = partitionMap;
+                    if (current == null || next.version() > current.version()) partitionMap = next;
+                } catch (RuntimeException e) {
+                    logger.warn("Ignoring malformed partition map: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onDelete(String key) {
+            }
+        });
+    }
+
+    /** The partition map, loaded from etcd on first use and then kept current by a watch. */
+    public PartitionMap partitionMap() throws IOException {
+        PartitionMap map = partitionMap;
+        if (map != null) return map;
+
+        PartitionMap loaded = PartitionMap.load(ns.getEtcdClient());
+        if (loaded == null) loaded = PartitionMap.defaultMap(); // no server has started yet
+        synchronized (this) {
+            if (partitionMap == null || loaded.version() > partitionMap.version()) partitionMap = loaded;
+            return partitionMap;
+        }
+    }
+
+    /**
+     * Re-reads the partition map from etcd, e.g. after a server said it no longer owns an
+     * account, in case the watch has not delivered the change yet.
+     *
+     * @return true if a newer map was found
+     */
+    public boolean reloadPartitionMap() throws IOException {
+        PartitionMap loaded = PartitionMap.load(ns.getEtcdClient());
+        if (loaded == null) return false;
+        synchronized (this) {
+            if (partitionMap != null && loaded.version() <= partitionMap.version()) return false;
+            partitionMap = loaded;
+            return true;
+        }
+    }
+
+    // <service>/replicas/p<partition>/<replicaId>
+    private int replicaPartitionOf(String key) {
+        int slash = key.indexOf('/', replicaPrefix.length());
+        try {
+            return slash < 0 ? -1 : Integer.parseInt(key.substring(replicaPrefix.length(), slash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void addReplica(String key, String value) {
+        int partition = replicaPartitionOf(key);
+        if (partition < 0) return;
+        try {
+            NameServiceClient.ServiceDetails sd = NameServiceClient.ServiceDetails.fromEntry(value);
+            replicas.computeIfAbsent(partition, p -> new ConcurrentHashMap<>())
+                    .put(key.substring(key.lastIndexOf('/') + 1), routeTo(sd.getIPAddress(), sd.getPort()).stub());
+        } catch (RuntimeException e) {
+            logger.atWarn().addKeyValue("key", key).log("Ignoring malformed registration: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Stub for one of the replicas of {@code partition}, rotating through them on each call.
+     * Falls back to the leader if no replicas are registered.
+     */
+    public WalletServiceGrpc.WalletServiceBlockingStub replicaStub(int partition) throws IOException, InterruptedException {
+        Map<String, WalletServiceGrpc.WalletServiceBlockingStub> group = replicas.get(partition);
+        if (group == null) {
+            // First read of this partition: list its replicas once, the watch keeps them current
+            for (Map.Entry<String, String> e : ns.getEtcdClient().getPrefix(replicaPrefix + partition + "/").entrySet()) {
+                addReplica(e.getKey(), e.getValue());
+            }
+            group = replicas.computeIfAbsent(partition, p -> new ConcurrentHashMap<>());
+        }
+
+        List<WalletServiceGrpc.WalletServiceBlockingStub> stubs = List.copyOf(group.values());
+        if (stubs.isEmpty()) return stub(partition);
+        return stubs.get(Math.floorMod(nextReplica.getAndIncrement(), stubs.size()));
+    }
+
+    private int partitionOf(String key) {
+        try {
+            return Integer.parseInt(key.substring(keyPrefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Stub for the current leader of {@code partition}, looking it up in etcd only on a cache miss. */
+    public WalletServiceGrpc.WalletServiceBlockingStub stub(int partition) throws IOException, InterruptedException {
+        Route route = routes.get(partition);
+        if (route == null) route = resolve(partition);
+        return route.stub();
+    }
+
+    /**
+     * Forgets the route of {@code partition} if it still points at {@code stale}, so a newer
+     * route delivered by the watch in the meantime is kept.
+     */
+    public void invalidate(int partition, WalletServiceGrpc.WalletServiceBlockingStub stale) {
+        routes.computeIfPresent(partition, (p, r) -> r.stub() == stale ? null : r);
+    }
+
+    /**
+     * Points {@code partition} at {@code address} (host:port, e.g. from a leader hint) unless a
+     * newer route than {@code stale} was installed meanwhile.
+     *
+     * @return the stub to use for the next attempt
+     */
+    public WalletServiceGrpc.WalletServiceBlockingStub redirect(int partition,
+                                                                WalletServiceGrpc.WalletServiceBlockingStub stale,
+                                                                String address) {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        return routes.compute(partition, (p, r) -> r == null || r.stub() == stale ? routeTo(host, port) : r).stub();
+    }
+
+    private Route resolve(int partition) throws IOException, InterruptedException {
+        String key = keyPrefix + partition;
+        long deadline = System.currentTimeMillis() + LOOKUP_TIMEOUT_MS;
+        long backoff = 100;
+
+        while (true) {
+            NameServiceClient.ServiceDetails sd;
+            try (Span ignored = Tracing.start("etcd.lookup").set("partition", partition)) {
+                sd = ns.lookupService(key);
+            }
+            if (sd != null) {
+                Route route = routeTo(sd.getIPAddress(), sd.getPort());
+                // The watch may have installed a fresher route while we were looking
+                Route existing = routes.putIfAbsent(partition, route);
+                return existing != null ? existing : route;
+            }
+            if (System.currentTimeMillis() + backoff > deadline) {
+                throw new IOException("No leader registered for partition " + partition);
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    private Route routeTo(String host, int port) {
+        String address = host + ":" + port;
+        ManagedChannel channel = channels.compute(address, (a, ch) ->
+                ch != null && !ch.isShutdown()
+                        ? ch
+                        : ManagedChannelBuilder.forAddress(host, port)
+                                .usePlaintext()
+                                .intercept(new TracingClientInterceptor())
+                                .build());
+        return new Route(address, WalletServiceGrpc.newBlockingStub(channel));
+    }
+
+    @Override
+    public void close() {
+        try {
+            watch.close();
+            replicaWatch.close();
+            partitionMapWatch.close();
+        } catch (IOException ignored) {
+        }
+        channels.values().forEach(ManagedChannel::shutdownNow);
+        channels.clear();
+        routes.clear();
+        replicas.clear();
+    }
+}
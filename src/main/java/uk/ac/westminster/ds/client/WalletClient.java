@@ -1,104 +1,305 @@
 package uk.ac.westminster.ds.client;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import uk.ac.westminster.ds.common.WalletProtocol;
 import uk.ac.westminster.ds.ewallet.grpc.*;
-import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/**
+ * Client for the partitioned wallet service. Each operation starts a trace at the configured
+ * sample rate ({@link Tracing}); its RPCs, including retries, are traced under it.
+ */
 public class WalletClient {
 
-    private static final int PARTITIONS = 2;
     private static final String SERVICE = "WalletService";
+    private static final String NAME_SERVICE_ADDRESS = "http://localhost:2379";
+
+    // NOT_LEADER and UNAVAILABLE retries: a hinted leader is tried straight away, otherwise
+    // back off while the election settles
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 1000;
 
-    private ManagedChannel channel;
+    private final RoutingTable routing = new RoutingTable(NAME_SERVICE_ADDRESS, SERVICE);
 
     /* ---------------- Partition logic ---------------- */
 
-    private int partitionFor(String id) {
-        return Math.abs(id.hashCode()) % PARTITIONS;
+    private int partitionFor(String id) throws Exception {
+        return routing.partitionMap().partitionOf(id);
     }
 
-    private WalletServiceGrpc.WalletServiceBlockingStub stubFor(int partition)
+    /**
+     * Runs {@code rpc} against the cached leader of {@code partition}. A replica that is not
+     * the leader rejects the call before applying it and names the leader it knows of, so the
+     * call is retried there; without a hint the route is re-resolved after a bounded backoff.
+     * An unreachable replica is retried the same way: reads are safe to repeat, and every write
+     * this client sends carries an idempotency key, so a write the old leader already applied is
+     * answered with its original response instead of being applied again.
+     */
+    private <T> T call(int partition, Function<WalletServiceGrpc.WalletServiceBlockingStub, T> rpc)
             throws Exception {
 
-        NameServiceClient ns = new NameServiceClient("http://localhost:2379");
-        NameServiceClient.ServiceDetails sd =
-                ns.findService(SERVICE + "/p" + partition);
+        WalletServiceGrpc.WalletServiceBlockingStub stub = routing.stub(partition);
+        long backoff = INITIAL_BACKOFF_MS;
 
-        channel = ManagedChannelBuilder
-                .forAddress(sd.getIPAddress(), sd.getPort())
-                .usePlaintext()
-                .build();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return rpc.apply(stub);
+            } catch (StatusRuntimeException e) {
+                boolean unavailable = e.getStatus().getCode() == Status.Code.UNAVAILABLE;
+                if (!(unavailable || isNotLeader(e)) || attempt >= MAX_ATTEMPTS) {
+                    if (unavailable) routing.invalidate(partition, stub);
+                    throw e;
+                }
+
+                String hint = e.getTrailers() == null ? null : e.getTrailers().get(WalletProtocol.LEADER_ADDRESS);
+                if (hint != null && attempt == 1) {
+                    stub = routing.redirect(partition, stub, hint);
+                    continue;
+                }
 
-        return WalletServiceGrpc.newBlockingStub(channel);
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                if (hint != null) {
+                    stub = routing.redirect(partition, stub, hint);
+                } else {
+                    routing.invalidate(partition, stub);
+                    stub = routing.stub(partition);
+                }
+            }
+        }
     }
 
-    /* ---------------- Milestone 4 demo ---------------- */
+    /**
+     * Like {@link #call} against the partition that owns {@code accountId}. If that partition
+     * says the account has moved (its bucket was migrated), the partition map is reloaded and
+     * the call goes to the new owner; the old owner rejected it without applying it.
+     */
+    private <T> T callFor(String accountId, Function<WalletServiceGrpc.WalletServiceBlockingStub, T> rpc)
+            throws Exception {
+        return followingMoves(() -> call(partitionFor(accountId), rpc));
+    }
 
-    public void demoCalls(String accountId) throws Exception {
+    /** Runs {@code routed}, routing afresh after each WRONG_PARTITION; see {@link #callFor}. */
+    private <T> T followingMoves(Callable<T> routed) throws Exception {
+        long backoff = INITIAL_BACKOFF_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return routed.call();
+            } catch (StatusRuntimeException e) {
+                if (!isWrongPartition(e) || attempt >= MAX_ATTEMPTS) throw e;
+                if (!routing.reloadPartitionMap()) {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                }
+            }
+        }
+    }
+
+    /** Idempotency key for one logical write; retries of that write reuse it. */
+    private static String newRequestId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static boolean isWrongPartition(StatusRuntimeException e) {
+        return e.getStatus().getCode() == Status.Code.FAILED_PRECONDITION
+                && WalletProtocol.WRONG_PARTITION.equals(e.getStatus().getDescription());
+    }
+
+    private static boolean isNotLeader(StatusRuntimeException e) {
+        return e.getStatus().getCode() == Status.Code.FAILED_PRECONDITION
+                && WalletProtocol.NOT_LEADER.equals(e.getStatus().getDescription());
+    }
+
+    /* ---------------- Reads ---------------- */
+
+    /**
+     * Reads a balance at the given consistency. LEADER reads go to the partition leader;
+     * BOUNDED and ANY reads are spread across all replicas, and fall back to the leader if the
+     * chosen replica is too far behind or unreachable.
+     */
+    public BalanceResponse getBalance(String accountId, ReadConsistency consistency, long maxLag)
+            throws Exception {
 
         int p = partitionFor(accountId);
-        WalletServiceGrpc.WalletServiceBlockingStub stub = stubFor(p);
+        BalanceRequest req = BalanceRequest.newBuilder()
+                .setAccountId(accountId)
+                .setConsistency(consistency)
+                .setMaxLag(maxLag)
+                .build();
+
+        try (Span ignored = Tracing.startRoot("client.getBalance").set("consistency", consistency)) {
+            if (consistency == ReadConsistency.LEADER) {
+                return callFor(accountId, stub -> stub.getBalance(req));
+            }
+
+            try {
+                return routing.replicaStub(p).getBalance(req);
+            } catch (StatusRuntimeException e) {
+                Status.Code code = e.getStatus().getCode();
+                if (code != Status.Code.FAILED_PRECONDITION && code != Status.Code.UNAVAILABLE) throw e;
+
+                BalanceRequest fromLeader = req.toBuilder().setConsistency(ReadConsistency.LEADER).build();
+                return callFor(accountId, stub -> stub.getBalance(fromLeader));
+            }
+        }
+    }
+
+    /** The partition that currently owns {@code accountId}. */
+    public int partitionOf(String accountId) throws Exception {
+        return partitionFor(accountId);
+    }
+
+    /* ---------------- Writes ---------------- */
+
+    public CreateAccountResponse createAccount(String accountId) throws Exception {
+        CreateAccountRequest req = CreateAccountRequest.newBuilder()
+                .setAccountId(accountId)
+                .setRequestId(newRequestId())
+                .build();
+        try (Span ignored = Tracing.startRoot("client.createAccount")) {
+            return callFor(accountId, stub -> stub.createAccount(req));
+        }
+    }
+
+    public AmountResponse deposit(String accountId, double amount) throws Exception {
+        AmountRequest req = amountRequest(accountId, amount);
+        try (Span ignored = Tracing.startRoot("client.deposit")) {
+            return callFor(accountId, stub -> stub.deposit(req));
+        }
+    }
 
-        System.out.println(stub.createAccount(
-                CreateAccountRequest.newBuilder()
-                        .setAccountId(accountId)
-                        .build()).getMessage());
+    public AmountResponse withdraw(String accountId, double amount) throws Exception {
+        AmountRequest req = amountRequest(accountId, amount);
+        try (Span ignored = Tracing.startRoot("client.withdraw")) {
+            return callFor(accountId, stub -> stub.withdraw(req));
+        }
+    }
+
+    private static AmountRequest amountRequest(String accountId, double amount) {
+        return AmountRequest.newBuilder()
+                .setAccountId(accountId)
+                .setAmount(amount)
+                .setRequestId(newRequestId())
+                .build();
+    }
+
+    /* ---------------- Milestone 4 demo ---------------- */
+
+    public void demoCalls(String accountId) throws Exception {
 
-        System.out.println(stub.deposit(
-                AmountRequest.newBuilder()
-                        .setAccountId(accountId)
-                        .setAmount(100)
-                        .build()).getMessage());
+        System.out.println(createAccount(accountId).getMessage());
+        System.out.println(deposit(accountId, 100).getMessage());
 
         System.out.println("Balance = " +
-                stub.getBalance(
+                callFor(accountId, stub -> stub.getBalance(
                         BalanceRequest.newBuilder()
                                 .setAccountId(accountId)
-                                .build()).getBalance());
+                                .build())).getBalance());
     }
 
     /* ---------------- Milestone 6 transfer ---------------- */
 
-    public void transfer(String from, String to, double amount) throws Exception {
-
-        int pFrom = partitionFor(from);
-        int pTo = partitionFor(to);
-
-        WalletServiceGrpc.WalletServiceBlockingStub fromStub = stubFor(pFrom);
-        WalletServiceGrpc.WalletServiceBlockingStub toStub = stubFor(pTo);
+    /**
+     * Sent to the leader of the source account's partition. If the destination account lives
+     * on another partition, that leader runs the two-phase commit with it.
+     */
+    public TransferResponse transfer(String from, String to, double amount) throws Exception {
 
         TransferRequest req =
                 TransferRequest.newBuilder()
                         .setFromAccount(from)
                         .setToAccount(to)
                         .setAmount(amount)
+                        .setRequestId(newRequestId())
                         .build();
 
-        // Same partition → normal transfer
-        if (pFrom == pTo) {
-            System.out.println(fromStub.transfer(req).getMessage());
-            return;
+        try (Span ignored = Tracing.startRoot("client.transfer")) {
+            return callFor(from, stub -> stub.transfer(req));
         }
+    }
+
+    /* ---------------- Batches ---------------- */
 
-        PrepareResponse r1 = fromStub.prepareTransfer(req);
+    /**
+     * Applies {@code operations} with one RPC, one log entry and one replication round. Every
+     * operation must be on accounts of one partition: the batch goes to the owner of the first
+     * operation's account, which rejects accounts it does not own. With {@code atomic} either
+     * all operations are applied or none are.
+     */
+    public BatchResponse batchApply(List<Operation> operations, boolean atomic) throws Exception {
+        String[] accounts = WalletProtocol.accounts(operations);
+        if (accounts.length == 0) throw new IllegalArgumentException("Batch has no operations");
 
-        if (r1.getOk()) {
-            fromStub.commitTransfer(req);
-            toStub.commitTransfer(req);
-            System.out.println("2PC transfer committed");
-        } else {
-            fromStub.abortTransfer(req);
-            System.out.println("2PC transfer aborted");
+        BatchRequest req = BatchRequest.newBuilder()
+                .addAllOperations(operations)
+                .setAtomic(atomic)
+                .setRequestId(newRequestId())
+                .build();
+
+        try (Span ignored = Tracing.startRoot("client.batchApply").set("operations", operations.size())) {
+            return callFor(accounts[0], stub -> stub.batchApply(req));
         }
+    }
 
+    /**
+     * Reads many balances with one RPC per partition rather than one per account, at the given
+     * consistency as in {@link #getBalance}. The results are in the order of {@code accountIds}.
+     */
+    public List<BalanceResponse> multiGetBalance(List<String> accountIds, ReadConsistency consistency, long maxLag)
+            throws Exception {
+        try (Span ignored = Tracing.startRoot("client.multiGetBalance").set("accounts", accountIds.size())) {
+            return followingMoves(() -> {
+                // Partition -> positions in accountIds of the accounts it owns
+                Map<Integer, List<Integer>> byPartition = new TreeMap<>();
+                for (int i = 0; i < accountIds.size(); i++) {
+                    byPartition.computeIfAbsent(partitionFor(accountIds.get(i)), p -> new ArrayList<>()).add(i);
+                }
+
+                BalanceResponse[] out = new BalanceResponse[accountIds.size()];
+                for (Map.Entry<Integer, List<Integer>> e : byPartition.entrySet()) {
+                    MultiBalanceRequest.Builder req = MultiBalanceRequest.newBuilder()
+                            .setConsistency(consistency)
+                            .setMaxLag(maxLag);
+                    e.getValue().forEach(i -> req.addAccountIds(accountIds.get(i)));
+
+                    List<BalanceResponse> got = multiGetBalance(e.getKey(), req.build()).getBalancesList();
+                    for (int k = 0; k < got.size(); k++) {
+                        out[e.getValue().get(k)] = got.get(k);
+                    }
+                }
+                return Arrays.asList(out);
+            });
+        }
+    }
+
+    private MultiBalanceResponse multiGetBalance(int partition, MultiBalanceRequest req) throws Exception {
+        if (req.getConsistency() != ReadConsistency.LEADER) {
+            try {
+                return routing.replicaStub(partition).multiGetBalance(req);
+            } catch (StatusRuntimeException e) {
+                Status.Code code = e.getStatus().getCode();
+                if (code != Status.Code.FAILED_PRECONDITION && code != Status.Code.UNAVAILABLE) throw e;
+            }
+        }
+        MultiBalanceRequest fromLeader = req.toBuilder().setConsistency(ReadConsistency.LEADER).build();
+        return call(partition, stub -> stub.multiGetBalance(fromLeader));
     }
 
     /* ---------------- Cleanup ---------------- */
 
     public void close() {
-        if (channel != null) {
-            channel.shutdownNow();
-        }
+        routing.close();
     }
 }
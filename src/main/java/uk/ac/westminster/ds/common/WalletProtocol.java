@@ -0,0 +1,53 @@
+package uk.ac.westminster.ds.common;
+
+import io.grpc.Metadata;
+import uk.ac.westminster.ds.ewallet.grpc.Operation;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What clients and servers of the wallet service agree on beyond the generated gRPC types:
+ * the status descriptions clients act on, the leader hint trailer, and which accounts a
+ * batch touches.
+ */
+public final class WalletProtocol {
+
+    /** FAILED_PRECONDITION: this replica is not the partition leader; see {@link #LEADER_ADDRESS}. */
+    public static final String NOT_LEADER = "NOT_LEADER";
+
+    /** FAILED_PRECONDITION: the account's bucket belongs to another partition (the client's map is stale). */
+    public static final String WRONG_PARTITION = "WRONG_PARTITION";
+
+    /** FAILED_PRECONDITION: a follower is further behind than the read allows. */
+    public static final String STALE_READ = "STALE_READ";
+
+    /** UNAVAILABLE: the write was applied but may not survive a failover; retry with the same request id. */
+    public static final String OUTCOME_UNKNOWN = "OUTCOME_UNKNOWN";
+
+    /** Trailer on NOT_LEADER errors carrying the host:port of the replica this one thinks is leader. */
+    public static final Metadata.Key<String> LEADER_ADDRESS =
+            Metadata.Key.of("leader-address", Metadata.ASCII_STRING_MARSHALLER);
+
+    private WalletProtocol() {
+    }
+
+    /** @return the distinct accounts the operations of a batch touch, in order of first use */
+    public static String[] accounts(List<Operation> ops) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (Operation op : ops) {
+            switch (op.getOpCase()) {
+                case CREATEACCOUNT -> ids.add(op.getCreateAccount().getAccountId());
+                case DEPOSIT -> ids.add(op.getDeposit().getAccountId());
+                case WITHDRAW -> ids.add(op.getWithdraw().getAccountId());
+                case TRANSFER -> {
+                    ids.add(op.getTransfer().getFromAccount());
+                    ids.add(op.getTransfer().getToAccount());
+                }
+                default -> { }
+            }
+        }
+        return ids.toArray(new String[0]);
+    }
+}
@@ -1,78 +1,487 @@
 package uk.ac.westminster.ds.nameservice;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Client for etcd's v3 JSON gateway ({@code /v3/kv/...}, {@code /v3/lease/...},
+ * {@code /v3/watch}), so it also works against a local stand-in HTTP server.
+ * <p>
+ * Every instance shares one {@link HttpClient}, so requests reuse pooled keep-alive
+ * connections instead of connecting each time. Each blocking method has an {@code ...Async}
+ * counterpart that returns at once; the blocking ones send synchronously, which takes fewer
+ * thread hand-offs than waiting on the async call. Watches and lease keepalives hold no
+ * thread of their own.
+ */
 public class EtcdClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(EtcdClient.class);
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    private static final long WATCH_RETRY_MS = 1000;
+
+    private static final HttpClient HTTP = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(3))
+            .build();
+
+    // Lease keepalives and watch reconnects
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "etcd-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final String etcdAddress;
 
     public EtcdClient(String etcdAddress) {
         this.etcdAddress = etcdAddress;
     }
 
+    /* ---------------- Keys ---------------- */
+
     public void put(String key, String value) throws IOException {
-        System.out.println("Putting Key=" + key + ", Value=" + value);
-        String putUrl = etcdAddress + "/v3/kv/put";
-        String serverResponse = callEtcd(putUrl, buildPutRequestPayload(key, value));
-        System.out.println(serverResponse);
+        String serverResponse = callBlocking("/v3/kv/put", putRequest(key, value, 0));
+        logger.atDebug().addKeyValue("key", key).addKeyValue("value", value).log("etcd put: {}", serverResponse);
+    }
+
+    /** Puts {@code key}, attached to {@code leaseId} unless it is 0. */
+    public CompletableFuture<String> putAsync(String key, String value, long leaseId) {
+        return call("/v3/kv/put", putRequest(key, value, leaseId));
+    }
+
+    private static JSONObject putRequest(String key, String value, long leaseId) {
+        JSONObject putRequest = new JSONObject()
+                .put("key", encode(key))
+                .put("value", encode(value));
+        if (leaseId != 0) putRequest.put("lease", leaseId);
+        return putRequest;
     }
 
     public String get(String key) throws IOException {
-        System.out.println("Getting value for Key=" + key);
-        String getUrl = etcdAddress + "/v3/kv/range";
-        return callEtcd(getUrl, buildGetRequestPayload(key));
+        logger.atDebug().addKeyValue("key", key).log("etcd get");
+        return callBlocking("/v3/kv/range", new JSONObject().put("key", encode(key)));
+    }
+
+    /** The raw range response for {@code key}. */
+    public CompletableFuture<String> getAsync(String key) {
+        return call("/v3/kv/range", new JSONObject().put("key", encode(key)));
+    }
+
+    /** A key's value and the revision it was last written at; 0 and null if the key does not exist. */
+    public record Versioned(String value, long modRevision) {
+    }
+
+    public Versioned getVersioned(String key) throws IOException {
+        JSONArray kvs = new JSONObject(get(key)).optJSONArray("kvs");
+        if (kvs == null || kvs.isEmpty()) return new Versioned(null, 0);
+        JSONObject kv = kvs.getJSONObject(0);
+        return new Versioned(decode(kv.optString("value", "")), kv.optLong("mod_revision", 0));
+    }
+
+    /**
+     * Puts {@code key} only if it was last written at {@code modRevision} (0: only if it does not
+     * exist), as one etcd transaction.
+     *
+     * @return false if someone else wrote the key since, in which case nothing was written
+     */
+    public boolean putIfUnchanged(String key, String value, long modRevision) throws IOException {
+        JSONObject txn = new JSONObject()
+                .put("compare", new JSONArray().put(new JSONObject()
+                        .put("key", encode(key))
+                        .put("target", "MOD")
+                        .put("result", "EQUAL")
+                        .put("mod_revision", modRevision)))
+                .put("success", new JSONArray().put(new JSONObject()
+                        .put("request_put", putRequest(key, value, 0))));
+        boolean succeeded = new JSONObject(callBlocking("/v3/kv/txn", txn)).optBoolean("succeeded", false);
+        logger.atDebug().addKeyValue("key", key).addKeyValue("modRevision", modRevision)
+                .log("etcd compare-and-put: {}", succeeded ? "written" : "conflict");
+        return succeeded;
+    }
+
+    /** @return every key starting with {@code prefix} and its value, in key order */
+    public Map<String, String> getPrefix(String prefix) throws IOException {
+        return keyValues(callBlocking("/v3/kv/range", prefixRequest(prefix)));
+    }
+
+    public CompletableFuture<Map<String, String>> getPrefixAsync(String prefix) {
+        return call("/v3/kv/range", prefixRequest(prefix)).thenApply(EtcdClient::keyValues);
+    }
+
+    private static JSONObject prefixRequest(String prefix) {
+        return new JSONObject()
+                .put("key", encode(prefix))
+                .put("range_end", rangeEnd(prefix));
+    }
+
+    private static Map<String, String> keyValues(String rangeResponse) {
+        Map<String, String> result = new LinkedHashMap<>();
+        JSONArray kvs = new JSONObject(rangeResponse).optJSONArray("kvs");
+        if (kvs != null) {
+            for (int i = 0; i < kvs.length(); i++) {
+                JSONObject kv = kvs.getJSONObject(i);
+                result.put(decode(kv.getString("key")), decode(kv.optString("value", "")));
+            }
+        }
+        return result;
+    }
+
+    /* ---------------- Leases ---------------- */
+
+    /** @return the id of a new lease that expires {@code ttlSeconds} after its last keepalive */
+    public CompletableFuture<Long> grantLeaseAsync(long ttlSeconds) {
+        return call("/v3/lease/grant", new JSONObject().put("TTL", ttlSeconds))
+                .thenApply(body -> new JSONObject(body).getLong("ID"));
+    }
+
+    /** @return the lease's remaining TTL in seconds, or 0 if it has already expired */
+    public CompletableFuture<Long> keepAliveAsync(long leaseId) {
+        return call("/v3/lease/keepalive", new JSONObject().put("ID", leaseId)).thenApply(body -> {
+            JSONObject result = new JSONObject(body).optJSONObject("result");
+            return result == null ? 0 : result.optLong("TTL", 0);
+        });
+    }
+
+    /** Ends a lease now, deleting the keys attached to it. */
+    public CompletableFuture<String> revokeLeaseAsync(long leaseId) {
+        return call("/v3/lease/revoke", new JSONObject().put("ID", leaseId));
+    }
+
+    /**
+     * Puts {@code key} under a lease of {@code ttlSeconds} and keeps the lease alive in the
+     * background, so the key disappears once this process stops renewing it. If the lease is
+     * lost anyway (etcd restarted, or this process was paused for longer than the TTL), the key
+     * is put again under a new lease. Closing the result revokes the lease, deleting the key
+     * straight away.
+     */
+    public Closeable putWithLease(String key, String value, long ttlSeconds) throws IOException {
+        if (ttlSeconds < 1) throw new IllegalArgumentException("ttlSeconds must be positive");
+        LeasedKey leased = new LeasedKey(key, value, ttlSeconds);
+        await(leased.acquire());
+        leased.start();
+        return leased;
+    }
+
+    private class LeasedKey implements Closeable {
+        private final String key;
+        private final String value;
+        private final long ttlSeconds;
+        private final AtomicBoolean renewing = new AtomicBoolean();
+        private volatile long leaseId;
+        private volatile boolean closed;
+        private ScheduledFuture<?> keepAlive;
+
+        LeasedKey(String key, String value, long ttlSeconds) {
+            this.key = key;
+            this.value = value;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        CompletableFuture<Void> acquire() {
+            return grantLeaseAsync(ttlSeconds).thenCompose(id -> {
+                leaseId = id;
+                return putAsync(key, value, id);
+            }).thenApply(r -> null);
+        }
+
+        void start() {
+            // Three keepalives per TTL, so one lost request does not expire the lease
+            long periodMs = Math.max(100, TimeUnit.SECONDS.toMillis(ttlSeconds) / 3);
+            keepAlive = SCHEDULER.scheduleAtFixedRate(this::renew, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void renew() {
+            if (closed || !renewing.compareAndSet(false, true)) return;
+            keepAliveAsync(leaseId)
+                    .thenCompose(ttl -> {
+                        if (ttl > 0 || closed) return CompletableFuture.completedFuture(null);
+                        logger.atWarn().addKeyValue("key", key).log("etcd lease expired, registering again");
+                        return acquire();
+                    })
+                    .whenComplete((r, e) -> {
+                        renewing.set(false);
+                        if (e != null && !closed) {
+                            logger.atWarn().addKeyValue("key", key).log("etcd lease keepalive failed: {}", cause(e).getMessage());
+                        }
+                    });
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (keepAlive != null) keepAlive.cancel(false);
+            await(revokeLeaseAsync(leaseId));
+        }
+    }
+
+    /* ---------------- Watches ---------------- */
+
+    public interface WatchListener {
+        void onPut(String key, String value);
+
+        void onDelete(String key);
+
+        /**
+         * Called in place of events that can no longer be replayed (etcd compacted them away
+         * while the watch was down), with every key under the prefix as it is now. Listeners
+         * that cache keys should replace their cache; by default each key is passed to
+         * {@link #onPut}, which misses deletes.
+         */
+        default void onResync(Map<String, String> current) {
+            current.forEach(this::onPut);
+        }
     }
 
-    private String callEtcd(String url, String payload) throws IOException {
-        URL etcdUrl = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) etcdUrl.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        connection.connect();
+    /**
+     * Streams changes to every key starting with {@code prefix} to {@code listener}, one event
+     * at a time. If the stream drops it is reopened from the revision after the last one seen,
+     * so no change is missed; if etcd has compacted that revision away, the prefix is read
+     * again and handed to {@link WatchListener#onResync} before watching resumes from there.
+     * Close the result to stop watching.
+     */
+    public Closeable watchPrefix(String prefix, WatchListener listener) {
+        Watch watch = new Watch(prefix, listener);
+        watch.connect();
+        return watch;
+    }
+
+    private class Watch implements Closeable {
+        private final String prefix;
+        private final WatchListener listener;
+        private volatile boolean closed;
+        private volatile Flow.Subscription subscription;
+        private volatile long nextRevision; // 0 = from now
+        private final AtomicInteger stream = new AtomicInteger(); // bumped by each reconnect
 
-        try (OutputStream outputStream = connection.getOutputStream()) {
-            outputStream.write(payload.getBytes(StandardCharsets.UTF_8));
+        Watch(String prefix, WatchListener listener) {
+            this.prefix = prefix;
+            this.listener = listener;
         }
 
-        try (InputStream inputStream = connection.getInputStream()) {
-            return readResponse(inputStream);
-        } finally {
-            connection.disconnect();
+        void connect() {
+            if (closed) return;
+            int id = stream.incrementAndGet();
+            JSONObject create = prefixRequest(prefix);
+            if (nextRevision > 0) create.put("start_revision", nextRevision);
+
+            // No request timeout: the response is the stream of events
+            HttpRequest request = HttpRequest.newBuilder(URI.create(etcdAddress + "/v3/watch"))
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("create_request", create).toString()))
+                    .build();
+            HTTP.sendAsync(request, info -> info.statusCode() == 200
+                            ? HttpResponse.BodySubscribers.fromLineSubscriber(new Lines())
+                            : HttpResponse.BodySubscribers.replacing(null))
+                    .whenComplete((response, e) -> {
+                        if (closed || stream.get() != id) return;
+                        if (e != null) {
+                            logger.atWarn().addKeyValue("prefix", prefix).log("etcd watch dropped: {}", cause(e).getMessage());
+                        } else if (response.statusCode() != 200) {
+                            logger.atWarn().addKeyValue("prefix", prefix).log("etcd watch refused: HTTP {}", response.statusCode());
+                        }
+                        SCHEDULER.schedule(this::connect, WATCH_RETRY_MS, TimeUnit.MILLISECONDS);
+                    });
         }
+
+        private void onLine(String line) {
+            if (line.isBlank()) return;
+            JSONObject result = new JSONObject(line).optJSONObject("result");
+            if (result == null) return;
+
+            long compacted = result.optLong("compact_revision", 0);
+            if (compacted > 0) {
+                // The events since the last revision seen are gone, so start again from a fresh read
+                logger.atWarn().addKeyValue("prefix", prefix).log("etcd watch fell behind compaction at revision {}", compacted);
+                stream.incrementAndGet(); // the dropped stream must not reconnect by itself
+                Flow.Subscription s = subscription;
+                if (s != null) s.cancel();
+                SCHEDULER.execute(this::resync);
+                return;
+            }
+
+            JSONArray events = result.optJSONArray("events");
+            if (events != null) {
+                for (int i = 0; i < events.length(); i++) {
+                    JSONObject event = events.getJSONObject(i);
+                    JSONObject kv = event.getJSONObject("kv");
+                    String key = decode(kv.getString("key"));
+                    try {
+                        if ("DELETE".equals(event.optString("type"))) {
+                            listener.onDelete(key);
+                        } else {
+                            listener.onPut(key, decode(kv.optString("value", "")));
+                        }
+                    } catch (RuntimeException e) {
+                        logger.atWarn().addKeyValue("key", key).setCause(e).log("etcd watch listener failed");
+                    }
+                }
+            }
+
+            JSONObject header = result.optJSONObject("header");
+            long revision = header == null ? 0 : header.optLong("revision", 0);
+            if (revision > 0) nextRevision = revision + 1;
+        }
+
+        /** Reads the whole prefix, hands it to the listener and watches from the revision read. */
+        private void resync() {
+            if (closed) return;
+            call("/v3/kv/range", prefixRequest(prefix)).whenComplete((body, e) -> {
+                if (closed) return;
+                if (e != null) {
+                    logger.atWarn().addKeyValue("prefix", prefix).log("etcd resync failed: {}", cause(e).getMessage());
+                    SCHEDULER.schedule(this::resync, WATCH_RETRY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                JSONObject header = new JSONObject(body).optJSONObject("header");
+                long revision = header == null ? 0 : header.optLong("revision", 0);
+                Map<String, String> current = keyValues(body);
+                try {
+                    listener.onResync(current);
+                } catch (RuntimeException ex) {
+                    logger.atWarn().addKeyValue("prefix", prefix).setCause(ex).log("etcd watch listener failed");
+                }
+                logger.atInfo().addKeyValue("prefix", prefix).log("etcd watch resynced {} keys at revision {}", current.size(), revision);
+                nextRevision = revision > 0 ? revision + 1 : 0;
+                connect();
+            });
+        }
+
+        private class Lines implements Flow.Subscriber<String> {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription = s;
+                if (closed) {
+                    s.cancel();
+                } else {
+                    s.request(Long.MAX_VALUE);
+                }
+            }
+
+            @Override
+            public void onNext(String line) {
+                try {
+                    onLine(line);
+                } catch (RuntimeException e) {
+                    logger.atWarn().addKeyValue("prefix", prefix).log("Ignoring malformed etcd watch response: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            Flow.Subscription s = subscription;
+            if (s != null) s.cancel();
+        }
+    }
+
+    /* ---------------- Transport ---------------- */
+
+    private HttpRequest request(String path, JSONObject payload) {
+        return HttpRequest.newBuilder(URI.create(etcdAddress + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
+                .build();
+    }
+
+    private CompletableFuture<String> call(String path, JSONObject payload) {
+        return HTTP.sendAsync(request(path, payload), HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            try {
+                return body(path, response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
-    private String readResponse(InputStream inputStream) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        int c = inputStream.read();
-        while (c != -1) {
-            builder.append((char) c);
-            c = inputStream.read();
+    private String callBlocking(String path, JSONObject payload) throws IOException {
+        try {
+            return body(path, HTTP.send(request(path, payload), HttpResponse.BodyHandlers.ofString()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for etcd");
         }
-        return builder.toString();
     }
 
-    private String buildPutRequestPayload(String key, String value) {
-        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
-        String valueEncoded = Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    private static String body(String path, HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("etcd " + path + " returned HTTP " + response.statusCode() + ": " + response.body());
+        }
+        return response.body();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            // Past the request timeout only if the connection itself hangs
+            return future.get(REQUEST_TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for etcd");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IOException("etcd did not answer within " + REQUEST_TIMEOUT.toMillis() * 2 + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = cause(e);
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static Throwable cause(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static String encode(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
 
-        JSONObject putRequest = new JSONObject();
-        putRequest.put("key", keyEncoded);
-        putRequest.put("value", valueEncoded);
-        return putRequest.toString();
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8);
     }
 
-    private String buildGetRequestPayload(String key) {
-        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
-        JSONObject getRequest = new JSONObject();
-        getRequest.put("key", keyEncoded);
-        return getRequest.toString();
+    // range_end = prefix with its last byte incremented selects every key with the prefix
+    private static String rangeEnd(String prefix) {
+        byte[] end = prefix.getBytes(StandardCharsets.UTF_8);
+        end[end.length - 1]++;
+        return Base64.getEncoder().encodeToString(end);
     }
 }
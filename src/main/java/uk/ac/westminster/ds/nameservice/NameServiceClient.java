@@ -2,13 +2,18 @@ package uk.ac.westminster.ds.nameservice;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 public class NameServiceClient {
 
+    private static final Logger logger = LoggerFactory.getLogger(NameServiceClient.class);
+
     private final EtcdClient etcdClient;
 
     public NameServiceClient(String nameServiceAddress) {
@@ -24,13 +29,13 @@ public class NameServiceClient {
     }
 
     public ServiceDetails findService(String serviceName) throws InterruptedException, IOException {
-        System.out.println("Searching for details of service: " + serviceName);
+        logger.atDebug().addKeyValue("service", serviceName).log("Looking up service");
 
         String etcdResponse = etcdClient.get(serviceName);
         ServiceDetails serviceDetails = new ServiceDetails().populate(etcdResponse);
 
         while (serviceDetails == null) {
-            System.out.println("Couldn't find details of service " + serviceName + ", retrying in 5 seconds.");
+            logger.atInfo().addKeyValue("service", serviceName).log("Service not registered yet, retrying in 5 seconds");
             Thread.sleep(5000);
             etcdResponse = etcdClient.get(serviceName);
             serviceDetails = new ServiceDetails().populate(etcdResponse);
@@ -38,16 +43,51 @@ public class NameServiceClient {
         return serviceDetails;
     }
 
+    /**
+     * Single lookup without retrying.
+     *
+     * @return the registered details, or null if nothing is registered under {@code serviceName}
+     */
+    public ServiceDetails lookupService(String serviceName) throws IOException {
+        return new ServiceDetails().populate(etcdClient.get(serviceName));
+    }
+
+    public EtcdClient getEtcdClient() {
+        return etcdClient;
+    }
+
     public void registerService(String serviceName, String IPAddress, int port, String protocol) throws IOException {
         String serviceInfoValue = buildServerDetailsEntry(IPAddress, port, protocol);
         etcdClient.put(serviceName, serviceInfoValue);
     }
 
+    /**
+     * Registers a service that should only stay listed while this process is alive: the entry
+     * is held by a lease of {@code ttlSeconds}, kept alive in the background, so it disappears
+     * about {@code ttlSeconds} after the process dies. Closing the result removes it at once.
+     */
+    public Closeable registerService(String serviceName, String IPAddress, int port, String protocol,
+                                     long ttlSeconds) throws IOException {
+        return etcdClient.putWithLease(serviceName, buildServerDetailsEntry(IPAddress, port, protocol), ttlSeconds);
+    }
+
     public static class ServiceDetails {
         private String IPAddress;
         private int port;
         private String protocol;
 
+        /** Parses a value written by {@link #buildServerDetailsEntry}. */
+        public static ServiceDetails fromEntry(String entry) {
+            return new ServiceDetails().fill(new JSONObject(entry));
+        }
+
+        private ServiceDetails fill(JSONObject serverDetailsJson) {
+            IPAddress = serverDetailsJson.get("ip").toString();
+            port = Integer.parseInt(serverDetailsJson.get("port").toString());
+            protocol = serverDetailsJson.get("protocol").toString();
+            return this;
+        }
+
         ServiceDetails populate(String serverResponse) {
             JSONObject serverResponseJSONObject = new JSONObject(serverResponse);
 
@@ -59,12 +99,7 @@ public class NameServiceClient {
                 byte[] serverDetailsBytes = Base64.getDecoder()
                         .decode(encodedValue.getBytes(StandardCharsets.UTF_8));
 
-                JSONObject serverDetailsJson = new JSONObject(new String(serverDetailsBytes, StandardCharsets.UTF_8));
-
-                IPAddress = serverDetailsJson.get("ip").toString();
-                port = Integer.parseInt(serverDetailsJson.get("port").toString());
-                protocol = serverDetailsJson.get("protocol").toString();
-                return this;
+                return fill(new JSONObject(new String(serverDetailsBytes, StandardCharsets.UTF_8)));
             }
             return null;
         }
@@ -0,0 +1,216 @@
+package uk.ac.westminster.ds.nameservice;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Which partition owns which account, shared by servers and clients through etcd.
+ * <p>
+ * Accounts hash into a fixed number of virtual buckets and each bucket is owned by one
+ * partition (a replica group). A new partition starts empty and buckets are then migrated to
+ * it one at a time, so only about 1/N of the accounts move. Maps are immutable; every change
+ * produces a new map with a higher {@link #version()}.
+ */
+public final class PartitionMap {
+
+    public static final int BUCKETS = 1024;
+    public static final String ETCD_KEY = "WalletService/config/partitions";
+    private static final int MAX_UPDATE_ATTEMPTS = 10;
+
+    private final long version;
+    private final int[] owners;                        // bucket -> partition
+    private final Map<Integer, List<Integer>> groups;  // partition -> replica ports
+
+    private PartitionMap(long version, int[] owners, Map<Integer, List<Integer>> groups) {
+        this.version = version;
+        this.owners = owners;
+        this.groups = groups;
+    }
+
+    /** Layout used when etcd holds no map yet: the original two replica groups. */
+    public static PartitionMap defaultMap() {
+        return initial(List.of(List.of(50051, 50052, 50053), List.of(50061, 50062, 50063)));
+    }
+
+    /**
+     * Spreads the buckets round-robin over partitions {@code 0..groups.size()-1}. With two
+     * partitions this is the same placement as the old {@code hashCode % 2} routing.
+     */
+    public static PartitionMap initial(List<List<Integer>> groups) {
+        if (groups.isEmpty()) throw new IllegalArgumentException("at least one partition is required");
+
+        int[] owners = new int[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            owners[b] = b % groups.size();
+        }
+        Map<Integer, List<Integer>> byId = new TreeMap<>();
+        for (int p = 0; p < groups.size(); p++) {
+            byId.put(p, List.copyOf(groups.get(p)));
+        }
+        return new PartitionMap(1, owners, Collections.unmodifiableMap(byId));
+    }
+
+    public static int bucketOf(String accountId) {
+        return Math.floorMod(accountId.hashCode(), BUCKETS);
+    }
+
+    public int partitionOf(String accountId) {
+        return owners[bucketOf(accountId)];
+    }
+
+    public int ownerOf(int bucket) {
+        return owners[bucket];
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public Map<Integer, List<Integer>> partitions() {
+        return groups;
+    }
+
+    /** @return the replica ports of {@code partition} */
+    public List<Integer> replicaPorts(int partition) {
+        List<Integer> ports = groups.get(partition);
+        if (ports == null) throw new IllegalArgumentException("Unknown partition " + partition);
+        return ports;
+    }
+
+    /** @return the buckets currently owned by {@code partition}, in ascending order */
+    public List<Integer> bucketsOf(int partition) {
+        List<Integer> out = new ArrayList<>();
+        for (int b = 0; b < BUCKETS; b++) {
+            if (owners[b] == partition) out.add(b);
+        }
+        return out;
+    }
+
+    /** Registers a new, empty partition; {@link #rebalanced()} says which buckets it should take. */
+    public PartitionMap withReplicaGroup(int partition, List<Integer> replicaPorts) {
+        if (groups.containsKey(partition)) throw new IllegalArgumentException("Partition " + partition + " already exists");
+
+        Map<Integer, List<Integer>> nextGroups = new TreeMap<>(groups);
+        nextGroups.put(partition, List.copyOf(replicaPorts));
+        return new PartitionMap(version + 1, owners.clone(), Collections.unmodifiableMap(nextGroups));
+    }
+
+    /**
+     * The layout to migrate towards: every partition owns {@code BUCKETS / N} buckets (give or
+     * take one). Partitions above their share hand over buckets from the top of their range,
+     * so only the buckets needed to even out ownership change hands; after adding one
+     * partition that is about 1/N of them.
+     */
+    public PartitionMap rebalanced() {
+        List<Integer> ids = new ArrayList<>(groups.keySet());
+        int n = ids.size();
+        Map<Integer, Integer> target = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            target.put(ids.get(i), BUCKETS / n + (i < BUCKETS % n ? 1 : 0));
+        }
+
+        int[] next = owners.clone();
+        List<Integer> spare = new ArrayList<>();
+        for (int p : ids) {
+            List<Integer> owned = bucketsOf(p);
+            for (int i = target.get(p); i < owned.size(); i++) {
+                spare.add(owned.get(i));
+            }
+        }
+        int s = 0;
+        for (int p : ids) {
+            for (int have = bucketsOf(p).size(); have < target.get(p); have++) {
+                next[spare.get(s++)] = p;
+            }
+        }
+        return new PartitionMap(version + 1, next, groups);
+    }
+
+    /** Reassigns one bucket, e.g. once its accounts have been migrated. */
+    public PartitionMap withOwner(int bucket, int partition) {
+        if (!groups.containsKey(partition)) throw new IllegalArgumentException("Unknown partition " + partition);
+
+        int[] next = owners.clone();
+        next[bucket] = partition;
+        return new PartitionMap(version + 1, next, groups);
+    }
+
+    public String toJson() {
+        JSONObject partitions = new JSONObject();
+        groups.forEach((p, ports) -> partitions.put(Integer.toString(p), new JSONArray(ports)));
+
+        return new JSONObject()
+                .put("version", version)
+                .put("buckets", new JSONArray(owners))
+                .put("partitions", partitions)
+                .toString();
+    }
+
+    public static PartitionMap fromJson(String json) {
+        JSONObject o = new JSONObject(json);
+
+        JSONArray buckets = o.getJSONArray("buckets");
+        if (buckets.length() != BUCKETS) {
+            throw new IllegalArgumentException("Expected " + BUCKETS + " buckets, got " + buckets.length());
+        }
+        int[] owners = new int[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            owners[b] = buckets.getInt(b);
+        }
+
+        Map<Integer, List<Integer>> groups = new TreeMap<>();
+        JSONObject partitions = o.getJSONObject("partitions");
+        for (String key : partitions.keySet()) {
+            JSONArray ports = partitions.getJSONArray(key);
+            List<Integer> list = new ArrayList<>();
+            for (int i = 0; i < ports.length(); i++) {
+                list.add(ports.getInt(i));
+            }
+            groups.put(Integer.parseInt(key), List.copyOf(list));
+        }
+        return new PartitionMap(o.getLong("version"), owners, Collections.unmodifiableMap(groups));
+    }
+
+    /** @return the map stored in etcd, or null if none has been stored yet */
+    public static PartitionMap load(EtcdClient etcd) throws IOException {
+        String value = etcd.getPrefix(ETCD_KEY).get(ETCD_KEY);
+        return value == null ? null : fromJson(value);
+    }
+
+    /**
+     * Replaces the stored map with {@code change} applied to it (null if none is stored yet).
+     * The write is an etcd transaction on the key's revision: if another writer stored a map in
+     * between, the new one is read and {@code change} applied again. {@code change} may throw to
+     * give up; if it returns its argument nothing is written.
+     *
+     * @return the map now stored
+     */
+    public static PartitionMap update(EtcdClient etcd, UnaryOperator<PartitionMap> change) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            EtcdClient.Versioned stored = etcd.getVersioned(ETCD_KEY);
+            PartitionMap current = stored.value() == null ? null : fromJson(stored.value());
+            PartitionMap next = change.apply(current);
+            if (next == current) return current;
+            if (etcd.putIfUnchanged(ETCD_KEY, next.toJson(), stored.modRevision())) return next;
+            if (attempt == MAX_UPDATE_ATTEMPTS) {
+                throw new IOException("partition map changed " + attempt + " times while being updated");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PartitionMap v" + version);
+        groups.forEach((p, ports) -> sb.append("\n  partition ").append(p)
+                .append(": ").append(bucketsOf(p).size()).append(" buckets, replicas ").append(ports));
+        return sb.toString();
+    }
+}
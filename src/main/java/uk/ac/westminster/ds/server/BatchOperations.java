@@ -0,0 +1,91 @@
+package uk.ac.westminster.ds.server;
+
+import uk.ac.westminster.ds.common.WalletProtocol;
+import uk.ac.westminster.ds.ewallet.grpc.Operation;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.store.BalanceTable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the operations of a {@code batchApply} call to an {@link AccountStore}.
+ * Callers hold the store locks of {@link WalletProtocol#accounts} for the whole batch.
+ */
+public final class BatchOperations {
+
+    private BatchOperations() {
+    }
+
+    public static boolean apply(AccountStore store, Operation op) {
+        return switch (op.getOpCase()) {
+            case CREATEACCOUNT -> store.createAccount(op.getCreateAccount().getAccountId());
+            case DEPOSIT -> store.deposit(op.getDeposit().getAccountId(), op.getDeposit().getAmount());
+            case WITHDRAW -> store.withdraw(op.getWithdraw().getAccountId(), op.getWithdraw().getAmount());
+            case TRANSFER -> store.transfer(
+                    op.getTransfer().getFromAccount(),
+                    op.getTransfer().getToAccount(),
+                    op.getTransfer().getAmount());
+            default -> false;
+        };
+    }
+
+    /**
+     * Dry-runs the operations in order against the current balances without changing the store.
+     *
+     * @return the index of the first operation that would fail, or -1 if all would succeed
+     */
+    public static int firstFailure(AccountStore store, List<Operation> ops) {
+        Map<String, Long> overlay = new HashMap<>();
+
+        for (int i = 0; i < ops.size(); i++) {
+            Operation op = ops.get(i);
+            boolean ok = switch (op.getOpCase()) {
+                case CREATEACCOUNT -> {
+                    String id = op.getCreateAccount().getAccountId();
+                    if (balance(store, overlay, id) != BalanceTable.MISSING) yield false;
+                    overlay.put(id, 0L);
+                    yield true;
+                }
+                case DEPOSIT -> credit(store, overlay,
+                        op.getDeposit().getAccountId(), op.getDeposit().getAmount());
+                case WITHDRAW -> debit(store, overlay,
+                        op.getWithdraw().getAccountId(), op.getWithdraw().getAmount());
+                case TRANSFER -> {
+                    String from = op.getTransfer().getFromAccount();
+                    String to = op.getTransfer().getToAccount();
+                    double amount = op.getTransfer().getAmount();
+                    if (balance(store, overlay, to) == BalanceTable.MISSING) yield false;
+                    yield debit(store, overlay, from, amount) && credit(store, overlay, to, amount);
+                }
+                default -> false;
+            };
+            if (!ok) return i;
+        }
+        return -1;
+    }
+
+    private static long balance(AccountStore store, Map<String, Long> overlay, String id) {
+        Long v = overlay.get(id);
+        return v != null ? v : store.getBalanceMinor(id);
+    }
+
+    private static boolean credit(AccountStore store, Map<String, Long> overlay, String id, double amount) {
+        if (!(amount >= 0)) return false;
+        long bal = balance(store, overlay, id);
+        if (bal == BalanceTable.MISSING) return false;
+        overlay.put(id, bal + AccountStore.toMinor(amount));
+        return true;
+    }
+
+    private static boolean debit(AccountStore store, Map<String, Long> overlay, String id, double amount) {
+        if (!(amount >= 0)) return false;
+        long bal = balance(store, overlay, id);
+        long minor = AccountStore.toMinor(amount);
+        // Funds held by prepared cross-partition transfers cannot be spent
+        if (bal == BalanceTable.MISSING || bal - store.reservedMinor(id) < minor) return false;
+        overlay.put(id, bal - minor);
+        return true;
+    }
+}
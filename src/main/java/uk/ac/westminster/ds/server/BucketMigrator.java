@@ -0,0 +1,236 @@
+package uk.ac.westminster.ds.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.common.WalletProtocol;
+import uk.ac.westminster.ds.ewallet.grpc.*;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.store.BalanceTable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves one bucket of accounts from this partition (the source leader) to another partition
+ * while both keep serving traffic:
+ * <ol>
+ *     <li>start recording writes to the bucket, then copy every account in it to the
+ *     destination leader;</li>
+ *     <li>send the accounts written meanwhile again, until few enough are left;</li>
+ *     <li>freeze the bucket, wait for in-flight writes, send the last written accounts;</li>
+ *     <li>flip ownership in the partition map (etcd, then the destination, then here) and
+ *     release the frozen writers, which are now redirected;</li>
+ *     <li>delete the moved accounts here.</li>
+ * </ol>
+ * Imports are replicated log entries on the destination and overwrite whole balances, so
+ * sending an account twice is harmless. If anything fails before the flip the bucket simply
+ * stays here.
+ */
+public class BucketMigrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(BucketMigrator.class);
+
+    private static final int CHUNK = 1000;          // accounts per import / drop entry
+    private static final int MAX_COPY_ROUNDS = 10;
+    private static final int FREEZE_THRESHOLD = 100; // written accounts left to send while frozen
+    private static final long RPC_DEADLINE_MS = 10_000;
+
+    private final AccountStore store;
+    private final ReplicationLog log;
+    private final StorePersistence persistence;
+    private final QuorumReplicator replicator;
+    private final PartitionOwnership ownership;
+    private final ReplicationChannels channels;
+    private final NameServiceClient ns;
+    private final String serviceName;
+    private final AtomicBoolean isLeader;
+
+    public BucketMigrator(AccountStore store,
+                          ReplicationLog log,
+                          StorePersistence persistence,
+                          QuorumReplicator replicator,
+                          PartitionOwnership ownership,
+                          ReplicationChannels channels,
+                          NameServiceClient ns,
+                          String serviceName,
+                          AtomicBoolean isLeader) {
+        this.store = store;
+        this.log = log;
+        this.persistence = persistence;
+        this.replicator = replicator;
+        this.ownership = ownership;
+        this.channels = channels;
+        this.ns = ns;
+        this.serviceName = serviceName;
+        this.isLeader = isLeader;
+    }
+
+    /* ---------------- source side ---------------- */
+
+    public synchronized MigrateBucketResponse migrate(int bucket, int target) {
+        if (!isLeader.get()) return failed(WalletProtocol.NOT_LEADER);
+
+        int self = ownership.partitionId();
+        PartitionMap map = ownership.map();
+
+        if (bucket < 0 || bucket >= PartitionMap.BUCKETS) return failed("No such bucket " + bucket);
+        if (map.ownerOf(bucket) != self) return failed("Bucket " + bucket + " is not owned by partition " + self);
+        if (target == self || !map.partitions().containsKey(target)) return failed("Invalid target partition " + target);
+
+        MigrationServiceGrpc.MigrationServiceBlockingStub dest;
+        try {
+            NameServiceClient.ServiceDetails leader = ns.lookupService(serviceName + "/p" + target);
+            if (leader == null) return failed("No leader registered for partition " + target);
+            dest = MigrationServiceGrpc.newBlockingStub(channels.channelFor(leader.getPort()));
+        } catch (Exception e) {
+            return failed("Could not find the leader of partition " + target + ": " + e.getMessage());
+        }
+
+        logger.atInfo().addKeyValue("bucket", bucket).addKeyValue("target", target).log("Migrating bucket");
+        ownership.startTracking(bucket);
+        boolean flipped = false;
+        try {
+            // Writers that checked ownership before tracking started are done after this
+            store.lockAll().close();
+
+            List<String> ids = accountsIn(bucket);
+            send(dest, ids);
+
+            List<String> written = ownership.drainDirty();
+            for (int round = 0; round < MAX_COPY_ROUNDS && written.size() > FREEZE_THRESHOLD; round++) {
+                // Writers mark an account under its lock before changing it: let them finish,
+                // or the old balance is sent and the account is not marked again
+                store.lockAll().close();
+                send(dest, written);
+                written = ownership.drainDirty();
+            }
+
+            ownership.freeze();
+            // Every write that got past the check before the freeze has now finished
+            store.lockAll().close();
+
+            ids = accountsIn(bucket);
+            Set<String> inTransactions = store.accountsInTransactions();
+            for (String id : ids) {
+                if (inTransactions.contains(id)) {
+                    return failed("Account " + id + " has a transfer in progress; try again later");
+                }
+            }
+            written.addAll(ownership.drainDirty());
+            send(dest, written);
+
+            // Flip: etcd is the source of truth, the destination is told directly so it can
+            // serve the bucket before its watch fires. The write only lands on the map it was
+            // computed from, so a concurrent migration or partition add is never overwritten.
+            PartitionMap next = PartitionMap.update(ns.getEtcdClient(), stored -> {
+                PartitionMap current = stored != null && stored.version() >= map.version() ? stored : ownership.map();
+                if (current.ownerOf(bucket) != self) {
+                    throw new IllegalStateException("bucket " + bucket + " changed owner during migration");
+                }
+                return current.withOwner(bucket, target);
+            });
+            flipped = true;
+            try {
+                dest.withDeadlineAfter(RPC_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                        .installPartitionMap(PartitionMapUpdate.newBuilder().setJson(next.toJson()).build());
+            } catch (RuntimeException e) {
+                logger.atWarn().addKeyValue("bucket", bucket).addKeyValue("target", target)
+                        .log("Target will pick up map v{} from etcd: {}", next.version(), e.getMessage());
+            }
+            ownership.install(next);
+            ownership.finish();
+
+            drop(ids);
+            logger.atInfo().addKeyValue("bucket", bucket).addKeyValue("target", target)
+                    .log("Bucket moved ({} accounts)", ids.size());
+            return MigrateBucketResponse.newBuilder()
+                    .setOk(true)
+                    .setAccountsMoved(ids.size())
+                    .setMessage("Bucket " + bucket + " moved to partition " + target)
+                    .build();
+        } catch (Exception e) {
+            logger.atWarn().addKeyValue("bucket", bucket).addKeyValue("target", target).setCause(e)
+                    .log("Migration failed");
+            return failed((flipped ? "Bucket moved but cleanup failed: " : "Migration failed: ") + e.getMessage());
+        } finally {
+            ownership.finish();
+        }
+    }
+
+    private List<String> accountsIn(int bucket) {
+        List<String> ids = new ArrayList<>();
+        store.forEachAccount((id, balance) -> {
+            if (PartitionMap.bucketOf(id) == bucket) ids.add(id);
+        });
+        return ids;
+    }
+
+    private void send(MigrationServiceGrpc.MigrationServiceBlockingStub dest, Collection<String> ids) {
+        AccountImport.Builder chunk = AccountImport.newBuilder();
+        for (String id : ids) {
+            long balance = store.getBalanceMinor(id);
+            if (balance == BalanceTable.MISSING) continue;
+
+            chunk.addAccounts(AccountState.newBuilder().setAccountId(id).setBalanceMinor(balance));
+            if (chunk.getAccountsCount() == CHUNK) {
+                importChunk(dest, chunk.build());
+                chunk.clear();
+            }
+        }
+        if (chunk.getAccountsCount() > 0) importChunk(dest, chunk.build());
+    }
+
+    private static void importChunk(MigrationServiceGrpc.MigrationServiceBlockingStub dest, AccountImport chunk) {
+        Ack ack = dest.withDeadlineAfter(RPC_DEADLINE_MS, TimeUnit.MILLISECONDS).importAccounts(chunk);
+        if (!ack.getOk()) throw new IllegalStateException("destination rejected the import");
+    }
+
+    private void drop(List<String> ids) {
+        for (int from = 0; from < ids.size(); from += CHUNK) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + CHUNK));
+            String[] accounts = chunk.toArray(new String[0]);
+            if (!replicate("dropAccounts", accounts,
+                    () -> chunk.forEach(store::removeAccount),
+                    LogEntry.newBuilder().setDropAccounts(AccountDrop.newBuilder().addAllAccountIds(chunk)))) {
+                throw new IllegalStateException("dropping moved accounts did not reach a quorum");
+            }
+        }
+    }
+
+    /* ---------------- destination side ---------------- */
+
+    /** Applies and replicates accounts sent by a source leader. */
+    public boolean importAccounts(AccountImport request) {
+        if (!isLeader.get()) return false;
+
+        String[] accounts = request.getAccountsList().stream().map(AccountState::getAccountId).toArray(String[]::new);
+        // Not acknowledged unless a quorum has it, so the source never flips onto a copy a failover could lose
+        return replicate("importAccounts", accounts,
+                () -> request.getAccountsList().forEach(a -> store.importAccountMinor(a.getAccountId(), a.getBalanceMinor())),
+                LogEntry.newBuilder().setImportAccounts(request));
+    }
+
+    /**
+     * Same write path as client writes, minus the ownership check: these buckets are in transit.
+     *
+     * @return false if the entry did not reach a quorum within the deadline
+     */
+    private boolean replicate(String op, String[] accounts, Runnable mutation, LogEntry.Builder entry) {
+        long seq;
+        try (AccountStore.Locked ignored = store.lock(accounts)) {
+            mutation.run();
+            seq = log.append(entry);
+        }
+        return persistence.awaitDurable() && replicator.awaitQuorum(op, seq);
+    }
+
+    private static MigrateBucketResponse failed(String message) {
+        return MigrateBucketResponse.newBuilder().setOk(false).setMessage(message).build();
+    }
+}
@@ -0,0 +1,369 @@
+package uk.ac.westminster.ds.server;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.ewallet.grpc.LogAck;
+import uk.ac.westminster.ds.ewallet.grpc.LogBatch;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+import uk.ac.westminster.ds.ewallet.grpc.ReplicationServiceGrpc;
+import uk.ac.westminster.ds.ewallet.grpc.SnapshotChunk;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Ships the leader's log to one follower over a long-lived streamLog call.
+ * A sender thread batches whatever is in the log past {@code nextSeq}, with the seq and term of
+ * the entry before them; acks from the follower advance {@code matchSeq}. If the stream breaks
+ * it is reopened and the follower's first ack tells us where to resume. That ack only says how
+ * far the follower's log goes, not that it matches ours, so it does not count towards the
+ * quorum until a batch has been checked against it. A follower that needs entries the log no
+ * longer retains, or whose log has diverged from ours, is first sent a snapshot.
+ * <p>
+ * Everything sent carries the leader's election term. A follower that has seen a newer term
+ * answers with it instead of applying the batch; this leader has then been replaced, and
+ * {@code onDeposed} is told. A follower whose log goes on past ours refuses us too, as we lack
+ * entries it holds; {@code onFollowerAhead} is told, and this leader should step down.
+ */
+class FollowerLink {
+
+    private static final Logger logger = LoggerFactory.getLogger(FollowerLink.class);
+
+    private static final long RECONNECT_DELAY_MS = 500;
+    private static final long POLL_MS = 100;
+    private static final int SNAPSHOT_CHUNK_BYTES = 512 * 1024;
+    private static final long SNAPSHOT_TIMEOUT_MINUTES = 10;
+    private static final int ACK_TIMINGS = 1024; // unacknowledged batches whose send time is kept
+
+    private static final Metrics.Family<Metrics.Histogram> ACK_LATENCY = Metrics.latency(
+            "ewallet_replication_ack_seconds", "Time from sending a log batch to a follower to its ack", "follower");
+
+    private final int port;
+    private final ReplicationChannels channels;
+    private final ReplicationLog log;
+    private final StorePersistence persistence;
+    private final int maxBatch;
+    private final int maxInFlight;
+    private final Runnable onAck;
+    private final LongConsumer onDeposed;
+    private final Runnable onFollowerAhead;
+    private final Metrics.Histogram ackLatency;
+
+    private volatile boolean running;
+    private volatile long term;
+    private Thread sender;
+
+    // Guarded by this
+    private StreamObserver<LogBatch> stream;
+    private long lastOpenMs;
+    private boolean handshakeDone;
+    private long nextSeq;
+    private long ackedSeq;          // highest seq the follower reported; bounds what is in flight
+    private boolean snapshotNeeded; // the follower's log diverged from ours
+    private volatile long matchSeq; // highest seq known to match our log
+    // Last seq and send time of each unacknowledged batch, oldest at ackHead; the oldest is
+    // dropped when full
+    private final long[] sentSeq = new long[ACK_TIMINGS];
+    private final long[] sentNanos = new long[ACK_TIMINGS];
+    private long ackHead;
+    private long ackTail;
+
+    FollowerLink(int port,
+                 ReplicationChannels channels,
+                 ReplicationLog log,
+                 StorePersistence persistence,
+                 int maxBatch,
+                 int maxInFlight,
+                 Runnable onAck,
+                 LongConsumer onDeposed,
+                 Runnable onFollowerAhead) {
+        this.port = port;
+        this.channels = channels;
+        this.log = log;
+        this.persistence = persistence;
+        this.maxBatch = maxBatch;
+        this.maxInFlight = maxInFlight;
+        this.onAck = onAck;
+        this.onDeposed = onDeposed;
+        this.onFollowerAhead = onFollowerAhead;
+        this.ackLatency = ACK_LATENCY.labels(String.valueOf(port));
+    }
+
+    int port() {
+        return port;
+    }
+
+    long matchSeq() {
+        return matchSeq;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    synchronized void start(long term) {
+        if (running) return;
+        this.term = term;
+        running = true;
+        sender = new Thread(this::run, "replication-" + port);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = sender;
+            sender = null;
+            closeStream();
+            notifyAll();
+        }
+        if (t != null) t.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                StreamObserver<LogBatch> out;
+                long from;
+                boolean resync;
+                synchronized (this) {
+                    if (stream == null) {
+                        long backoff = lastOpenMs + RECONNECT_DELAY_MS - System.currentTimeMillis();
+                        if (backoff > 0) {
+                            wait(backoff);
+                            continue;
+                        }
+                        openStream();
+                    }
+                    // Wait for the follower to report its position, and keep the
+                    // number of unacknowledged entries bounded.
+                    while (running && stream != null
+                            && (!handshakeDone || nextSeq - ackedSeq > maxInFlight)) {
+                        wait(POLL_MS);
+                    }
+                    if (!running || stream == null) continue;
+                    out = stream;
+                    from = nextSeq;
+                    resync = snapshotNeeded;
+                }
+
+                if (resync || from < log.firstSeq()) {
+                    installSnapshot(from, resync ? "Follower's log diverged from ours" : "Follower needs an entry no longer retained");
+                    continue;
+                }
+
+                // An empty batch doubles as a heartbeat carrying the leader's position
+                List<LogEntry> entries = log.read(from, maxBatch, POLL_MS);
+                long prevTerm = log.termAt(from - 1);
+                long lastSeq = log.lastSeq();
+
+                synchronized (this) {
+                    // A resend request may have moved nextSeq while we were reading
+                    if (out != stream || from != nextSeq) continue;
+                    out.onNext(LogBatch.newBuilder()
+                            .addAllEntries(entries)
+                            .setLeaderLastSeq(lastSeq)
+                            .setLeaderLastTerm(log.termAt(lastSeq))
+                            .setTerm(term)
+                            .setPrevSeq(from - 1)
+                            .setPrevTerm(prevTerm)
+                            .build());
+                    nextSeq = from + entries.size();
+                    if (!entries.isEmpty()) sent(nextSeq - 1);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.atWarn().addKeyValue("follower", port).log("Replication failed: {}", e.getMessage());
+                synchronized (this) {
+                    closeStream();
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a snapshot covering at least {@code from - 1} to the follower, memory-mapping the
+     * file and handing slices of it to gRPC without copying, and waits for the follower to
+     * install it. The log stream then resumes after the snapshot's seq.
+     */
+    private void installSnapshot(long from, String reason) throws Exception {
+        Path snapshot = persistence.snapshotCovering(from - 1);
+        logger.atInfo().addKeyValue("follower", port).addKeyValue("seq", from)
+                .log("{}; sending snapshot {}", reason, snapshot.getFileName());
+
+        CompletableFuture<LogAck> result = new CompletableFuture<>();
+        Object readyLock = new Object();
+
+        ClientResponseObserver<SnapshotChunk, LogAck> responses = new ClientResponseObserver<>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<SnapshotChunk> requestStream) {
+                requestStream.setOnReadyHandler(() -> {
+                    synchronized (readyLock) {
+                        readyLock.notifyAll();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(LogAck ack) {
+                result.complete(ack);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.completeExceptionally(new IllegalStateException("no ack for snapshot"));
+            }
+        };
+
+        ClientCallStreamObserver<SnapshotChunk> requests = (ClientCallStreamObserver<SnapshotChunk>)
+                ReplicationServiceGrpc.newStub(channels.channelFor(port)).installSnapshot(responses);
+
+        try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer file = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            for (int pos = 0; pos < file.limit(); pos += SNAPSHOT_CHUNK_BYTES) {
+                // Respect flow control so only a few chunks are buffered at a time
+                synchronized (readyLock) {
+                    while (!requests.isReady() && !result.isDone()) {
+                        readyLock.wait(POLL_MS);
+                    }
+                }
+                if (result.isDone()) break;
+
+                int len = Math.min(SNAPSHOT_CHUNK_BYTES, file.limit() - pos);
+                requests.onNext(SnapshotChunk.newBuilder()
+                        .setData(UnsafeByteOperations.unsafeWrap(file.slice(pos, len)))
+                        .setTerm(term)
+                        .build());
+            }
+            requests.onCompleted();
+
+            LogAck ack = result.get(SNAPSHOT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            synchronized (this) {
+                nextSeq = ack.getAppliedSeq() + 1;
+                ackedSeq = ack.getAppliedSeq();
+                matchSeq = ack.getAppliedSeq();
+                snapshotNeeded = false;
+                notifyAll();
+            }
+            onAck.run();
+            logger.atInfo().addKeyValue("follower", port).addKeyValue("seq", ack.getAppliedSeq())
+                    .log("Follower installed snapshot");
+        } catch (Exception e) {
+            requests.cancel("snapshot transfer failed", e);
+            throw e;
+        }
+    }
+
+    private void sent(long lastSeq) {
+        if (ackTail - ackHead == ACK_TIMINGS) ackHead++;
+        int i = (int) (ackTail++ % ACK_TIMINGS);
+        sentSeq[i] = lastSeq;
+        sentNanos[i] = System.nanoTime();
+    }
+
+    /** Records the ack latency of every batch that {@code appliedSeq} covers. */
+    private void acked(long appliedSeq) {
+        while (ackHead < ackTail && sentSeq[(int) (ackHead % ACK_TIMINGS)] <= appliedSeq) {
+            ackLatency.observeSince(sentNanos[(int) (ackHead++ % ACK_TIMINGS)]);
+        }
+    }
+
+    private void openStream() {
+        lastOpenMs = System.currentTimeMillis();
+        handshakeDone = false;
+        ackHead = ackTail; // batches sent on the old stream are resent or never acked
+        AckObserver acks = new AckObserver();
+        stream = ReplicationServiceGrpc.newStub(channels.channelFor(port)).streamLog(acks);
+        acks.requests = stream;
+    }
+
+    private void closeStream() {
+        if (stream != null) {
+            try {
+                stream.onCompleted();
+            } catch (Exception ignored) {
+            }
+            stream = null;
+        }
+    }
+
+    private class AckObserver implements StreamObserver<LogAck> {
+
+        // The request side of the call these acks belong to; set right after the call starts
+        private StreamObserver<LogBatch> requests;
+
+        @Override
+        public void onNext(LogAck ack) {
+            synchronized (FollowerLink.this) {
+                if (requests != stream) return; // ack from a stream we already replaced
+                if (ack.getTerm() > term) {
+                    // Nothing was applied; reconnecting only gets the same answer until we step down
+                    logger.atWarn().addKeyValue("follower", port)
+                            .log("Follower has seen term {}, newer than this leader's {}", ack.getTerm(), term);
+                    closeStream();
+                    FollowerLink.this.notifyAll();
+                } else if (ack.getAhead()) {
+                    logger.atWarn().addKeyValue("follower", port)
+                            .log("Follower's log goes on past ours to {}; it holds entries we lack", ack.getAppliedSeq());
+                    closeStream();
+                    FollowerLink.this.notifyAll();
+                } else {
+                    if (ack.getResend()) {
+                        nextSeq = ack.getAppliedSeq() + 1;
+                        handshakeDone = true;
+                        ackHead = ackTail;
+                        snapshotNeeded = ack.getDiverged();
+                    } else {
+                        // Applied after its log was checked against ours
+                        acked(ack.getAppliedSeq());
+                        matchSeq = ack.getAppliedSeq();
+                    }
+                    ackedSeq = ack.getAppliedSeq();
+                    FollowerLink.this.notifyAll();
+                }
+            }
+            if (ack.getTerm() > term) {
+                onDeposed.accept(ack.getTerm());
+            } else if (ack.getAhead()) {
+                onFollowerAhead.run();
+            } else {
+                onAck.run();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (running) {
+                logger.atWarn().addKeyValue("follower", port).log("Replication stream closed: {}", t.getMessage());
+            }
+            onCompleted();
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (FollowerLink.this) {
+                if (requests == stream) stream = null;
+                FollowerLink.this.notifyAll();
+            }
+        }
+    }
+}
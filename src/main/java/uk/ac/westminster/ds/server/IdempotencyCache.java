@@ -0,0 +1,128 @@
+package uk.ac.westminster.ds.server;
+
+import com.google.protobuf.ByteString;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Responses to recent client requests that carried an idempotency key, so a retried request
+ * is answered with the original response instead of being applied twice.
+ * <p>
+ * The leader claims a key before running the request; duplicates arriving meanwhile wait for
+ * the original to finish. Successful writes carry their key and response in the replication
+ * log, so followers (and a replica recovering from its write-ahead log) fill in the same
+ * entries and a new leader still recognises retries. Entries are kept for {@code ttlMs} and
+ * at most {@code maxEntries} are kept, oldest evicted first.
+ */
+public class IdempotencyCache {
+
+    private record Entry(CompletableFuture<ByteString> response, long createdMs) {
+    }
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(); // oldest first
+
+    public IdempotencyCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Claims {@code requestId} for a request about to run.
+     *
+     * @return null if the caller should run the request and then {@link #complete} or
+     * {@link #abandon} it, otherwise the (possibly still pending) response of the original
+     */
+    public synchronized CompletableFuture<ByteString> claim(String requestId) {
+        long now = System.currentTimeMillis();
+        evict(now);
+
+        Entry e = entries.get(requestId);
+        if (e != null) return e.response();
+
+        entries.put(requestId, new Entry(new CompletableFuture<>(), now));
+        evict(now);
+        return null;
+    }
+
+    /** Records the response to {@code requestId}, releasing any duplicates waiting for it. */
+    public synchronized void complete(String requestId, ByteString response) {
+        complete(requestId, response, System.currentTimeMillis());
+    }
+
+    private void complete(String requestId, ByteString response, long createdMs) {
+        Entry e = entries.get(requestId);
+        if (e == null) {
+            e = new Entry(new CompletableFuture<>(), createdMs);
+            entries.put(requestId, e);
+            evict(System.currentTimeMillis());
+        }
+        e.response().complete(response);
+    }
+
+    /** Forgets a claimed request that failed without a response; waiting duplicates fail too. */
+    public synchronized void abandon(String requestId, Throwable cause) {
+        Entry e = entries.get(requestId);
+        if (e != null && !e.response().isDone()) {
+            entries.remove(requestId);
+            e.response().completeExceptionally(cause);
+        }
+    }
+
+    private void evict(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (entries.size() <= maxEntries && now - e.createdMs() < ttlMs) break;
+            it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Writes the completed entries, for a snapshot. */
+    public void writeTo(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, Entry>> done = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().response().isDone() && !e.getValue().response().isCompletedExceptionally()) {
+                    done.add(e);
+                }
+            }
+        }
+
+        out.writeInt(done.size());
+        for (Map.Entry<String, Entry> e : done) {
+            byte[] response = e.getValue().response().join().toByteArray();
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue().createdMs());
+            out.writeInt(response.length);
+            out.write(response);
+        }
+    }
+
+    /** Replaces the contents with entries written by {@link #writeTo}. */
+    public synchronized void readFrom(DataInputStream in) throws IOException {
+        entries.clear();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String requestId = in.readUTF();
+            long createdMs = in.readLong();
+            byte[] response = new byte[in.readInt()];
+            in.readFully(response);
+            complete(requestId, ByteString.copyFrom(response), createdMs);
+        }
+        evict(System.currentTimeMillis());
+    }
+}
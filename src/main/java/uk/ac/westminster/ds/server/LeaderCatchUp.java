@@ -0,0 +1,141 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.StatusRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.ewallet.grpc.LogBatch;
+import uk.ac.westminster.ds.ewallet.grpc.LogPosition;
+import uk.ac.westminster.ds.ewallet.grpc.LogPositionRequest;
+import uk.ac.westminster.ds.ewallet.grpc.ReadLogRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run by a newly elected leader before it takes writes. Replicas join the election once caught
+ * up, but an entry can still reach a quorum without the replica that ends up leading, so the
+ * leader asks the others where their logs end and fetches what it is missing from the most
+ * advanced one. An acknowledged entry is on a quorum, and so on at least one of the replicas
+ * that answer.
+ * <p>
+ * The leader must not lead if fewer than a quorum answer, if its own log holds entries the most
+ * advanced one does not, or if it has been replaced meanwhile.
+ */
+public class LeaderCatchUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaderCatchUp.class);
+
+    private final ReplicationChannels channels;
+    private final ReplicationServiceImpl replication;
+    private final ReplicationLog log;
+    private final StorePersistence persistence;
+    private final List<Integer> peers;
+    private final int quorum;
+    private final long deadlineMs;
+    private final int maxBatch;
+
+    public LeaderCatchUp(ReplicationChannels channels,
+                         ReplicationServiceImpl replication,
+                         ReplicationLog log,
+                         StorePersistence persistence,
+                         int myPort,
+                         List<Integer> replicaPorts,
+                         int quorum,
+                         long deadlineMs,
+                         int maxBatch) {
+        this.channels = channels;
+        this.replication = replication;
+        this.log = log;
+        this.persistence = persistence;
+        this.peers = replicaPorts.stream().filter(p -> p != myPort).toList();
+        this.quorum = quorum;
+        this.deadlineMs = deadlineMs;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Brings this replica's log up to the most advanced log among a quorum, as leader of
+     * {@code term}.
+     *
+     * @return false if this replica must not lead
+     */
+    public boolean run(long term) {
+        if (replication.diverged()) {
+            logger.atWarn().addKeyValue("term", term).log("Store still holds dropped entries, not leading");
+            return false;
+        }
+
+        List<CompletableFuture<LogPosition>> asked = new ArrayList<>();
+        for (int peer : peers) {
+            asked.add(CompletableFuture.supplyAsync(() -> channels.blockingStub(peer)
+                    .withDeadlineAfter(deadlineMs, TimeUnit.MILLISECONDS)
+                    .logPosition(LogPositionRequest.newBuilder().setTerm(term).build())));
+        }
+        int answered = 1; // ourselves
+        int bestPeer = -1;
+        LogPosition best = LogPosition.newBuilder().setLastSeq(log.lastSeq()).setLastTerm(log.lastTerm()).build();
+        LogPosition mine = best;
+        for (int i = 0; i < peers.size(); i++) {
+            LogPosition position;
+            try {
+                position = asked.get(i).join();
+            } catch (Exception e) {
+                continue; // down or unreachable
+            }
+            if (position.getTerm() > term) {
+                logger.atWarn().addKeyValue("term", term).log("Replaced by the leader of term {}, not leading", position.getTerm());
+                return false;
+            }
+            answered++;
+            if (moreAdvanced(position, best)) {
+                best = position;
+                bestPeer = peers.get(i);
+            }
+        }
+        if (answered < quorum) {
+            logger.atWarn().addKeyValue("term", term).log("Only {} of {} replicas answered, not leading", answered, quorum);
+            return false;
+        }
+        if (bestPeer < 0) return true;
+        if (best.getLastSeq() <= mine.getLastSeq()) {
+            // Its last entry has a newer term than ours, so our tail came from a replaced leader
+            logger.atWarn().addKeyValue("term", term).addKeyValue("replica", bestPeer)
+                    .log("Our log ending at {} diverges from a more advanced one, not leading", mine.getLastSeq());
+            return false;
+        }
+
+        logger.atInfo().addKeyValue("term", term).addKeyValue("replica", bestPeer)
+                .log("Fetching entries {} to {} before leading", mine.getLastSeq() + 1, best.getLastSeq());
+        try {
+            while (log.lastSeq() < best.getLastSeq()) {
+                LogBatch batch = channels.blockingStub(bestPeer)
+                        .withDeadlineAfter(deadlineMs, TimeUnit.MILLISECONDS)
+                        .readLog(ReadLogRequest.newBuilder()
+                                .setTerm(term)
+                                .setFromSeq(log.lastSeq() + 1)
+                                .setMaxEntries(maxBatch)
+                                .build());
+                if (batch.getEntriesCount() == 0 || !replication.appendFetched(batch)) {
+                    logger.atWarn().addKeyValue("term", term).addKeyValue("replica", bestPeer)
+                            .log("Could not take entries after {} from it, not leading", log.lastSeq());
+                    return false;
+                }
+            }
+        } catch (StatusRuntimeException e) {
+            logger.atWarn().addKeyValue("term", term).addKeyValue("replica", bestPeer)
+                    .log("Fetching entries failed, not leading: {}", e.getStatus());
+            return false;
+        }
+        return persistence.awaitDurable();
+    }
+
+    /** Compares by the term of the last entry where both are known, then by last seq. */
+    private static boolean moreAdvanced(LogPosition a, LogPosition b) {
+        if (a.getLastTerm() != 0 && b.getLastTerm() != 0 && a.getLastTerm() != b.getLastTerm()) {
+            return a.getLastTerm() > b.getLastTerm();
+        }
+        return a.getLastSeq() > b.getLastSeq();
+    }
+}
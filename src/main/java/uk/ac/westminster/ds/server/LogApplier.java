@@ -0,0 +1,76 @@
+package uk.ac.westminster.ds.server;
+
+import uk.ac.westminster.ds.common.WalletProtocol;
+import uk.ac.westminster.ds.ewallet.grpc.AccountState;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+import uk.ac.westminster.ds.ewallet.grpc.TxStep;
+import uk.ac.westminster.ds.store.AccountStore;
+
+/**
+ * Applies a replicated log entry to the local {@link AccountStore}.
+ * Entries only ever describe writes that succeeded on the leader. The response the leader gave
+ * is recorded in the {@link IdempotencyCache} so this replica answers retries the same way.
+ */
+public class LogApplier {
+
+    private final AccountStore store;
+    private final IdempotencyCache dedup;
+
+    public LogApplier(AccountStore store, IdempotencyCache dedup) {
+        this.store = store;
+        this.dedup = dedup;
+    }
+
+    /** The accounts an entry touches, i.e. the store locks to hold while applying it. */
+    public static String[] accounts(LogEntry entry) {
+        return switch (entry.getOpCase()) {
+            case CREATEACCOUNT -> new String[]{entry.getCreateAccount().getAccountId().trim()};
+            case DEPOSIT -> new String[]{entry.getDeposit().getAccountId().trim()};
+            case WITHDRAW -> new String[]{entry.getWithdraw().getAccountId().trim()};
+            case TRANSFER -> new String[]{
+                    entry.getTransfer().getFromAccount().trim(),
+                    entry.getTransfer().getToAccount().trim()};
+            case BATCH -> WalletProtocol.accounts(entry.getBatch().getOperationsList());
+            case IMPORTACCOUNTS -> entry.getImportAccounts().getAccountsList().stream()
+                    .map(AccountState::getAccountId)
+                    .toArray(String[]::new);
+            case DROPACCOUNTS -> entry.getDropAccounts().getAccountIdsList().toArray(new String[0]);
+            case PREPARETX -> new String[]{entry.getPrepareTx().getAccount()};
+            case COMMITTX -> new String[]{entry.getCommitTx().getAccount()};
+            case ABORTTX -> new String[]{entry.getAbortTx().getAccount()};
+            case FORGETTX -> new String[0];
+            default -> throw new IllegalArgumentException("Unknown log entry op: " + entry.getOpCase());
+        };
+    }
+
+    public void apply(LogEntry entry) {
+        switch (entry.getOpCase()) {
+            case CREATEACCOUNT -> store.createAccount(entry.getCreateAccount().getAccountId().trim());
+            case DEPOSIT -> store.deposit(
+                    entry.getDeposit().getAccountId().trim(),
+                    entry.getDeposit().getAmount());
+            case WITHDRAW -> store.withdraw(
+                    entry.getWithdraw().getAccountId().trim(),
+                    entry.getWithdraw().getAmount());
+            case TRANSFER -> store.transfer(
+                    entry.getTransfer().getFromAccount().trim(),
+                    entry.getTransfer().getToAccount().trim(),
+                    entry.getTransfer().getAmount());
+            case BATCH -> entry.getBatch().getOperationsList().forEach(op -> BatchOperations.apply(store, op));
+            case IMPORTACCOUNTS -> entry.getImportAccounts().getAccountsList()
+                    .forEach(a -> store.importAccountMinor(a.getAccountId(), a.getBalanceMinor()));
+            case DROPACCOUNTS -> entry.getDropAccounts().getAccountIdsList().forEach(store::removeAccount);
+            case PREPARETX -> store.prepareTx(entry.getPrepareTx().getTxId(), hold(entry.getPrepareTx()));
+            case COMMITTX -> store.commitTx(entry.getCommitTx().getTxId());
+            case ABORTTX -> store.abortTx(entry.getAbortTx().getTxId());
+            case FORGETTX -> store.forgetTx(entry.getForgetTx());
+            default -> throw new IllegalArgumentException("Unknown log entry op: " + entry.getOpCase());
+        }
+        if (!entry.getRequestId().isEmpty()) dedup.complete(entry.getRequestId(), entry.getResponse());
+    }
+
+    public static AccountStore.TxHold hold(TxStep step) {
+        return new AccountStore.TxHold(step.getAccount(), step.getAmountMinor(), step.getDebit(),
+                step.getPeerPartition(), step.getPeerAccount());
+    }
+}
@@ -0,0 +1,201 @@
+package uk.ac.westminster.ds.server;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics, rendered in the Prometheus text exposition format by
+ * {@link MetricsEndpoint}.
+ * <p>
+ * Each metric is a {@link Family} of children, one per combination of label values. Callers
+ * look a child up with {@link Family#labels} once (at startup, or the first time a label value
+ * is seen) and keep it; recording into a child only increments {@link LongAdder}s, so it neither
+ * allocates nor takes a lock. Gauges are sampled when the endpoint is scraped.
+ */
+public final class Metrics {
+
+    // Histogram bucket upper bounds in microseconds, 50 us to 10 s
+    private static final long[] LATENCY_BOUNDS_MICROS = {
+            50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+
+    private static final List<Family<?>> FAMILIES = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    public static Family<Counter> counter(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, Counter::new));
+    }
+
+    /** A histogram of durations; recorded in microseconds and exposed in seconds. */
+    public static Family<Histogram> latency(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "histogram", labelNames, Histogram::new));
+    }
+
+    public static Family<Gauge> gauge(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "gauge", labelNames, Gauge::new));
+    }
+
+    private static <T> Family<T> register(Family<T> family) {
+        FAMILIES.add(family);
+        return family;
+    }
+
+    /** All metrics in the text exposition format (version 0.0.4). */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family<?> family : FAMILIES) {
+            family.render(out);
+        }
+        return out.toString();
+    }
+
+    public static final class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Supplier<T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        /** The child for these label values (in the order the label names were given), created on first use. */
+        public T labels(String... values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels, got " + values.length);
+            }
+            return children.computeIfAbsent(List.of(values), k -> factory.get());
+        }
+
+        private void render(StringBuilder out) {
+            if (children.isEmpty()) return;
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            children.forEach((values, child) -> {
+                if (child instanceof Histogram h) {
+                    h.render(out, name, labelNames, values);
+                } else {
+                    sample(out, name, labelNames, values, null, null);
+                    out.append(child instanceof Counter c ? c.get() : ((Gauge) child).get()).append('\n');
+                }
+            });
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** A value read when the metrics are scraped. */
+    public static final class Gauge {
+        private volatile LongSupplier source = () -> 0;
+
+        public void set(LongSupplier source) {
+            this.source = source;
+        }
+
+        public long get() {
+            return source.getAsLong();
+        }
+    }
+
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BOUNDS_MICROS.length + 1]; // last is +Inf
+        private final LongAdder sumMicros = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeMicros(long micros) {
+            int i = 0;
+            while (i < LATENCY_BOUNDS_MICROS.length && micros > LATENCY_BOUNDS_MICROS[i]) i++;
+            buckets[i].increment();
+            sumMicros.add(micros);
+        }
+
+        /** Records the time since {@code startNanos}, a {@link System#nanoTime()} reading. */
+        public void observeSince(long startNanos) {
+            observeMicros(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+        }
+
+        private void render(StringBuilder out, String name, String[] labelNames, List<String> values) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < LATENCY_BOUNDS_MICROS.length ? seconds(LATENCY_BOUNDS_MICROS[i]) : "+Inf";
+                sample(out, name + "_bucket", labelNames, values, "le", le);
+                out.append(cumulative).append('\n');
+            }
+            sample(out, name + "_sum", labelNames, values, null, null);
+            out.append(seconds(sumMicros.sum())).append('\n');
+            sample(out, name + "_count", labelNames, values, null, null);
+            out.append(cumulative).append('\n');
+        }
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    /** Appends {@code name{labels} } (with a trailing space), adding one extra label if given. */
+    private static void sample(StringBuilder out, String name, String[] labelNames, List<String> values,
+                               String extraName, String extraValue) {
+        out.append(name);
+        if (labelNames.length > 0 || extraName != null) {
+            out.append('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) out.append(',');
+                label(out, labelNames[i], values.get(i));
+            }
+            if (extraName != null) {
+                if (labelNames.length > 0) out.append(',');
+                label(out, extraName, extraValue);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private static void label(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,67 @@
+package uk.ac.westminster.ds.server;
+
+import com.sun.net.httpserver.HttpServer;
+import uk.ac.westminster.ds.tracing.Tracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Serves {@link Metrics#scrape()} at {@code http://127.0.0.1:<port>/metrics} for a Prometheus
+ * scraper on the same host, and the spans kept in memory at {@code /traces} as JSON. Bound to
+ * the loopback interface only.
+ */
+public final class MetricsEndpoint implements AutoCloseable {
+
+    private final HttpServer server;
+
+    public MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        serve("/metrics", "text/plain; version=0.0.4; charset=utf-8", Metrics::scrape);
+        // Not found when spans go to a file instead
+        serve("/traces", "application/json", Tracing::recentSpansJson);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    /** Serves GETs of {@code path} with {@code body}, or 404 if it returns null. */
+    private void serve(String path, String contentType, Supplier<String> body) {
+        server.createContext(path, exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                String text = body.get();
+                if (text == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
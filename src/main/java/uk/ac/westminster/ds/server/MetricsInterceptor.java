@@ -0,0 +1,71 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the latency and status code of every RPC a replica serves, per method. Latency runs
+ * from the call arriving to its status being sent, so for streaming calls (the replication
+ * stream) it is the lifetime of the stream.
+ * <p>
+ * Install it to run before the other interceptors ({@code ServerBuilder.intercept}) so it sees
+ * the status they turn exceptions into.
+ */
+public class MetricsInterceptor implements ServerInterceptor {
+
+    private static final Metrics.Family<Metrics.Histogram> DURATION = Metrics.latency(
+            "ewallet_rpc_duration_seconds", "Time from an RPC arriving to its status being sent", "method");
+    private static final Metrics.Family<Metrics.Counter> RESPONSES = Metrics.counter(
+            "ewallet_rpc_responses_total", "RPCs completed, by status code", "method", "code");
+
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    /** The metrics of one method; status-code counters are looked up the first time each code is seen. */
+    private static final class MethodMetrics {
+        final String method;
+        final Metrics.Histogram duration;
+        final Metrics.Counter[] byCode = new Metrics.Counter[CODES.length];
+
+        MethodMetrics(String method) {
+            this.method = method;
+            this.duration = DURATION.labels(method);
+        }
+
+        void record(long startNanos, Status.Code code) {
+            duration.observeSince(startNanos);
+            Metrics.Counter counter = byCode[code.ordinal()];
+            if (counter == null) {
+                counter = RESPONSES.labels(method, code.name());
+                byCode[code.ordinal()] = counter; // a racing thread finds the same child
+            }
+            counter.inc();
+        }
+    }
+
+    private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        long start = System.nanoTime();
+        String name = call.getMethodDescriptor().getFullMethodName();
+        MethodMetrics metrics = methods.get(name);
+        if (metrics == null) metrics = methods.computeIfAbsent(name, MethodMetrics::new);
+
+        MethodMetrics m = metrics;
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                m.record(start, status.getCode());
+                super.close(status, trailers);
+            }
+        }, headers);
+    }
+}
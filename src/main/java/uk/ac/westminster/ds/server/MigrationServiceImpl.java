@@ -0,0 +1,43 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.stub.StreamObserver;
+import uk.ac.westminster.ds.ewallet.grpc.*;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+
+/**
+ * Bucket migration endpoint. The admin asks the source partition's leader to move a bucket;
+ * that leader then drives the destination leader through {@code importAccounts} and
+ * {@code installPartitionMap}.
+ */
+public class MigrationServiceImpl extends MigrationServiceGrpc.MigrationServiceImplBase {
+
+    private final BucketMigrator migrator;
+    private final PartitionOwnership ownership;
+
+    public MigrationServiceImpl(BucketMigrator migrator, PartitionOwnership ownership) {
+        this.migrator = migrator;
+        this.ownership = ownership;
+    }
+
+    @Override
+    public void migrateBucket(MigrateBucketRequest request,
+                              StreamObserver<MigrateBucketResponse> responseObserver) {
+        responseObserver.onNext(migrator.migrate(request.getBucket(), request.getTargetPartition()));
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void importAccounts(AccountImport request,
+                               StreamObserver<Ack> responseObserver) {
+        responseObserver.onNext(Ack.newBuilder().setOk(migrator.importAccounts(request)).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void installPartitionMap(PartitionMapUpdate request,
+                                    StreamObserver<Ack> responseObserver) {
+        ownership.install(PartitionMap.fromJson(request.getJson()));
+        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
+        responseObserver.onCompleted();
+    }
+}
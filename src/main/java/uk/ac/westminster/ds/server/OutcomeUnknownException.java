@@ -0,0 +1,28 @@
+package uk.ac.westminster.ds.server;
+
+import com.google.protobuf.Message;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import uk.ac.westminster.ds.common.WalletProtocol;
+
+/**
+ * A write that was applied and logged on this leader but did not reach a quorum in time. It may
+ * still reach one, or be lost in a failover, so the client is told UNAVAILABLE rather than
+ * success. The response it would have had is kept so a retry with the same idempotency key is
+ * answered with it (once replicated) instead of being applied again.
+ */
+public class OutcomeUnknownException extends StatusRuntimeException {
+
+    public static final Status STATUS = Status.UNAVAILABLE.withDescription(WalletProtocol.OUTCOME_UNKNOWN);
+
+    private final transient Message response;
+
+    public OutcomeUnknownException(Message response) {
+        super(STATUS);
+        this.response = response;
+    }
+
+    public Message response() {
+        return response;
+    }
+}
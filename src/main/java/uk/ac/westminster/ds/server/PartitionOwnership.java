@@ -0,0 +1,187 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.common.WalletProtocol;
+import uk.ac.westminster.ds.nameservice.EtcdClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.store.AccountStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This partition's view of the {@link PartitionMap}: which accounts it may serve, and the one
+ * bucket (if any) it is currently migrating to another partition.
+ * <p>
+ * Writes call {@link #check} while holding their accounts' store locks. While a bucket is
+ * being copied, every account written in it is recorded so the migration can send it again.
+ * Once the bucket is frozen, writes to it wait in {@link #awaitUnfrozen} until ownership has
+ * moved (they are then rejected) or the migration was abandoned (they go ahead).
+ */
+public class PartitionOwnership {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionOwnership.class);
+
+    public enum Check { OWNED, NOT_OWNED, FROZEN }
+
+    private final int partitionId;
+    private volatile PartitionMap map;
+
+    private volatile int migratingBucket = -1;
+    private volatile boolean frozen;
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private Closeable watch;
+
+    public PartitionOwnership(int partitionId, PartitionMap map) {
+        this.partitionId = partitionId;
+        this.map = map;
+    }
+
+    /** Follows changes to the map stored in etcd. */
+    public void watch(EtcdClient etcd) {
+        watch = etcd.watchPrefix(PartitionMap.ETCD_KEY, new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                if (!key.equals(PartitionMap.ETCD_KEY)) return;
+                try {
+                    install(PartitionMap.fromJson(value));
+                } catch (RuntimeException e) {
+                    logger.warn("Ignoring malformed partition map: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onDelete(String key) {
+            }
+        });
+    }
+
+    public int partitionId() {
+        return partitionId;
+    }
+
+    public PartitionMap map() {
+        return map;
+    }
+
+    /** Adopts {@code next} if it is newer than the current map. */
+    public synchronized boolean install(PartitionMap next) {
+        if (next.version() <= map.version()) return false;
+        map = next;
+        logger.info("Partition map v{}: this partition owns {} buckets", next.version(), next.bucketsOf(partitionId).size());
+        return true;
+    }
+
+    public boolean owns(String accountId) {
+        return map.partitionOf(accountId) == partitionId;
+    }
+
+    /**
+     * Checks whether a write to {@code accounts} may go ahead. Callers hold the accounts'
+     * store locks, so a migration that freezes a bucket and then takes every lock knows that
+     * no write it missed is still running.
+     */
+    public Check check(String[] accounts) {
+        PartitionMap m = map;
+        int migrating = migratingBucket;
+        boolean allOwned = true;
+
+        for (String id : accounts) {
+            int bucket = PartitionMap.bucketOf(id);
+            if (bucket == migrating) {
+                if (frozen) return Check.FROZEN;
+                dirty.add(id);
+            }
+            allOwned &= m.ownerOf(bucket) == partitionId;
+        }
+        return allOwned ? Check.OWNED : Check.NOT_OWNED;
+    }
+
+    /**
+     * Records a write that skips {@link #check} (a 2PC decision, on an account that is owned
+     * because it has a prepared transaction) so a migration copying its bucket sends it again.
+     * Callers hold the account's store lock, as for {@link #check}.
+     */
+    public void recordWrite(String accountId) {
+        if (PartitionMap.bucketOf(accountId) == migratingBucket) dirty.add(accountId);
+    }
+
+    /** Status of requests for accounts whose bucket belongs to another partition (the client's map is stale). */
+    public static Status wrongPartition() {
+        return Status.FAILED_PRECONDITION.withDescription(WalletProtocol.WRONG_PARTITION);
+    }
+
+    /**
+     * Takes the accounts' store locks once this partition may write them. Writes to a bucket
+     * frozen for migration wait (without the locks) until it has moved or stayed; writes to
+     * buckets owned elsewhere fail with WRONG_PARTITION, which the service's interceptor
+     * turns into the call's status.
+     */
+    public AccountStore.Locked lockOwned(AccountStore store, String[] accounts) {
+        while (true) {
+            AccountStore.Locked locked = store.lock(accounts);
+            Check c = check(accounts);
+            if (c == Check.OWNED) return locked;
+
+            locked.close();
+            if (c == Check.NOT_OWNED) throw wrongPartition().asRuntimeException();
+            try {
+                awaitUnfrozen(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withDescription("Interrupted").asRuntimeException();
+            }
+        }
+    }
+
+    /** Blocks a write to a frozen bucket until the migration finishes, or for at most {@code timeoutMs}. */
+    public synchronized void awaitUnfrozen(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (frozen) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return;
+            wait(remaining);
+        }
+    }
+
+    /* ---------------- migration source ---------------- */
+
+    /** Starts recording writes to {@code bucket}. */
+    void startTracking(int bucket) {
+        dirty.clear();
+        migratingBucket = bucket;
+    }
+
+    /** @return the accounts written since the last call, forgetting them */
+    List<String> drainDirty() {
+        List<String> out = new ArrayList<>();
+        for (String id : dirty) {
+            if (dirty.remove(id)) out.add(id);
+        }
+        return out;
+    }
+
+    /** Holds off new writes to the tracked bucket. */
+    void freeze() {
+        frozen = true;
+    }
+
+    /** Ends the migration, whether or not ownership moved, and releases waiting writers. */
+    synchronized void finish() {
+        migratingBucket = -1;
+        frozen = false;
+        dirty.clear();
+        notifyAll();
+    }
+
+    public void close() throws IOException {
+        if (watch != null) watch.close();
+    }
+}
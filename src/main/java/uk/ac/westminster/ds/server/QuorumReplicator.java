@@ -0,0 +1,131 @@
+package uk.ac.westminster.ds.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Ships the leader's {@link ReplicationLog} to every follower in parallel and lets
+ * writers wait until a quorum of the replica group (the leader counts as one) has
+ * applied their entry, or the deadline passes.
+ */
+public class QuorumReplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuorumReplicator.class);
+
+    private static final Metrics.Histogram QUORUM_WAIT = Metrics.latency(
+            "ewallet_replication_quorum_wait_seconds", "Time writers wait for a quorum to apply their entry").labels();
+    private static final Metrics.Counter QUORUM_TIMEOUTS = Metrics.counter(
+            "ewallet_replication_quorum_timeouts_total", "Writes that did not reach a quorum within the deadline").labels();
+    private static final Metrics.Family<Metrics.Gauge> FOLLOWER_LAG = Metrics.gauge(
+            "ewallet_replication_follower_lag_entries", "Log entries a follower is behind this leader", "follower");
+
+    private final List<FollowerLink> links;
+    private final int quorum;
+    private final long deadlineMs;
+    private volatile LongConsumer onDeposed = term -> { };
+    private volatile Runnable onFollowerAhead = () -> { };
+
+    public QuorumReplicator(ReplicationChannels channels,
+                            ReplicationLog log,
+                            StorePersistence persistence,
+                            int myPort,
+                            List<Integer> replicaPorts,
+                            int quorum,
+                            long deadlineMs,
+                            int maxBatch,
+                            int maxInFlight) {
+        if (quorum < 1 || quorum > replicaPorts.size()) {
+            throw new IllegalArgumentException(
+                    "quorum must be between 1 and " + replicaPorts.size() + ", got " + quorum);
+        }
+        this.links = replicaPorts.stream()
+                .filter(p -> p != myPort)
+                .map(p -> new FollowerLink(p, channels, log, persistence, maxBatch, maxInFlight,
+                        this::onAck, this::deposed, this::followerAhead))
+                .toList();
+        this.quorum = quorum;
+        this.deadlineMs = deadlineMs;
+
+        for (FollowerLink link : links) {
+            FOLLOWER_LAG.labels(String.valueOf(link.port()))
+                    .set(() -> link.isRunning() ? Math.max(0, log.lastSeq() - link.matchSeq()) : 0);
+        }
+    }
+
+    public static int majority(int replicas) {
+        return replicas / 2 + 1;
+    }
+
+    /** Start shipping the log under election {@code term}; called when this replica becomes leader. */
+    public void start(long term) {
+        links.forEach(link -> link.start(term));
+    }
+
+    /** Stop shipping the log; called when this replica loses leadership. */
+    public void stop() {
+        links.forEach(FollowerLink::stop);
+    }
+
+    /** Told the newer term when a follower reports that this leader has been replaced. */
+    public void setOnDeposed(LongConsumer onDeposed) {
+        this.onDeposed = onDeposed;
+    }
+
+    private void deposed(long term) {
+        onDeposed.accept(term);
+    }
+
+    /** Told when a follower refuses this leader because it holds entries past this leader's log. */
+    public void setOnFollowerAhead(Runnable onFollowerAhead) {
+        this.onFollowerAhead = onFollowerAhead;
+    }
+
+    private void followerAhead() {
+        onFollowerAhead.run();
+    }
+
+    private synchronized void onAck() {
+        notifyAll();
+    }
+
+    /**
+     * @return true if at least {@code quorum - 1} followers applied {@code seq} within the deadline
+     */
+    public synchronized boolean awaitQuorum(String op, long seq) {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + deadlineMs;
+        try {
+            while (acked(seq) < quorum - 1) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    QUORUM_TIMEOUTS.inc();
+                    logger.atWarn().addKeyValue("op", op).addKeyValue("seq", seq)
+                            .log("Entry did not reach replication quorum of {}", quorum);
+                    return false;
+                }
+                wait(remaining);
+            }
+            QUORUM_WAIT.observeSince(start);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** True if {@code seq} has already been applied by a quorum; does not wait. */
+    public synchronized boolean isReplicated(long seq) {
+        return acked(seq) >= quorum - 1;
+    }
+
+    private int acked(long seq) {
+        int n = 0;
+        for (FollowerLink link : links) {
+            if (link.matchSeq() >= seq) n++;
+        }
+        return n;
+    }
+}
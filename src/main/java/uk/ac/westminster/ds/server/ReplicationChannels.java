@@ -0,0 +1,83 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import uk.ac.westminster.ds.ewallet.grpc.ReplicationServiceGrpc;
+import uk.ac.westminster.ds.tracing.TracingClientInterceptor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps one long-lived HTTP/2 channel per follower port.
+ * Channels are created on first use and reused by every replicated write,
+ * so a write costs a single RPC instead of a connect/teardown cycle.
+ */
+public class ReplicationChannels {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long KEEP_ALIVE_TIMEOUT_SECONDS = 10;
+
+    private final IntFunction<ManagedChannel> factory;
+    private final ConcurrentHashMap<Integer, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    public ReplicationChannels(String host) {
+        this.factory = port -> newChannel(host, port);
+    }
+
+    /** Builds channels with {@code factory}, e.g. in-process channels for benchmarks. */
+    public ReplicationChannels(IntFunction<ManagedChannel> factory) {
+        this.factory = factory;
+    }
+
+    public ReplicationServiceGrpc.ReplicationServiceBlockingStub blockingStub(int port) {
+        return ReplicationServiceGrpc.newBlockingStub(channelFor(port));
+    }
+
+    public ManagedChannel channelFor(int port) {
+        ManagedChannel ch = channels.compute(port, (p, existing) ->
+                (existing == null || existing.isShutdown()) ? factory.apply(p) : existing);
+
+        // A channel in TRANSIENT_FAILURE backs off before reconnecting; ask it to retry now
+        // so a follower that has just come back is picked up by the next write.
+        if (ch.getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+            ch.resetConnectBackoff();
+        }
+        return ch;
+    }
+
+    private static ManagedChannel newChannel(String host, int port) {
+        ManagedChannel ch = ManagedChannelBuilder
+                .forAddress(host, port)
+                .usePlaintext()
+                .keepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)
+                .keepAliveTimeout(KEEP_ALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .keepAliveWithoutCalls(true)
+                // 2PC calls to other partitions' leaders carry the trace of the transfer
+                .intercept(new TracingClientInterceptor())
+                .build();
+
+        // Connect eagerly so the first replicated write does not pay for the handshake.
+        ch.getState(true);
+        return ch;
+    }
+
+    public void close() {
+        for (ManagedChannel ch : channels.values()) {
+            ch.shutdown();
+        }
+        for (ManagedChannel ch : channels.values()) {
+            try {
+                if (!ch.awaitTermination(1, TimeUnit.SECONDS)) {
+                    ch.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                ch.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        channels.clear();
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.westminster.ds.server;
+
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Sequence-numbered log of applied writes, kept in a bounded ring.
+ * On the leader every successful mutation is appended here and shipped to followers;
+ * on a follower the entries received from the leader are appended as they are applied,
+ * so a follower that becomes leader can keep serving the tail.
+ * <p>
+ * Entries appended as leader are stamped with the leader's election term, so replicas can
+ * compare their logs by (seq, term) and find where a follower has diverged.
+ */
+public class ReplicationLog {
+
+    private final LogEntry[] ring;
+
+    private long firstSeq = 1; // oldest seq still retained
+    private long lastSeq = 0;  // highest appended (and applied) seq
+    private long term;         // stamped on entries appended by this replica as leader
+
+    // Sees every appended entry under the log lock (e.g. the write-ahead log)
+    private Consumer<LogEntry> onAppend = entry -> {};
+
+    public ReplicationLog(int retention) {
+        if (retention < 1) throw new IllegalArgumentException("retention must be positive");
+        this.ring = new LogEntry[retention];
+    }
+
+    public synchronized void setOnAppend(Consumer<LogEntry> onAppend) {
+        this.onAppend = onAppend;
+    }
+
+    /**
+     * Sets the position recovered from disk. Only valid before the log is in use;
+     * entries up to {@code lastSeq} are not retained.
+     */
+    public synchronized void restore(long lastSeq) {
+        this.lastSeq = lastSeq;
+        this.firstSeq = lastSeq + 1;
+    }
+
+    /** Sets the election term stamped on entries appended from now on; called on becoming leader. */
+    public synchronized void setTerm(long term) {
+        this.term = term;
+    }
+
+    /**
+     * Drops the entries after {@code seq}, on a follower whose tail came from a replaced leader.
+     * Their effects on the store are not undone; the leader sends a snapshot for that.
+     */
+    public synchronized void truncate(long seq) {
+        if (seq >= lastSeq) return;
+        lastSeq = seq;
+        firstSeq = Math.min(firstSeq, seq + 1);
+    }
+
+    /**
+     * Runs {@code action} with appends held off. Combined with
+     * {@link uk.ac.westminster.ds.store.AccountStore#lockAll()} this gives a consistent cut.
+     */
+    public synchronized void runExclusive(Runnable action) {
+        action.run();
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized long firstSeq() {
+        return firstSeq;
+    }
+
+    /** @return the term of the last entry, or 0 if it is not retained or its term is unknown */
+    public synchronized long lastTerm() {
+        return termAt(lastSeq);
+    }
+
+    /** @return the term of the entry at {@code seq}, or 0 if it is not retained or its term is unknown */
+    public synchronized long termAt(long seq) {
+        if (seq < firstSeq || seq > lastSeq) return 0;
+        return ring[(int) (seq % ring.length)].getTerm();
+    }
+
+    /**
+     * Leader path. Callers hold the {@link uk.ac.westminster.ds.store.AccountStore} locks of
+     * the accounts the entry touches while applying it and calling this, so entries for the
+     * same account are logged in the order they were applied.
+     *
+     * @return the assigned seq
+     */
+    public synchronized long append(LogEntry.Builder entry) {
+        long seq = lastSeq + 1;
+        store(entry.setSeq(seq).setTerm(term).build());
+        return seq;
+    }
+
+    /**
+     * Leader path for a group of writes applied together, under the same locking rule as
+     * {@link #append}; the entries get consecutive seqs in list order.
+     *
+     * @return the seq assigned to the last entry
+     */
+    public synchronized long appendAll(List<LogEntry.Builder> entries) {
+        for (LogEntry.Builder entry : entries) {
+            store(entry.setSeq(lastSeq + 1).setTerm(term).build());
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Follower (and recovery) path. Appends an entry received from the leader once it has been
+     * applied; the entry must directly follow the current tail.
+     */
+    public synchronized void appendReplicated(LogEntry entry) {
+        if (entry.getSeq() != lastSeq + 1) {
+            throw new IllegalStateException("expected seq " + (lastSeq + 1) + " but got " + entry.getSeq());
+        }
+        store(entry);
+    }
+
+    private void store(LogEntry entry) {
+        long seq = entry.getSeq();
+        ring[(int) (seq % ring.length)] = entry;
+        lastSeq = seq;
+        if (lastSeq - firstSeq + 1 > ring.length) {
+            firstSeq = lastSeq - ring.length + 1;
+        }
+        onAppend.accept(entry);
+        notifyAll();
+    }
+
+    /**
+     * Returns up to {@code max} entries starting at {@code fromSeq}, waiting up to
+     * {@code timeoutMs} for at least one to be appended. Returns an empty list on timeout.
+     *
+     * @throws IllegalStateException if {@code fromSeq} has already been dropped from the ring
+     */
+    public synchronized List<LogEntry> read(long fromSeq, int max, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (lastSeq < fromSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return List.of();
+            wait(remaining);
+        }
+
+        if (fromSeq < firstSeq) {
+            throw new IllegalStateException("seq " + fromSeq + " no longer retained (oldest is " + firstSeq + ")");
+        }
+
+        int n = (int) Math.min(max, lastSeq - fromSeq + 1);
+        List<LogEntry> out = new ArrayList<>(n);
+        for (long seq = fromSeq; seq < fromSeq + n; seq++) {
+            out.add(ring[(int) (seq % ring.length)]);
+        }
+        return out;
+    }
+}
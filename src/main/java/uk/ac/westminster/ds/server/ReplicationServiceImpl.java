@@ -1,54 +1,456 @@
 package uk.ac.westminster.ds.server;
 
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.westminster.ds.ewallet.grpc.*;
 import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 /**
  * Internal replication endpoint.
- * Followers accept these calls from the leader and apply writes locally.
+ * Followers accept the leader's log stream and apply entries strictly in seq order.
+ * <p>
+ * Every batch carries the sender's election term. A replica remembers the highest term it has
+ * seen and refuses batches and snapshots from older ones, so a leader that was replaced but has
+ * not noticed yet (e.g. it was paused past its ZooKeeper session) cannot overwrite anything.
+ * <p>
+ * Entries carry the term of the leader that appended them, and each batch the seq and term of
+ * the leader's entry before it. A replica whose entry at that seq (or at the seq of an entry it
+ * has already applied) has another term took entries from a replaced leader that never reached a
+ * quorum. It drops them from its log, back to the last seq both agree on, and asks for a
+ * snapshot to undo their effects on the store.
+ * <p>
+ * A replica whose log merely goes on past the leader's keeps those entries: they may have been
+ * acknowledged, and a leader missing them must not lead. It refuses the batch and tells the
+ * leader, which steps down. A newly elected leader avoids this by fetching what it is missing
+ * before it takes writes ({@link #logPosition}, {@link #readLog}; see {@link LeaderCatchUp}).
  */
 public class ReplicationServiceImpl extends ReplicationServiceGrpc.ReplicationServiceImplBase {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationServiceImpl.class);
+
+    private static final Metrics.Counter STALE_TERM_REJECTIONS = Metrics.counter(
+            "ewallet_replication_stale_term_rejections_total",
+            "Batches and snapshots refused because they came from a replaced leader").labels();
+
     private final AccountStore store;
+    private final ReplicationLog log;
+    private final LogApplier applier;
+    private final StorePersistence persistence;
+
+    // Serializes apply + append when more than one stream is open (e.g. during failover)
+    private final Object applyLock = new Object();
+
+    // Released the first time this replica has applied everything the leader had
+    private final CountDownLatch caughtUp = new CountDownLatch(1);
+
+    // Leader's position as of its last batch or heartbeat, for bounded-staleness reads
+    private final long maxLeaderSilenceMs;
+    private volatile long leaderLastSeq;
+    private volatile long lastLeaderContactMs;
+    private volatile long contactTerm; // term of the leader last heard from
+
+    // Highest election term seen, from the elector or from a leader's stream
+    private final AtomicLong currentTerm = new AtomicLong();
 
-    public ReplicationServiceImpl(AccountStore store) {
+    // Set when the log was truncated under entries already applied; cleared by a snapshot
+    private volatile boolean diverged;
+    private volatile LongConsumer onNewTerm = term -> { };
+
+    /**
+     * @param maxLeaderSilenceMs how long after the last batch or heartbeat from the leader this
+     *                           replica still trusts its lag estimate
+     */
+    public ReplicationServiceImpl(AccountStore store,
+                                  ReplicationLog log,
+                                  LogApplier applier,
+                                  StorePersistence persistence,
+                                  long maxLeaderSilenceMs) {
         this.store = store;
+        this.log = log;
+        this.applier = applier;
+        this.persistence = persistence;
+        this.maxLeaderSilenceMs = maxLeaderSilenceMs;
+    }
+
+    /**
+     * How many log entries this replica is behind the leader, or {@link Long#MAX_VALUE} if it
+     * has not heard from a leader recently enough to know.
+     */
+    public long lag() {
+        if (diverged) return Long.MAX_VALUE;
+        if (System.currentTimeMillis() - lastLeaderContactMs > maxLeaderSilenceMs) return Long.MAX_VALUE;
+        return Math.max(0, leaderLastSeq - log.lastSeq());
+    }
+
+    /**
+     * True if the leader of {@code term} has streamed to this replica but sent nothing, not even
+     * a heartbeat, for longer than {@code timeoutMs}. A replica that has not heard from that
+     * leader at all cannot tell, so says false.
+     */
+    public boolean leaderSilent(long term, long timeoutMs) {
+        return term > 0 && contactTerm == term && System.currentTimeMillis() - lastLeaderContactMs > timeoutMs;
+    }
+
+    private void heardFrom(long term) {
+        contactTerm = term;
+        lastLeaderContactMs = System.currentTimeMillis();
+    }
+
+    public long currentTerm() {
+        return currentTerm.get();
+    }
+
+    /** Told the term whenever a leader's stream shows one newer than any seen before. */
+    public void setOnNewTerm(LongConsumer onNewTerm) {
+        this.onNewTerm = onNewTerm;
+    }
+
+    /**
+     * Raises the current term to {@code term} if it is newer.
+     *
+     * @return false if {@code term} is older than the current term, i.e. it belongs to a replaced leader
+     */
+    public boolean observeTerm(long term) {
+        long seen = currentTerm.getAndAccumulate(term, Math::max);
+        return term >= seen;
+    }
+
+    private boolean acceptTerm(long term) {
+        long seen = currentTerm.get();
+        if (!observeTerm(term)) {
+            STALE_TERM_REJECTIONS.inc();
+            logger.atWarn().addKeyValue("term", term)
+                    .log("Refusing replication from a replaced leader; current term is {}", currentTerm.get());
+            return false;
+        }
+        if (term > seen) onNewTerm.accept(term);
+        return true;
     }
 
     @Override
-    public void replicateCreateAccount(CreateAccountRequest request, StreamObserver<Ack> responseObserver) {
-        store.createAccount(request.getAccountId().trim()); // idempotent
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
-        responseObserver.onCompleted();
+    public StreamObserver<LogBatch> streamLog(StreamObserver<LogAck> responseObserver) {
+
+        // Tell the leader where to start
+        responseObserver.onNext(ack(log.lastSeq(), true));
+
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(LogBatch batch) {
+                if (!acceptTerm(batch.getTerm())) {
+                    // Apply nothing; the newer term in the ack tells the sender it was replaced
+                    responseObserver.onNext(ack(log.lastSeq(), false));
+                    return;
+                }
+                heardFrom(batch.getTerm());
+                boolean gap = false;
+                boolean ahead = false;
+                long divergedAt = 0; // first seq where this replica's log differs from the leader's
+                long applied;
+                List<Span> traced = null;
+
+                synchronized (applyLock) {
+                    if (diverged) {
+                        // Nothing more is applied until the leader's snapshot has replaced the store
+                        responseObserver.onNext(ack(log.lastSeq(), true));
+                        return;
+                    }
+                    if (batch.getPrevSeq() > log.lastSeq()) {
+                        gap = true;
+                    } else if (conflicts(batch.getPrevSeq(), batch.getPrevTerm())) {
+                        divergedAt = batch.getPrevSeq();
+                    }
+                    for (LogEntry entry : batch.getEntriesList()) {
+                        if (gap || divergedAt > 0) break;
+                        long last = log.lastSeq();
+                        if (entry.getSeq() <= last) {
+                            if (conflicts(entry.getSeq(), entry.getTerm())) divergedAt = entry.getSeq();
+                            continue; // already applied
+                        }
+                        if (entry.getSeq() != last + 1) {
+                            gap = true;
+                            break;
+                        }
+                        if (!entry.getTraceParent().isEmpty()) {
+                            Span span = Tracing.continueTrace(entry.getTraceParent(), "replica.apply");
+                            if (span.isSampled()) {
+                                if (traced == null) traced = new ArrayList<>();
+                                traced.add(span.set("seq", entry.getSeq()).set("batch", batch.getEntriesCount()));
+                            }
+                        }
+                        try (AccountStore.Locked ignored = store.lock(LogApplier.accounts(entry))) {
+                            applier.apply(entry);
+                            log.appendReplicated(entry);
+                        }
+                    }
+                    // The leader's log ends before ours. If its last entry is ours too, it lacks
+                    // entries we hold, which may have been acknowledged, so it is refused rather
+                    // than our entries dropped; otherwise ours there came from a replaced leader
+                    if (!gap && divergedAt == 0 && log.lastSeq() > batch.getLeaderLastSeq()) {
+                        if (conflicts(batch.getLeaderLastSeq(), batch.getLeaderLastTerm())) {
+                            divergedAt = batch.getLeaderLastSeq();
+                        } else {
+                            ahead = true;
+                            logger.atWarn().addKeyValue("seq", log.lastSeq()).addKeyValue("term", batch.getTerm())
+                                    .log("Leader's log ends at {}, before ours; refusing it", batch.getLeaderLastSeq());
+                        }
+                    }
+                    if (divergedAt > 0) {
+                        logger.atWarn().addKeyValue("seq", divergedAt).addKeyValue("term", batch.getTerm())
+                                .log("Log diverged from the leader's, dropping entries up to {}", log.lastSeq());
+                        log.truncate(divergedAt - 1);
+                        diverged = true;
+                    }
+                    applied = log.lastSeq();
+                }
+
+                leaderLastSeq = batch.getLeaderLastSeq();
+
+                if (!gap && !ahead && divergedAt == 0 && applied >= batch.getLeaderLastSeq()) {
+                    caughtUp.countDown();
+                }
+
+                // Only ack what would survive a restart
+                if (!persistence.awaitDurable()) {
+                    responseObserver.onError(Status.INTERNAL.withDescription("WAL_FAILED").asRuntimeException());
+                    return;
+                }
+                responseObserver.onNext(ack(applied, gap || ahead, ahead));
+                if (traced != null) {
+                    // From applying the entry to acking it, which the leader's quorum wait includes
+                    long acked = System.nanoTime();
+                    for (Span span : traced) {
+                        span.end(acked);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // Leader went away; it (or the next leader) will open a new stream
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        };
     }
 
     @Override
-    public void replicateDeposit(AmountRequest request, StreamObserver<Ack> responseObserver) {
-        store.deposit(request.getAccountId().trim(), request.getAmount());
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
-        responseObserver.onCompleted();
+    public StreamObserver<SnapshotChunk> installSnapshot(StreamObserver<LogAck> responseObserver) {
+        Path incoming = persistence.incomingSnapshotPath();
+        FileChannel out;
+        try {
+            out = FileChannel.open(incoming, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            return new NoopObserver<>();
+        }
+
+        // Chunks go straight to disk so the snapshot is never held in memory
+        return new StreamObserver<>() {
+            private boolean failed;
+            private boolean termChecked;
+
+            @Override
+            public void onNext(SnapshotChunk chunk) {
+                if (failed) return;
+                if (!termChecked) {
+                    termChecked = true;
+                    if (!acceptTerm(chunk.getTerm())) {
+                        failed = true;
+                        closeQuietly();
+                        deleteQuietly();
+                        responseObserver.onError(Status.FAILED_PRECONDITION
+                                .withDescription("STALE_TERM").asRuntimeException());
+                        return;
+                    }
+                }
+                // The leader sends no heartbeats on this stream while the snapshot is under way
+                heardFrom(chunk.getTerm());
+                try {
+                    for (var buf : chunk.getData().asReadOnlyByteBufferList()) {
+                        while (buf.hasRemaining()) out.write(buf);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                closeQuietly();
+                deleteQuietly();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) return;
+                try {
+                    out.close();
+                    persistence.installSnapshot(incoming);
+                    diverged = false;
+                    responseObserver.onNext(ack(log.lastSeq(), true));
+                    responseObserver.onCompleted();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            private void fail(IOException e) {
+                failed = true;
+                logger.warn("Installing snapshot failed", e);
+                closeQuietly();
+                deleteQuietly();
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+
+            private void closeQuietly() {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            private void deleteQuietly() {
+                try {
+                    Files.deleteIfExists(incoming);
+                } catch (IOException ignored) {
+                }
+            }
+        };
     }
 
+    /** Tells a newly elected leader where this replica's log ends. */
     @Override
-    public void replicateWithdraw(AmountRequest request, StreamObserver<Ack> responseObserver) {
-        store.withdraw(request.getAccountId().trim(), request.getAmount());
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
+    public void logPosition(LogPositionRequest request, StreamObserver<LogPosition> responseObserver) {
+        // Once answered, the old leader's batches are refused here, so it cannot get an entry the
+        // new leader has not seen acknowledged
+        acceptTerm(request.getTerm());
+        long lastSeq;
+        long lastTerm;
+        synchronized (applyLock) {
+            lastSeq = log.lastSeq();
+            lastTerm = log.lastTerm();
+        }
+        responseObserver.onNext(LogPosition.newBuilder()
+                .setLastSeq(lastSeq)
+                .setLastTerm(lastTerm)
+                .setTerm(currentTerm.get())
+                .build());
         responseObserver.onCompleted();
     }
 
+    /** Sends a newly elected leader entries from this replica's log that it is missing. */
     @Override
-    public void replicateTransfer(TransferRequest request,
-                                  StreamObserver<Ack> responseObserver) {
+    public void readLog(ReadLogRequest request, StreamObserver<LogBatch> responseObserver) {
+        if (!acceptTerm(request.getTerm())) {
+            responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("STALE_TERM").asRuntimeException());
+            return;
+        }
+        long from = request.getFromSeq();
+        LogBatch.Builder batch = LogBatch.newBuilder().setTerm(currentTerm.get()).setPrevSeq(from - 1);
+        try {
+            synchronized (applyLock) {
+                batch.addAllEntries(log.read(from, Math.max(1, request.getMaxEntries()), 0))
+                        .setPrevTerm(log.termAt(from - 1))
+                        .setLeaderLastSeq(log.lastSeq())
+                        .setLeaderLastTerm(log.lastTerm());
+            }
+        } catch (IllegalStateException e) {
+            // No longer retained; the leader cannot catch up from here
+            responseObserver.onError(Status.FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responseObserver.onError(Status.CANCELLED.asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(batch.build());
+        responseObserver.onCompleted();
+    }
 
-        store.transfer(
-                request.getFromAccount().trim(),
-                request.getToAccount().trim(),
-                request.getAmount()
-        );
+    /**
+     * Applies and logs entries this replica, newly elected, fetched with {@link #readLog} from
+     * a more advanced one.
+     *
+     * @return false if they do not directly follow this log or the entry before them has
+     * another term here, i.e. this log has entries the other one does not
+     */
+    boolean appendFetched(LogBatch batch) {
+        synchronized (applyLock) {
+            if (diverged || batch.getPrevSeq() != log.lastSeq() || conflicts(batch.getPrevSeq(), batch.getPrevTerm())) {
+                return false;
+            }
+            for (LogEntry entry : batch.getEntriesList()) {
+                try (AccountStore.Locked ignored = store.lock(LogApplier.accounts(entry))) {
+                    applier.apply(entry);
+                    log.appendReplicated(entry);
+                }
+            }
+            return true;
+        }
+    }
 
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
-        responseObserver.onCompleted();
+    /** True while the store still holds effects of entries dropped from the log, until a snapshot replaces it. */
+    boolean diverged() {
+        return diverged;
+    }
+
+    /**
+     * Waits until this replica has applied everything the leader had, as reported by the
+     * leader's stream. Used to keep a replica out of the election until it has caught up.
+     */
+    public boolean awaitCaughtUp(long timeoutMs) throws InterruptedException {
+        return caughtUp.await(timeoutMs, TimeUnit.MILLISECONDS);
     }
 
+    private static final class NoopObserver<T> implements StreamObserver<T> {
+        @Override
+        public void onNext(T value) { }
+
+        @Override
+        public void onError(Throwable t) { }
+
+        @Override
+        public void onCompleted() { }
+    }
+
+    /** @return true if this replica holds an entry at {@code seq} from a term other than {@code term} */
+    private boolean conflicts(long seq, long term) {
+        long mine = log.termAt(seq);
+        return mine != 0 && term != 0 && mine != term; // 0: not retained, or written before terms were
+    }
+
+    private LogAck ack(long appliedSeq, boolean resend) {
+        return ack(appliedSeq, resend, false);
+    }
+
+    private LogAck ack(long appliedSeq, boolean resend, boolean ahead) {
+        boolean divergedNow = diverged;
+        return LogAck.newBuilder()
+                .setAppliedSeq(appliedSeq)
+                .setResend(resend || divergedNow)
+                .setDiverged(divergedNow)
+                .setAhead(ahead)
+                .setTerm(currentTerm.get())
+                .build();
+    }
 }
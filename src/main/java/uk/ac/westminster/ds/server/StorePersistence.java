@@ -0,0 +1,319 @@
+package uk.ac.westminster.ds.server;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.store.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Makes a replica's {@link AccountStore} (and its {@link IdempotencyCache}) survive restarts.
+ * <p>
+ * Every entry appended to the {@link ReplicationLog} is written to a {@link WriteAheadLog}.
+ * Every {@code snapshotEvery} entries the store is written to {@code snapshot-<segment>.bin},
+ * where {@code segment} is the first WAL segment not covered by it, and older segments are
+ * deleted. On startup the newest snapshot is loaded and only the
+ * WAL segments written after it are replayed.
+ */
+public class StorePersistence {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorePersistence.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x45574C53; // "EWLS"
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private final Path dir;
+    private final AccountStore store;
+    private final IdempotencyCache dedup;
+    private final ReplicationLog log;
+    private final WriteAheadLog wal;
+    private final long snapshotEvery;
+    private final boolean syncCommit;
+
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshotter");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private long sinceSnapshot; // guarded by the log lock (only touched from onAppend)
+
+    private StorePersistence(Path dir,
+                             AccountStore store,
+                             IdempotencyCache dedup,
+                             ReplicationLog log,
+                             WriteAheadLog wal,
+                             long snapshotEvery,
+                             boolean syncCommit) {
+        this.dir = dir;
+        this.store = store;
+        this.dedup = dedup;
+        this.log = log;
+        this.wal = wal;
+        this.snapshotEvery = snapshotEvery;
+        this.syncCommit = syncCommit;
+    }
+
+    /**
+     * Recovers {@code store}, {@code dedup} and {@code log} from {@code dir}, then starts logging new entries.
+     *
+     * @param flushIntervalMs how often buffered WAL records are written out (group commit window)
+     * @param fsync           whether each group commit is fsynced
+     * @param syncCommit      whether writers wait for their entry to be durable before replying
+     */
+    public static StorePersistence open(Path dir,
+                                        AccountStore store,
+                                        IdempotencyCache dedup,
+                                        ReplicationLog log,
+                                        LogApplier applier,
+                                        long flushIntervalMs,
+                                        boolean fsync,
+                                        boolean syncCommit,
+                                        long snapshotEvery) throws IOException {
+        Files.createDirectories(dir);
+
+        long fromSegment = 1;
+        long seq = 0;
+
+        Path snapshot = latestSnapshot(dir);
+        if (snapshot != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot: " + snapshot);
+                seq = in.readLong();
+                store.readSnapshot(in);
+                dedup.readFrom(in);
+            }
+            fromSegment = snapshotSegment(snapshot);
+        }
+        log.restore(seq);
+
+        int[] replayed = {0};
+        WriteAheadLog.replay(dir, fromSegment, record -> {
+            LogEntry entry = parse(record);
+            if (entry.getSeq() > log.lastSeq()) {
+                applier.apply(entry);
+                log.appendReplicated(entry);
+            }
+            replayed[0]++;
+        });
+
+        logger.atInfo().addKeyValue("seq", log.lastSeq())
+                .log("Recovered {} accounts (snapshot {}, {} log entries replayed)",
+                        store.size(), snapshot == null ? "none" : snapshot.getFileName(), replayed[0]);
+
+        WriteAheadLog wal = new WriteAheadLog(dir, flushIntervalMs, fsync);
+        StorePersistence persistence = new StorePersistence(dir, store, dedup, log, wal, snapshotEvery, syncCommit);
+        log.setOnAppend(persistence::onAppend);
+        return persistence;
+    }
+
+    private static LogEntry parse(byte[] record) {
+        try {
+            return LogEntry.parseFrom(record);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt WAL record", e);
+        }
+    }
+
+    // Called under the log lock for every appended entry
+    private void onAppend(LogEntry entry) {
+        wal.append(entry.toByteArray());
+
+        if (++sinceSnapshot >= snapshotEvery && snapshotPending.compareAndSet(false, true)) {
+            sinceSnapshot = 0;
+            snapshotter.execute(this::snapshotQuietly);
+        }
+    }
+
+    /**
+     * Blocks until everything written so far is durable, if synchronous commit is enabled.
+     * Writers call this after appending and before replying.
+     *
+     * @return false if the WAL has failed, so what was written may not survive a restart
+     */
+    public boolean awaitDurable() {
+        if (!syncCommit) return true;
+        try {
+            wal.awaitDurable(wal.appendedPosition());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            logger.warn("Snapshot failed", e);
+        } finally {
+            snapshotPending.set(false);
+        }
+    }
+
+    /**
+     * Returns the newest snapshot if it is at least at {@code minSeq}, otherwise takes a new one.
+     * Used to catch up a follower that needs entries the log no longer retains.
+     */
+    public synchronized Path snapshotCovering(long minSeq) throws IOException {
+        Path latest = latestSnapshot(dir);
+        if (latest != null && snapshotSeq(latest) >= minSeq) return latest;
+        return snapshot();
+    }
+
+    private static long snapshotSeq(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot: " + snapshot);
+            return in.readLong();
+        }
+    }
+
+    /** Where a snapshot streamed from the leader is written before {@link #installSnapshot}. */
+    public Path incomingSnapshotPath() {
+        return dir.resolve(SNAPSHOT_PREFIX + "incoming");
+    }
+
+    /**
+     * Replaces the store with a snapshot received from the leader and makes it this replica's
+     * recovery point; the replication log restarts at the snapshot's seq.
+     */
+    public synchronized void installSnapshot(Path incoming) throws IOException {
+        try (FileChannel ch = FileChannel.open(incoming, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        long seq = snapshotSeq(incoming);
+
+        Path[] target = {null};
+        try (AccountStore.Locked ignored = store.lockAll()) {
+            log.runExclusive(() -> {
+                try {
+                    // Roll first so nothing logged after the install is replayed on top of an older snapshot
+                    long segment = wal.rollSegment();
+                    target[0] = dir.resolve(SNAPSHOT_PREFIX + String.format("%012d", segment) + SNAPSHOT_SUFFIX);
+                    Files.move(incoming, target[0], StandardCopyOption.ATOMIC_MOVE);
+
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                            Files.newInputStream(target[0]), 1 << 16))) {
+                        in.readInt();
+                        in.readLong();
+                        store.readSnapshot(in);
+                        dedup.readFrom(in);
+                    }
+                    log.restore(seq);
+                    sinceSnapshot = 0;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        dropCoveredFiles(target[0]);
+        logger.atInfo().addKeyValue("seq", seq).log("Installed snapshot from leader: {} accounts", store.size());
+    }
+
+    /**
+     * Writes a snapshot of the store and drops the WAL segments it covers.
+     * <p>
+     * Writers are held off only while the WAL is rolled and the store is serialized into memory,
+     * which makes the copy exactly the state at the end of the previous segment. The copy goes to
+     * disk after the locks are released.
+     */
+    public synchronized Path snapshot() throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT_PREFIX + "tmp");
+        long[] segment = {0};
+        ByteArrayOutputStream cut = new ByteArrayOutputStream(1 << 16);
+
+        try (AccountStore.Locked ignored = store.lockAll()) {
+            log.runExclusive(() -> {
+                try {
+                    segment[0] = wal.rollSegment();
+                    DataOutputStream out = new DataOutputStream(cut);
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeLong(log.lastSeq());
+                    store.writeSnapshot(out);
+                    dedup.writeTo(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            cut.writeTo(Channels.newOutputStream(ch));
+            ch.force(true);
+        }
+        Path target = dir.resolve(SNAPSHOT_PREFIX + String.format("%012d", segment[0]) + SNAPSHOT_SUFFIX);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        dropCoveredFiles(target);
+        return target;
+    }
+
+    private void dropCoveredFiles(Path current) throws IOException {
+        wal.deleteSegmentsBefore(snapshotSegment(current));
+        for (Path old : snapshots(dir)) {
+            if (old.equals(current)) continue;
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                // Still being streamed to a follower on a platform that locks open files; retried next time
+                logger.warn("Could not delete old snapshot {}: {}", old.getFileName(), e.getMessage());
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        wal.close();
+    }
+
+    private static Path latestSnapshot(Path dir) throws IOException {
+        List<Path> all = snapshots(dir);
+        return all.isEmpty() ? null : all.get(all.size() - 1);
+    }
+
+    private static List<Path> snapshots(Path dir) throws IOException {
+        List<Path> out = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> {
+                String n = p.getFileName().toString();
+                return n.startsWith(SNAPSHOT_PREFIX) && n.endsWith(SNAPSHOT_SUFFIX);
+            }).forEach(out::add);
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private static long snapshotSegment(Path snapshot) {
+        String n = snapshot.getFileName().toString();
+        return Long.parseLong(n.substring(SNAPSHOT_PREFIX.length(), n.length() - SNAPSHOT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,455 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.StatusRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.ewallet.grpc.*;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Two-phase commit for transfers between partitions, coordinated by the leader of the
+ * partition that owns the source account:
+ * <ol>
+ *     <li>reserve the amount on the source account;</li>
+ *     <li>ask the destination partition's leader to prepare the credit;</li>
+ *     <li>log the decision: {@code commitTx} debits the source, {@code abortTx} releases the
+ *     reservation. This entry is the durable decision record;</li>
+ *     <li>send the decision to the participant, then log {@code forgetTx}.</li>
+ * </ol>
+ * Every transaction has its own id, so an account can take part in many at once.
+ * <p>
+ * Every step is replicated like any other write, and a side only moves on once its step has
+ * reached a quorum of its replica group: a participant answers READY or acknowledges a
+ * decision, and a coordinator sends its decision, only after that. A new leader therefore
+ * holds every reservation, credit and decision the old one acted on and finishes them.
+ * <p>
+ * Presumed abort: a coordinator only forgets a commit once the participant has applied it, so
+ * a transaction it knows nothing about was never committed and {@code txStatus} answers
+ * ABORTED. A background sweep on the leader resends undelivered decisions, aborts reservations
+ * left undecided by a crash once they are older than the timeout, and asks the coordinator
+ * about participant credits that have waited longer than the timeout.
+ */
+public class TransactionCoordinator {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionCoordinator.class);
+
+    private static final Metrics.Family<Metrics.Counter> STEPS = Metrics.counter(
+            "ewallet_tx_total", "Two-phase commit steps taken on this leader, by role and outcome", "role", "outcome");
+    private static final Metrics.Counter COORDINATOR_PREPARED = STEPS.labels("coordinator", "prepared");
+    private static final Metrics.Counter COORDINATOR_REJECTED = STEPS.labels("coordinator", "rejected");
+    private static final Metrics.Counter COORDINATOR_COMMITTED = STEPS.labels("coordinator", "committed");
+    private static final Metrics.Counter COORDINATOR_ABORTED = STEPS.labels("coordinator", "aborted");
+    private static final Metrics.Counter PARTICIPANT_PREPARED = STEPS.labels("participant", "prepared");
+    private static final Metrics.Counter PARTICIPANT_REJECTED = STEPS.labels("participant", "rejected");
+    private static final Metrics.Counter PARTICIPANT_COMMITTED = STEPS.labels("participant", "committed");
+    private static final Metrics.Counter PARTICIPANT_ABORTED = STEPS.labels("participant", "aborted");
+
+    private static final Metrics.Family<Metrics.Histogram> IN_DOUBT = Metrics.latency(
+            "ewallet_tx_in_doubt_seconds", "Time a transaction held funds between its prepare and its decision", "role");
+    private static final Metrics.Histogram COORDINATOR_IN_DOUBT = IN_DOUBT.labels("coordinator");
+    private static final Metrics.Histogram PARTICIPANT_IN_DOUBT = IN_DOUBT.labels("participant");
+
+    private final AccountStore store;
+    private final ReplicationLog log;
+    private final StorePersistence persistence;
+    private final QuorumReplicator replicator;
+    private final PartitionOwnership ownership;
+    private final ReplicationChannels channels;
+    private final NameServiceClient ns;
+    private final String serviceName;
+    private final AtomicBoolean isLeader;
+    private final long timeoutMs;
+
+    private final ConcurrentHashMap<Integer, WalletServiceGrpc.WalletServiceBlockingStub> leaders =
+            new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet(); // being coordinated by transfer()
+    private final ConcurrentHashMap<String, Long> firstSeen = new ConcurrentHashMap<>(); // txId -> first sweep
+    private final ConcurrentHashMap<String, Long> creditedAt = new ConcurrentHashMap<>(); // txId -> prepare nanoTime
+    private final ConcurrentHashMap<String, Long> commitSeq = new ConcurrentHashMap<>(); // txId -> seq of its commitTx
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tx-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public TransactionCoordinator(AccountStore store,
+                                  ReplicationLog log,
+                                  StorePersistence persistence,
+                                  QuorumReplicator replicator,
+                                  PartitionOwnership ownership,
+                                  ReplicationChannels channels,
+                                  NameServiceClient ns,
+                                  String serviceName,
+                                  AtomicBoolean isLeader,
+                                  long timeoutMs) {
+        this.store = store;
+        this.log = log;
+        this.persistence = persistence;
+        this.replicator = replicator;
+        this.ownership = ownership;
+        this.channels = channels;
+        this.ns = ns;
+        this.serviceName = serviceName;
+        this.isLeader = isLeader;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public void start() {
+        long period = Math.max(1, timeoutMs / 2);
+        sweeper.scheduleWithFixedDelay(this::sweepQuietly, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /* ---------------- coordinator ---------------- */
+
+    /** Transfers from an account on this partition to one on {@code participant}. */
+    public TransferResponse transfer(TransferRequest request, int participant) {
+        String txId = ownership.partitionId() + "-" + UUID.randomUUID();
+        TxStep step = TxStep.newBuilder()
+                .setTxId(txId)
+                .setAccount(request.getFromAccount())
+                .setAmountMinor(AccountStore.toMinor(request.getAmount()))
+                .setDebit(true)
+                .setPeerPartition(participant)
+                .setPeerAccount(request.getToAccount())
+                .build();
+
+        boolean committed;
+        boolean replicated;
+        String reason;
+        TransferResponse outcome;
+        inFlight.add(txId);
+        try {
+            Step reserved;
+            try (Span span = Tracing.start("2pc.reserve").set("txId", txId)) {
+                reserved = request.getAmount() >= 0
+                        ? replicated(owned(step.getAccount()),
+                                () -> store.prepareTx(txId, LogApplier.hold(step)),
+                                LogEntry.newBuilder().setPrepareTx(step))
+                        : Step.REJECTED;
+                span.set("step", reserved);
+            }
+            if (reserved == Step.REJECTED) {
+                COORDINATOR_REJECTED.inc();
+                return response(false, "Transfer failed (invalid account or insufficient funds)");
+            }
+            COORDINATOR_PREPARED.inc();
+            long reservedAt = System.nanoTime();
+
+            reason = reserved == Step.NOT_REPLICATED
+                    ? "reservation not replicated"
+                    : prepareParticipant(request, txId, participant);
+            committed = reason == null;
+            // The decision carries the response so a retry with the same key gets it from any replica
+            outcome = committed
+                    ? response(true, "Transfer committed (tx " + txId + ")")
+                    : response(false, "Transfer aborted: " + reason);
+            LogEntry.Builder decision = decision(txId, LogApplier.hold(step), committed);
+            if (!request.getRequestId().isEmpty()) {
+                decision.setRequestId(request.getRequestId()).setResponse(outcome.toByteString());
+            }
+            try (Span span = Tracing.start("2pc.decide").set("commit", committed)) {
+                replicated = replicated(tracked(() -> store.lock(step.getAccount()), step.getAccount()),
+                        () -> committed ? store.commitTx(txId) : store.abortTx(txId), decision) == Step.DONE;
+                span.set("replicated", replicated);
+            }
+            COORDINATOR_IN_DOUBT.observeSince(reservedAt);
+            (committed ? COORDINATOR_COMMITTED : COORDINATOR_ABORTED).inc();
+        } finally {
+            inFlight.remove(txId);
+        }
+
+        // If the participant cannot be reached now, or the decision is not yet safe to send,
+        // the sweep delivers it later
+        if (replicated) deliver(txId);
+        // A commit a failover could still lose is not reported; an abort is presumed anyway
+        if (committed && !replicated) throw new OutcomeUnknownException(outcome);
+        return outcome;
+    }
+
+    /** @return null if the participant prepared the credit, otherwise why not */
+    private String prepareParticipant(TransferRequest request, String txId, int participant) {
+        try (Span ignored = Tracing.start("2pc.prepare").set("participant", participant)) {
+            PrepareResponse r = leaderStub(participant)
+                    .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+                    .prepareTransfer(request.toBuilder()
+                            .setTxId(txId)
+                            .setCoordinatorPartition(ownership.partitionId())
+                            .build());
+            return r.getOk() ? null : r.getMessage();
+        } catch (StatusRuntimeException | IOException e) {
+            leaders.remove(participant);
+            return "partition " + participant + " did not prepare (" + e.getMessage() + ")";
+        }
+    }
+
+    /** Sends a decided outcome to the participant and forgets it once the participant has it. */
+    private void deliver(String txId) {
+        AccountStore.TxOutcome outcome = store.decidedTx(txId);
+        if (outcome == null) return;
+
+        AccountStore.TxHold hold = outcome.hold();
+        TransferRequest request = TransferRequest.newBuilder()
+                .setFromAccount(hold.account())
+                .setToAccount(hold.peerAccount())
+                .setAmount(AccountStore.fromMinor(hold.amount()))
+                .setTxId(txId)
+                .setCoordinatorPartition(ownership.partitionId())
+                .build();
+        try (Span ignored = Tracing.start("2pc.deliver").set("commit", outcome.committed())) {
+            WalletServiceGrpc.WalletServiceBlockingStub stub = leaderStub(hold.peerPartition())
+                    .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS);
+            Ack ack = outcome.committed() ? stub.commitTransfer(request) : stub.abortTransfer(request);
+            if (!ack.getOk()) return;
+        } catch (StatusRuntimeException | IOException e) {
+            leaders.remove(hold.peerPartition());
+            return;
+        }
+
+        // Not waited on: if it is lost, the participant is just sent the outcome again
+        store.forgetTx(txId);
+        commitSeq.remove(txId);
+        log.append(LogEntry.newBuilder().setForgetTx(txId));
+    }
+
+    /**
+     * Answers a participant asking about {@code txId}. A commit is only reported once a quorum
+     * has its decision entry: until then a failover could lose it, and the new leader would
+     * presume abort and release the debit after the participant had applied the credit.
+     */
+    public TxState status(String txId) {
+        AccountStore.TxHold hold = store.preparedTx(txId);
+        if ((hold != null && hold.debit()) || inFlight.contains(txId)) return TxState.PENDING;
+
+        AccountStore.TxOutcome outcome = store.decidedTx(txId);
+        if (outcome == null || !outcome.committed()) return TxState.ABORTED;
+
+        // Decided by an earlier leader (or before a restart): its entry is somewhere in the log
+        Long seq = commitSeq.get(txId);
+        return replicator.isReplicated(seq != null ? seq : log.lastSeq()) ? TxState.COMMITTED : TxState.PENDING;
+    }
+
+    /* ---------------- participant ---------------- */
+
+    /** Records the credit side of a transaction coordinated by another partition. */
+    public PrepareResponse prepare(TransferRequest request) {
+        TxStep step = TxStep.newBuilder()
+                .setTxId(request.getTxId())
+                .setAccount(request.getToAccount())
+                .setAmountMinor(AccountStore.toMinor(request.getAmount()))
+                .setDebit(false)
+                .setPeerPartition(request.getCoordinatorPartition())
+                .setPeerAccount(request.getFromAccount())
+                .build();
+
+        Step prepared = !request.getTxId().isEmpty() && request.getAmount() >= 0
+                ? replicated(owned(step.getAccount()),
+                        () -> store.prepareTx(step.getTxId(), LogApplier.hold(step)),
+                        LogEntry.newBuilder().setPrepareTx(step))
+                : Step.REJECTED;
+
+        if (prepared == Step.DONE) {
+            PARTICIPANT_PREPARED.inc();
+            creditedAt.put(step.getTxId(), System.nanoTime());
+        } else {
+            PARTICIPANT_REJECTED.inc();
+        }
+
+        // A credit that did not reach a quorum could be lost in a failover, so it is not
+        // promised; the coordinator aborts and the sweep releases it here
+        return PrepareResponse.newBuilder()
+                .setOk(prepared == Step.DONE)
+                .setMessage(switch (prepared) {
+                    case DONE -> "READY";
+                    case REJECTED -> "ACCOUNT_NOT_FOUND";
+                    case NOT_REPLICATED -> "NOT_REPLICATED";
+                })
+                .build();
+    }
+
+    /**
+     * Applies the coordinator's decision. The coordinator forgets the decision once this is
+     * acknowledged, so it is only acknowledged once replicated to a quorum.
+     */
+    public boolean finish(TransferRequest request, boolean commit) {
+        AccountStore.TxHold hold = store.preparedTx(request.getTxId());
+        if (hold == null) {
+            // Already finished by an earlier delivery, whose entry may still be on its way to the followers
+            return replicator.awaitQuorum(commit ? "commitTransfer" : "abortTransfer", log.lastSeq());
+        }
+        if (hold.debit()) return false; // only the coordinator decides its own side
+
+        return decide(request.getTxId(), hold, commit) != Step.NOT_REPLICATED;
+    }
+
+    /* ---------------- recovery ---------------- */
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.warn("Transaction sweep failed", e);
+        }
+    }
+
+    private void sweep() {
+        Map<String, AccountStore.TxHold> prepared = store.preparedTxs();
+        creditedAt.keySet().retainAll(prepared.keySet()); // e.g. decided by a later leader
+        commitSeq.keySet().retainAll(store.decidedTxs().keySet());
+        if (!isLeader.get()) return;
+
+        firstSeen.keySet().retainAll(prepared.keySet());
+
+        // Decisions are only sent once replicated (e.g. held back when the quorum was slow)
+        List<String> decided = List.copyOf(store.decidedTxs().keySet());
+        if (!decided.isEmpty() && replicator.awaitQuorum("transaction sweep", log.lastSeq())) {
+            decided.forEach(this::deliver);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, AccountStore.TxHold> e : List.copyOf(prepared.entrySet())) {
+            String txId = e.getKey();
+            AccountStore.TxHold hold = e.getValue();
+            if (inFlight.contains(txId)) continue;
+            if (now - firstSeen.computeIfAbsent(txId, id -> now) < timeoutMs) continue;
+
+            if (hold.debit()) {
+                // Reserved but never decided (the coordinator failed mid-transaction): presumed abort
+                logger.atInfo().addKeyValue("txId", txId).addKeyValue("account", hold.account())
+                        .log("Aborting transaction after {} ms undecided", timeoutMs);
+                decide(txId, hold, false);
+                deliver(txId);
+            } else {
+                TxState state = askCoordinator(txId, hold.peerPartition());
+                if (state != TxState.PENDING) decide(txId, hold, state == TxState.COMMITTED);
+            }
+        }
+    }
+
+    private TxState askCoordinator(String txId, int coordinator) {
+        try {
+            return leaderStub(coordinator)
+                    .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+                    .txStatus(TxStatusRequest.newBuilder().setTxId(txId).build())
+                    .getState();
+        } catch (StatusRuntimeException | IOException e) {
+            leaders.remove(coordinator);
+            return TxState.PENDING;
+        }
+    }
+
+    /* ---------------- helpers ---------------- */
+
+    private Step decide(String txId, AccountStore.TxHold hold, boolean commit) {
+        // Committing a credit only adds to the balance, so a hot account takes just a credit lane
+        Step step = replicated(tracked(() -> hold.debit() ? store.lock(hold.account()) : store.lockCredit(hold.account()),
+                        hold.account()),
+                () -> commit ? store.commitTx(txId) : store.abortTx(txId),
+                decision(txId, hold, commit));
+        if (step == Step.REJECTED) return step;
+
+        if (hold.debit()) {
+            (commit ? COORDINATOR_COMMITTED : COORDINATOR_ABORTED).inc();
+        } else {
+            (commit ? PARTICIPANT_COMMITTED : PARTICIPANT_ABORTED).inc();
+            Long since = creditedAt.remove(txId);
+            if (since != null) PARTICIPANT_IN_DOUBT.observeSince(since);
+        }
+        return step;
+    }
+
+    private static LogEntry.Builder decision(String txId, AccountStore.TxHold hold, boolean commit) {
+        TxStep step = TxStep.newBuilder()
+                .setTxId(txId)
+                .setAccount(hold.account())
+                .setAmountMinor(hold.amount())
+                .setDebit(hold.debit())
+                .setPeerPartition(hold.peerPartition())
+                .setPeerAccount(hold.peerAccount())
+                .build();
+        return commit ? LogEntry.newBuilder().setCommitTx(step) : LogEntry.newBuilder().setAbortTx(step);
+    }
+
+    private enum Step { DONE, REJECTED, NOT_REPLICATED }
+
+    /**
+     * Applies a 2PC step under the account's store lock, appends it to the replication log and
+     * waits for it to be durable and applied by a quorum, like any other write. Prepares check
+     * that the account belongs to this partition ({@link #owned}); commits and aborts do not,
+     * since accounts with prepared transactions are never migrated, but they are recorded as
+     * writes to a bucket being copied ({@link #tracked}).
+     */
+    private Step replicated(Supplier<AccountStore.Locked> lock, BooleanSupplier mutation, LogEntry.Builder entry) {
+        Span span = Tracing.current();
+        if (span.isSampled()) entry.setTraceParent(span.traceParent());
+
+        long seq;
+        try (AccountStore.Locked ignored = lock.get()) {
+            if (!mutation.getAsBoolean()) return Step.REJECTED;
+            seq = log.append(entry);
+            if (entry.hasCommitTx() && entry.getCommitTx().getDebit()) commitSeq.put(entry.getCommitTx().getTxId(), seq);
+        }
+
+        try (Span ignored = Tracing.start("wal.durable")) {
+            if (!persistence.awaitDurable()) return Step.NOT_REPLICATED;
+        }
+        try (Span ignored = Tracing.start("replication.quorum")) {
+            return replicator.awaitQuorum(entry.getOpCase().name(), seq) ? Step.DONE : Step.NOT_REPLICATED;
+        }
+    }
+
+    private Supplier<AccountStore.Locked> owned(String account) {
+        return () -> ownership.lockOwned(store, new String[]{account});
+    }
+
+    /**
+     * Decisions skip the ownership check, but a migration copying the account's bucket must
+     * still send the balance again once the decision has changed it.
+     */
+    private Supplier<AccountStore.Locked> tracked(Supplier<AccountStore.Locked> lock, String account) {
+        return () -> {
+            AccountStore.Locked locked = lock.get();
+            ownership.recordWrite(account);
+            return locked;
+        };
+    }
+
+    private WalletServiceGrpc.WalletServiceBlockingStub leaderStub(int partition) throws IOException {
+        WalletServiceGrpc.WalletServiceBlockingStub stub = leaders.get(partition);
+        if (stub != null) return stub;
+
+        NameServiceClient.ServiceDetails leader;
+        try (Span ignored = Tracing.start("etcd.lookup").set("partition", partition)) {
+            leader = ns.lookupService(serviceName + "/p" + partition);
+        }
+        if (leader == null) throw new IOException("no leader registered for partition " + partition);
+
+        stub = WalletServiceGrpc.newBlockingStub(channels.channelFor(leader.getPort()));
+        leaders.put(partition, stub);
+        return stub;
+    }
+
+    private static TransferResponse response(boolean ok, String message) {
+        return TransferResponse.newBuilder().setOk(ok).setMessage(message).build();
+    }
+
+    public void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -1,79 +1,356 @@
 package uk.ac.westminster.ds.server;
 
+import ch.qos.logback.classic.LoggerContext;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
-import org.apache.zookeeper.ZooKeeper;
+import io.grpc.ServerInterceptors;
+import io.grpc.util.TransmitStatusRuntimeExceptionInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.westminster.ds.nameservice.EtcdClient;
 import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
 import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.store.BalanceTable;
+import uk.ac.westminster.ds.store.HashMapBalanceTable;
+import uk.ac.westminster.ds.store.OpenAddressingBalanceTable;
+import uk.ac.westminster.ds.tracing.Tracing;
+import uk.ac.westminster.ds.tracing.TracingServerInterceptor;
 import uk.ac.westminster.ds.zookeeper.LeaderElector;
-import uk.ac.westminster.ds.zookeeper.ZkConnector;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class WalletServer {
 
+    private static final Logger logger = LoggerFactory.getLogger(WalletServer.class);
+
     public static final String NAME_SERVICE_ADDRESS = "http://localhost:2379";
     public static final String SERVICE_NAME = "WalletService";
 
     // ZooKeeper
     public static final String ZK_ADDRESS = "127.0.0.1:2181";
 
-    // Two partitions, each with its own replica group
-    private static final List<Integer> PARTITION_0_PORTS = List.of(50051, 50052, 50053);
-    private static final List<Integer> PARTITION_1_PORTS = List.of(50061, 50062, 50063);
+    private static final Metrics.Family<Metrics.Counter> LEADERSHIP_CHANGES = Metrics.counter(
+            "ewallet_leadership_transitions_total", "Times this replica became leader or follower", "role");
+    private static final Metrics.Histogram FAILOVER = Metrics.latency(
+            "ewallet_election_failover_seconds",
+            "From seeing the previous leader's znode go to leading in its place").labels();
+
+    /**
+     * Loads the partition map from etcd. The first replica to start stores the initial layout:
+     * ewallet.partitions ("50051,50052,50053;50061,50062,50063", one replica group per
+     * partition) or, if unset, the default two groups.
+     */
+    private static PartitionMap partitionMap() {
+        EtcdClient etcd = new EtcdClient(NAME_SERVICE_ADDRESS);
+        String layout = System.getProperty("ewallet.partitions");
+        PartitionMap initial = layout == null ? PartitionMap.defaultMap() : PartitionMap.initial(parseGroups(layout));
+
+        try {
+            PartitionMap stored = PartitionMap.update(etcd, current -> current != null ? current : initial);
+            if (stored == initial) logger.info("Stored initial partition map in etcd: {}", initial);
+            return stored;
+        } catch (Exception e) {
+            logger.warn("Could not load partition map from etcd, using the local layout: {}", e.getMessage());
+        }
+        return initial;
+    }
+
+    private static List<List<Integer>> parseGroups(String layout) {
+        List<List<Integer>> groups = new ArrayList<>();
+        for (String group : layout.split(";")) {
+            List<Integer> ports = new ArrayList<>();
+            for (String port : group.split(",")) {
+                ports.add(Integer.parseInt(port.trim()));
+            }
+            groups.add(ports);
+        }
+        return groups;
+    }
+
+    /**
+     * Store engine: "map" (default) or "primitive" for very large partitions,
+     * sized with ewallet.store.expectedAccounts.
+     */
+    private static BalanceTable balanceTable() {
+        String engine = System.getProperty("ewallet.store.engine", "map");
+        return switch (engine) {
+            case "map" -> new HashMapBalanceTable();
+            case "primitive" -> new OpenAddressingBalanceTable(
+                    Integer.getInteger("ewallet.store.expectedAccounts", 1_000_000));
+            default -> throw new IllegalArgumentException("Unknown store engine: " + engine);
+        };
+    }
+
+    /**
+     * Hot accounts (ewallet.store.hotAccounts, comma-separated), e.g. merchant or settlement
+     * accounts that receive a large share of deposits; their credits go to striped cells.
+     */
+    private static Set<String> hotAccounts() {
+        Set<String> ids = new HashSet<>();
+        for (String id : System.getProperty("ewallet.store.hotAccounts", "").split(",")) {
+            if (!id.isBlank()) ids.add(id.trim());
+        }
+        return ids;
+    }
+
+    private static void deregister(Closeable registration) {
+        if (registration == null) return;
+        try {
+            registration.close();
+        } catch (IOException e) {
+            logger.warn("etcd deregistration failed, the entry expires with its lease: {}", e.getMessage());
+        }
+    }
+
+    /** etcd key listing one replica of a partition, whether leader or follower. */
+    public static String replicaKey(int partitionId, String replicaId) {
+        return SERVICE_NAME + "/replicas/p" + partitionId + "/" + replicaId;
+    }
 
     public static void start(int port, String replicaId, int partitionId) throws Exception {
 
-        AccountStore store = new AccountStore();
+        // Every log line from this process names the replica (see logback.xml)
+        if (LoggerFactory.getILoggerFactory() instanceof LoggerContext context) {
+            context.putProperty("partition", String.valueOf(partitionId));
+            context.putProperty("replica", replicaId);
+        }
+        Tracing.configureFromProperties("replica-" + replicaId + "/p" + partitionId);
+
+        AccountStore store = new AccountStore(balanceTable(), hotAccounts());
         AtomicBoolean isLeader = new AtomicBoolean(false);
+        ReplicationChannels channels = new ReplicationChannels("localhost");
 
         // Partition-specific election path and etcd key
         String electionPath = "/ewallet/partition" + partitionId + "/election";
         String serviceKey = SERVICE_NAME + "/p" + partitionId;
 
-        // Pick correct replica group for this partition
-        List<Integer> replicaPorts =
-                (partitionId == 0) ? PARTITION_0_PORTS : PARTITION_1_PORTS;
+        // Pick correct replica group for this partition, and follow bucket ownership changes
+        PartitionOwnership ownership = new PartitionOwnership(partitionId, partitionMap());
+        ownership.watch(new EtcdClient(NAME_SERVICE_ADDRESS));
+        List<Integer> replicaPorts = ownership.map().replicaPorts(partitionId);
+
+        // Every applied write gets a seq in the replication log, which the leader
+        // streams to followers in batches. Writes are acknowledged once a quorum
+        // of the replica group holds them.
+        ReplicationLog log = new ReplicationLog(Integer.getInteger("ewallet.replication.logRetention", 100_000));
+
+        // Responses to requests with an idempotency key, so client retries are not applied twice
+        IdempotencyCache dedup = new IdempotencyCache(
+                Integer.getInteger("ewallet.dedup.maxEntries", 100_000),
+                Long.getLong("ewallet.dedup.ttlMs", 600_000));
+
+        // Recover balances from the latest snapshot plus the write-ahead log tail,
+        // then persist every new log entry
+        LogApplier applier = new LogApplier(store, dedup);
+        StorePersistence persistence = StorePersistence.open(
+                Path.of(System.getProperty("ewallet.data.dir", "data"), replicaId),
+                store, dedup, log, applier,
+                Long.getLong("ewallet.wal.flushIntervalMs", 2),
+                Boolean.parseBoolean(System.getProperty("ewallet.wal.fsync", "true")),
+                Boolean.parseBoolean(System.getProperty("ewallet.wal.syncCommit", "true")),
+                Long.getLong("ewallet.snapshot.everyEntries", 100_000));
+
+        int quorum = Integer.getInteger("ewallet.replication.quorum",
+                QuorumReplicator.majority(replicaPorts.size()));
+        long replicationDeadlineMs = Long.getLong("ewallet.replication.deadlineMs", 2000);
+        int replicationMaxBatch = Integer.getInteger("ewallet.replication.maxBatch", 512);
+        QuorumReplicator replicator = new QuorumReplicator(channels, log, persistence, port, replicaPorts, quorum,
+                replicationDeadlineMs, replicationMaxBatch,
+                Integer.getInteger("ewallet.replication.maxInFlight", 8192));
+
+        // Concurrent single writes on the leader are applied, logged and replicated in groups
+        WriteBatcher writes = new WriteBatcher(store, ownership, log, persistence, replicator,
+                Long.getLong("ewallet.write.batchWindowMicros", 200),
+                Integer.getInteger("ewallet.write.maxBatch", 256));
+        writes.start();
+
+        ReplicationServiceImpl replication = new ReplicationServiceImpl(store, log, applier, persistence,
+                Long.getLong("ewallet.read.maxLeaderSilenceMs", 1000));
+
+        // A new leader first fetches acknowledged entries it missed from the other replicas
+        LeaderCatchUp catchUp = new LeaderCatchUp(channels, replication, log, persistence, port, replicaPorts, quorum,
+                replicationDeadlineMs, replicationMaxBatch);
+
+        BucketMigrator migrator = new BucketMigrator(store, log, persistence, replicator, ownership, channels,
+                new NameServiceClient(NAME_SERVICE_ADDRESS), SERVICE_NAME, isLeader);
+
+        // Transfers to another partition are two-phase commits coordinated by this leader;
+        // undecided transactions are resolved after ewallet.tx.timeoutMs
+        TransactionCoordinator transactions = new TransactionCoordinator(store, log, persistence, replicator, ownership,
+                channels, new NameServiceClient(NAME_SERVICE_ADDRESS), SERVICE_NAME, isLeader,
+                Long.getLong("ewallet.tx.timeoutMs", 5000));
+
+        // Connect to ZooKeeper; the election znode carries our address so followers can
+        // redirect clients to the leader. A crashed leader is replaced once it has sent no
+        // heartbeat for ewallet.replication.leaderTimeoutMs, or at the latest once its session
+        // (ewallet.zk.sessionTimeoutMs) expires; one that shuts down cleanly, straight away.
+        LeaderElector elector = new LeaderElector(ZK_ADDRESS, Integer.getInteger("ewallet.zk.sessionTimeoutMs", 5000),
+                electionPath, replicaId, "localhost:" + port);
+
+        // A crashed leader is noticed by its missing heartbeats, well before its session expires
+        long leaderTimeoutMs = Long.getLong("ewallet.replication.leaderTimeoutMs", 600);
+        if (leaderTimeoutMs > 0) {
+            elector.takeOverFromSilentLeader(term -> replication.leaderSilent(term, leaderTimeoutMs),
+                    Math.max(10, leaderTimeoutMs / 6));
+        }
+
+        // Followers refuse batches from a replaced leader, and tell it so in their acks
+        replication.setOnNewTerm(elector::observeTerm);
+        replicator.setOnDeposed(elector::deposed);
+        // A follower holding entries past our log refuses us; one of the replicas holding them should lead
+        replicator.setOnFollowerAhead(elector::resign);
+
+        // Scrape endpoint; the gauges are read on each scrape
+        Metrics.gauge("ewallet_leader", "1 if this replica is its partition's leader").labels()
+                .set(() -> isLeader.get() ? 1 : 0);
+        Metrics.gauge("ewallet_election_term", "Election term of this partition's leader as seen here").labels()
+                .set(elector::term);
+        Metrics.gauge("ewallet_store_accounts", "Accounts held by this replica").labels().set(store::size);
+        Metrics.gauge("ewallet_replication_last_seq", "Highest log seq applied by this replica").labels().set(log::lastSeq);
+        Metrics.gauge("ewallet_replication_lag_entries",
+                "Log entries this follower is behind its leader, -1 if the leader has gone silent").labels()
+                .set(() -> {
+                    long lag = isLeader.get() ? 0 : replication.lag();
+                    return lag == Long.MAX_VALUE ? -1 : lag;
+                });
+        Metrics.gauge("ewallet_tx_in_doubt", "Transactions prepared here and not yet decided").labels()
+                .set(() -> store.preparedTxs().size());
+        int metricsPort = Integer.getInteger("ewallet.metrics.port", port + 1000);
+        MetricsEndpoint metrics = metricsPort < 0 ? null : new MetricsEndpoint(metricsPort);
 
         // gRPC server starts on every replica:
         // - WalletService (client-facing, leader-only for writes)
         // - ReplicationService (internal leader->followers)
         Server server = ServerBuilder
                 .forPort(port)
-                .addService(new WalletServiceImpl(store, isLeader, port, replicaPorts))
-                .addService(new ReplicationServiceImpl(store))
+                // Replication channels ping idle connections; allow it instead of sending GOAWAY
+                .permitKeepAliveTime(10, TimeUnit.SECONDS)
+                .permitKeepAliveWithoutCalls(true)
+                .intercept(new MetricsInterceptor())
+                // WRONG_PARTITION is thrown from inside the write path; send it as the call's status
+                .addService(ServerInterceptors.intercept(
+                        new WalletServiceImpl(store, isLeader, elector::getLeaderAddress, replication::lag,
+                                ownership, log, replicator, persistence, transactions, dedup, writes),
+                        TransmitStatusRuntimeExceptionInterceptor.instance(),
+                        // Outermost, so its span ends with the status the call actually gets
+                        new TracingServerInterceptor()))
+                .addService(replication)
+                .addService(new MigrationServiceImpl(migrator, ownership))
                 .build()
                 .start();
 
-        System.out.println("Replica " + replicaId + " started on port " + port + " (partition " + partitionId + ")");
+        logger.atInfo().addKeyValue("port", port)
+                .log("Replica started{}", metrics == null ? "" : ", metrics on http://127.0.0.1:" + metrics.port() + "/metrics");
+
+        // Replica and leader entries are held by etcd leases, so a replica that dies without
+        // deregistering drops out of etcd after ewallet.etcd.leaseTtlSeconds
+        NameServiceClient registry = new NameServiceClient(NAME_SERVICE_ADDRESS);
+        long leaseTtlSeconds = Long.getLong("ewallet.etcd.leaseTtlSeconds", 10);
+        AtomicReference<Closeable> leaderRegistration = new AtomicReference<>();
 
-        // Connect to ZooKeeper and start leader election
-        ZooKeeper zk = ZkConnector.connect(ZK_ADDRESS, 5000);
+        // Every replica is listed so clients can spread follower reads across the group
+        Closeable replicaRegistration = null;
+        try {
+            replicaRegistration = registry.registerService(
+                    replicaKey(partitionId, replicaId), "localhost", port, "grpc", leaseTtlSeconds);
+        } catch (IOException e) {
+            logger.warn("etcd replica registration failed: {}", e.getMessage());
+        }
+        Closeable replicaEntry = replicaRegistration;
+
+        transactions.start();
 
-        LeaderElector elector = new LeaderElector(zk, electionPath, replicaId);
         elector.setOnLeadershipChange(leaderNow -> {
+            if (leaderNow && !isLeader.get()) {
+                // Our own term fences off the old leader should it still reach us
+                replication.observeTerm(elector.term());
+                if (!catchUp.run(elector.term())) {
+                    elector.resign();
+                    return;
+                }
+            }
+            // Before any write can be accepted, so every entry this leader appends carries its term
+            if (leaderNow) log.setTerm(elector.term());
             boolean old = isLeader.getAndSet(leaderNow);
 
             if (leaderNow && !old) {
-                System.out.println(">>> I AM LEADER: " + replicaId + " (partition " + partitionId + ")");
+                logger.info(">>> I AM LEADER (term {})", elector.term());
+                LEADERSHIP_CHANGES.labels("leader").inc();
+                replicator.start(elector.term());
 
                 // Register ONLY the leader for THIS partition in etcd
                 try {
-                    NameServiceClient ns = new NameServiceClient(NAME_SERVICE_ADDRESS);
-                    ns.registerService(serviceKey, "localhost", port, "grpc");
-                    System.out.println("Registered leader in etcd: " + serviceKey + " -> localhost:" + port);
-                } catch (Exception e) {
-                    System.err.println("WARNING: etcd registration failed: " + e.getMessage());
+                    deregister(leaderRegistration.getAndSet(
+                            registry.registerService(serviceKey, "localhost", port, "grpc", leaseTtlSeconds)));
+                    logger.info("Registered leader in etcd: {} -> localhost:{}", serviceKey, port);
+                } catch (IOException e) {
+                    logger.warn("etcd leader registration failed: {}", e.getMessage());
+                }
+
+                long vacancy = elector.vacancyDetectedNanos();
+                if (vacancy != 0) {
+                    FAILOVER.observeSince(vacancy);
+                    logger.atInfo().addKeyValue("term", elector.term())
+                            .log("Took over {} ms after the previous leader left", (System.nanoTime() - vacancy) / 1_000_000);
                 }
             }
 
             if (!leaderNow && old) {
-                System.out.println(">>> I AM FOLLOWER NOW: " + replicaId + " (partition " + partitionId + ")");
+                logger.info(">>> I AM FOLLOWER NOW");
+                LEADERSHIP_CHANGES.labels("follower").inc();
+                replicator.stop();
+                // Revoking our lease leaves the entry alone if the next leader has already replaced it
+                deregister(leaderRegistration.getAndSet(null));
             }
         });
 
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Clients stop routing here straight away instead of when the leases expire
+            deregister(leaderRegistration.getAndSet(null));
+            deregister(replicaEntry);
+            // Closing the session hands leadership over now rather than after the session timeout
+            try {
+                elector.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replicator.stop();
+            transactions.close();
+            writes.close();
+            channels.close();
+            if (metrics != null) metrics.close();
+            Tracing.close();
+            try {
+                ownership.close();
+                persistence.close();
+            } catch (Exception e) {
+                logger.warn("Closing write-ahead log failed: {}", e.getMessage());
+            }
+        }));
+
+        // A replica joining a running group first catches up with the leader (log tail or
+        // snapshot) so it never becomes leader with missing writes
+        if (elector.hasCandidates()) {
+            long catchUpTimeoutMs = Long.getLong("ewallet.replication.catchUpTimeoutMs", 60_000);
+            logger.info("Catching up with the current leader before joining the election...");
+            if (!replication.awaitCaughtUp(catchUpTimeoutMs)) {
+                logger.warn("Not caught up after {} ms, joining the election anyway", catchUpTimeoutMs);
+            }
+        }
+
         elector.startElection();
+        // Batches from leaders older than the one we just saw are refused from here on
+        replication.observeTerm(elector.term());
         server.awaitTermination();
     }
 }
@@ -1,121 +1,193 @@
 package uk.ac.westminster.ds.server;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import io.grpc.Metadata;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import uk.ac.westminster.ds.common.WalletProtocol;
 import uk.ac.westminster.ds.ewallet.grpc.*;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
 import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
 
+    // How long a retry waits for the original request with the same idempotency key
+    private static final long DUPLICATE_WAIT_MS = 30_000;
+
     private final AccountStore store;
     private final AtomicBoolean isLeader;
-    private final int myPort;
-    private final List<Integer> replicaPorts;
+    private final Supplier<String> leaderAddress;
+    private final LongSupplier replicationLag;
+    private final PartitionOwnership ownership;
+    private final ReplicationLog log;
+    private final QuorumReplicator replicator;
+    private final StorePersistence persistence;
+    private final TransactionCoordinator transactions;
+    private final IdempotencyCache dedup;
+    private final WriteBatcher writes;
 
     public WalletServiceImpl(AccountStore store,
                              AtomicBoolean isLeader,
-                             int myPort,
-                             List<Integer> replicaPorts) {
+                             Supplier<String> leaderAddress,
+                             LongSupplier replicationLag,
+                             PartitionOwnership ownership,
+                             ReplicationLog log,
+                             QuorumReplicator replicator,
+                             StorePersistence persistence,
+                             TransactionCoordinator transactions,
+                             IdempotencyCache dedup,
+                             WriteBatcher writes) {
         this.store = store;
         this.isLeader = isLeader;
-        this.myPort = myPort;
-        this.replicaPorts = replicaPorts;
+        this.leaderAddress = leaderAddress;
+        this.replicationLag = replicationLag;
+        this.ownership = ownership;
+        this.log = log;
+        this.replicator = replicator;
+        this.persistence = persistence;
+        this.transactions = transactions;
+        this.dedup = dedup;
+        this.writes = writes;
     }
 
     private boolean ensureLeader(StreamObserver<?> responseObserver) {
         if (!isLeader.get()) {
-            responseObserver.onError(
-                    Status.FAILED_PRECONDITION
-                            .withDescription("NOT_LEADER")
-                            .asRuntimeException());
+            reject(responseObserver, WalletProtocol.NOT_LEADER);
             return false;
         }
         return true;
     }
 
-    @FunctionalInterface
-    private interface ReplicationCall {
-        void run(ReplicationServiceGrpc.ReplicationServiceBlockingStub stub);
+    /** Checks that this replica may answer a read at the requested consistency. */
+    private boolean ensureFresh(ReadConsistency consistency, long maxLag, StreamObserver<?> responseObserver) {
+        if (isLeader.get()) return true;
+
+        return switch (consistency) {
+            case ANY -> true;
+            case BOUNDED -> {
+                if (replicationLag.getAsLong() <= maxLag) yield true;
+                reject(responseObserver, WalletProtocol.STALE_READ);
+                yield false;
+            }
+            default -> ensureLeader(responseObserver);
+        };
     }
 
-    private void callFollower(int port, ReplicationCall call) {
-        ManagedChannel ch = null;
-        try {
-            ch = ManagedChannelBuilder
-                    .forAddress("localhost", port)
-                    .usePlaintext()
-                    .build();
+    /** Rejects reads of accounts whose bucket belongs to another partition (the client's map is stale). */
+    private boolean ensureOwned(StreamObserver<?> responseObserver, String accountId) {
+        if (ownership.owns(accountId)) return true;
+        responseObserver.onError(PartitionOwnership.wrongPartition().asRuntimeException());
+        return false;
+    }
 
-            ReplicationServiceGrpc.ReplicationServiceBlockingStub stub =
-                    ReplicationServiceGrpc.newBlockingStub(ch);
+    private void reject(StreamObserver<?> responseObserver, String reason) {
+        // Point the client straight at the leader so it need not wait for etcd to catch up
+        Metadata trailers = new Metadata();
+        String leader = leaderAddress.get();
+        if (leader != null) trailers.put(WalletProtocol.LEADER_ADDRESS, leader);
 
-            call.run(stub);
+        responseObserver.onError(
+                Status.FAILED_PRECONDITION
+                        .withDescription(reason)
+                        .asRuntimeException(trailers));
+    }
 
-        } catch (Exception e) {
-            System.err.println("Replication failed to port " + port + ": " + e.getMessage());
-        } finally {
-            if (ch != null) {
-                ch.shutdown();
-                try {
-                    ch.awaitTermination(1, TimeUnit.SECONDS);
-                } catch (InterruptedException ignored) {
-                }
+    /**
+     * Runs a write at most once per idempotency key. A retry of a request that was already
+     * applied (here, or on the previous leader before a failover) gets the original response;
+     * a retry that arrives while the original is still running waits for it.
+     * <p>
+     * The write's future may complete on another thread (see {@link WriteBatcher}); the
+     * response is sent from there.
+     */
+    private <T extends Message> void once(String requestId,
+                                          StreamObserver<T> responseObserver,
+                                          Parser<T> parser,
+                                          Supplier<CompletableFuture<T>> write) {
+        boolean keyed = !requestId.isEmpty();
+        if (keyed) {
+            CompletableFuture<ByteString> original = dedup.claim(requestId);
+            if (original != null) {
+                // A copy, so the timeout does not fail the original for other waiters. Handled off
+                // the thread that completes the original, since it may wait for the quorum.
+                original.copy().orTimeout(DUPLICATE_WAIT_MS, TimeUnit.MILLISECONDS).whenCompleteAsync((bytes, error) -> {
+                    if (error == null && isLeader.get() && !replicator.awaitQuorum("retry", log.lastSeq())) {
+                        // The original may be one of the entries still short of a quorum
+                        responseObserver.onError(OutcomeUnknownException.STATUS.asRuntimeException());
+                    } else if (error == null) {
+                        try {
+                            reply(responseObserver, parser.parseFrom(bytes));
+                        } catch (InvalidProtocolBufferException e) {
+                            responseObserver.onError(Status.INVALID_ARGUMENT
+                                    .withDescription("Request id " + requestId + " was used for a different call")
+                                    .asRuntimeException());
+                        }
+                    } else if (unwrap(error) instanceof TimeoutException) {
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("Request " + requestId + " is still being processed")
+                                .asRuntimeException());
+                    } else {
+                        responseObserver.onError(statusOf(error));
+                    }
+                });
+                return;
             }
         }
-    }
 
-    private void replicateCreateAccount(String accountId) {
-        for (int port : replicaPorts) {
-            if (port == myPort) continue;
-            callFollower(port, stub ->
-                    stub.replicateCreateAccount(
-                            CreateAccountRequest.newBuilder()
-                                    .setAccountId(accountId)
-                                    .build()));
+        CompletableFuture<T> result;
+        try {
+            result = write.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
         }
+
+        result.whenComplete((response, error) -> {
+            if (error != null) {
+                if (keyed) {
+                    if (unwrap(error) instanceof OutcomeUnknownException unknown) {
+                        // Applied and logged here: a retry must get this response, not apply it again
+                        dedup.complete(requestId, unknown.response().toByteString());
+                    } else {
+                        dedup.abandon(requestId, unwrap(error));
+                    }
+                }
+                responseObserver.onError(statusOf(error));
+                return;
+            }
+            if (keyed) dedup.complete(requestId, response.toByteString());
+            reply(responseObserver, response);
+        });
     }
 
-    private void replicateDeposit(String accountId, double amount) {
-        for (int port : replicaPorts) {
-            if (port == myPort) continue;
-            callFollower(port, stub ->
-                    stub.replicateDeposit(
-                            AmountRequest.newBuilder()
-                                    .setAccountId(accountId)
-                                    .setAmount(amount)
-                                    .build()));
-        }
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 
-    private void replicateWithdraw(String accountId, double amount) {
-        for (int port : replicaPorts) {
-            if (port == myPort) continue;
-            callFollower(port, stub ->
-                    stub.replicateWithdraw(
-                            AmountRequest.newBuilder()
-                                    .setAccountId(accountId)
-                                    .setAmount(amount)
-                                    .build()));
-        }
+    // WRONG_PARTITION and friends keep their status; anything else is reported as the call's failure
+    private static StatusRuntimeException statusOf(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof StatusRuntimeException sre ? sre : Status.fromThrowable(cause).asRuntimeException();
     }
 
-    private void replicateTransfer(String from, String to, double amount) {
-        for (int port : replicaPorts) {
-            if (port == myPort) continue;
-            callFollower(port, stub ->
-                    stub.replicateTransfer(
-                            TransferRequest.newBuilder()
-                                    .setFromAccount(from)
-                                    .setToAccount(to)
-                                    .setAmount(amount)
-                                    .build()));
-        }
+    private static <T> void reply(StreamObserver<T> responseObserver, T response) {
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
     }
 
     @Override
@@ -124,24 +196,24 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
 
         if (!ensureLeader(responseObserver)) return;
 
-        boolean created = store.createAccount(request.getAccountId());
-
-        if (created) {
-            replicateCreateAccount(request.getAccountId());
-        }
-
-        responseObserver.onNext(
-                CreateAccountResponse.newBuilder()
-                        .setCreated(created)
-                        .setMessage(created ? "Account created" : "Account already exists")
-                        .build());
-        responseObserver.onCompleted();
+        once(request.getRequestId(), responseObserver, CreateAccountResponse.parser(), () ->
+                writes.submit(request.getRequestId(),
+                        new String[]{request.getAccountId()},
+                        () -> store.createAccount(request.getAccountId()),
+                        created -> CreateAccountResponse.newBuilder()
+                                .setCreated(created)
+                                .setMessage(created ? "Account created" : "Account already exists")
+                                .build(),
+                        LogEntry.newBuilder().setCreateAccount(request)));
     }
 
     @Override
     public void getBalance(BalanceRequest request,
                            StreamObserver<BalanceResponse> responseObserver) {
 
+        if (!ensureFresh(request.getConsistency(), request.getMaxLag(), responseObserver)) return;
+        if (!ensureOwned(responseObserver, request.getAccountId())) return;
+
         Double bal = store.getBalance(request.getAccountId());
 
         if (bal == null) {
@@ -162,30 +234,27 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
         responseObserver.onCompleted();
     }
 
+    private AmountResponse amountResponse(String accountId, boolean ok, String success, String failure) {
+        Double bal = store.getBalance(accountId);
+        return AmountResponse.newBuilder()
+                .setOk(ok)
+                .setBalance(bal == null ? 0 : bal)
+                .setMessage(ok ? success : failure)
+                .build();
+    }
+
     @Override
     public void deposit(AmountRequest request,
                         StreamObserver<AmountResponse> responseObserver) {
 
         if (!ensureLeader(responseObserver)) return;
 
-        boolean ok = store.deposit(
-                request.getAccountId(),
-                request.getAmount());
-
-        if (ok) {
-            replicateDeposit(request.getAccountId(), request.getAmount());
-        }
-
-        responseObserver.onNext(
-                AmountResponse.newBuilder()
-                        .setOk(ok)
-                        .setBalance(
-                                store.getBalance(request.getAccountId()) == null
-                                        ? 0
-                                        : store.getBalance(request.getAccountId()))
-                        .setMessage(ok ? "Deposit successful" : "Account not found")
-                        .build());
-        responseObserver.onCompleted();
+        once(request.getRequestId(), responseObserver, AmountResponse.parser(), () ->
+                writes.submit(request.getRequestId(),
+                        new String[]{request.getAccountId()},
+                        () -> store.deposit(request.getAccountId(), request.getAmount()),
+                        ok -> amountResponse(request.getAccountId(), ok, "Deposit successful", "Account not found"),
+                        LogEntry.newBuilder().setDeposit(request)));
     }
 
     @Override
@@ -194,24 +263,13 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
 
         if (!ensureLeader(responseObserver)) return;
 
-        boolean ok = store.withdraw(
-                request.getAccountId(),
-                request.getAmount());
-
-        if (ok) {
-            replicateWithdraw(request.getAccountId(), request.getAmount());
-        }
-
-        responseObserver.onNext(
-                AmountResponse.newBuilder()
-                        .setOk(ok)
-                        .setBalance(
-                                store.getBalance(request.getAccountId()) == null
-                                        ? 0
-                                        : store.getBalance(request.getAccountId()))
-                        .setMessage(ok ? "Withdraw successful" : "Insufficient funds or account not found")
-                        .build());
-        responseObserver.onCompleted();
+        once(request.getRequestId(), responseObserver, AmountResponse.parser(), () ->
+                writes.submit(request.getRequestId(),
+                        new String[]{request.getAccountId()},
+                        () -> store.withdraw(request.getAccountId(), request.getAmount()),
+                        ok -> amountResponse(request.getAccountId(), ok,
+                                "Withdraw successful", "Insufficient funds or account not found"),
+                        LogEntry.newBuilder().setWithdraw(request)));
     }
 
     @Override
@@ -220,25 +278,116 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
 
         if (!ensureLeader(responseObserver)) return;
 
-        boolean ok = store.transfer(
-                request.getFromAccount(),
-                request.getToAccount(),
-                request.getAmount());
-
-        if (ok) {
-            replicateTransfer(
-                    request.getFromAccount(),
-                    request.getToAccount(),
-                    request.getAmount());
+        // Accounts on two partitions: this leader coordinates a two-phase commit with the other
+        PartitionMap map = ownership.map();
+        int toPartition = map.partitionOf(request.getToAccount());
+        if (map.partitionOf(request.getFromAccount()) == ownership.partitionId()
+                && toPartition != ownership.partitionId()) {
+            once(request.getRequestId(), responseObserver, TransferResponse.parser(),
+                    () -> CompletableFuture.completedFuture(transactions.transfer(request, toPartition)));
+            return;
         }
 
-        responseObserver.onNext(
-                TransferResponse.newBuilder()
+        once(request.getRequestId(), responseObserver, TransferResponse.parser(), () ->
+                writes.submit(request.getRequestId(),
+                        new String[]{request.getFromAccount(), request.getToAccount()},
+                        () -> store.transfer(request.getFromAccount(), request.getToAccount(), request.getAmount()),
+                        ok -> TransferResponse.newBuilder()
+                                .setOk(ok)
+                                .setMessage(ok
+                                        ? "Transfer successful"
+                                        : "Transfer failed (invalid account or insufficient funds)")
+                                .build(),
+                        LogEntry.newBuilder().setTransfer(request)));
+    }
+
+    @Override
+    public void batchApply(BatchRequest request,
+                           StreamObserver<BatchResponse> responseObserver) {
+
+        if (!ensureLeader(responseObserver)) return;
+
+        once(request.getRequestId(), responseObserver, BatchResponse.parser(),
+                () -> CompletableFuture.completedFuture(applyBatch(request)));
+    }
+
+    private BatchResponse applyBatch(BatchRequest request) {
+        List<Operation> ops = request.getOperationsList();
+        List<OperationResult> results = new ArrayList<>(ops.size());
+        BatchRequest.Builder applied = BatchRequest.newBuilder();
+        BatchResponse response;
+        long seq = -1;
+
+        // One lock acquisition, one log entry and one replication round for the whole batch
+        try (AccountStore.Locked ignored = ownership.lockOwned(store, WalletProtocol.accounts(ops))) {
+            int failed = request.getAtomic() ? BatchOperations.firstFailure(store, ops) : -1;
+
+            for (int i = 0; i < ops.size(); i++) {
+                boolean ok;
+                if (failed >= 0) {
+                    ok = false;
+                } else {
+                    ok = BatchOperations.apply(store, ops.get(i));
+                    if (ok) applied.addOperations(ops.get(i));
+                }
+                results.add(OperationResult.newBuilder()
                         .setOk(ok)
-                        .setMessage(ok
-                                ? "Transfer successful"
-                                : "Transfer failed (invalid account or insufficient funds)")
+                        .setMessage(ok ? "OK" : (failed >= 0 && i != failed) ? "NOT_APPLIED" : "FAILED")
                         .build());
+            }
+
+            boolean allOk = applied.getOperationsCount() == ops.size();
+            response = BatchResponse.newBuilder()
+                    .setOk(allOk)
+                    .addAllResults(results)
+                    .setMessage(allOk ? "Batch applied"
+                            : request.getAtomic() ? "Batch rejected (no operations applied)"
+                            : applied.getOperationsCount() + " of " + ops.size() + " operations applied")
+                    .build();
+
+            if (applied.getOperationsCount() > 0) {
+                LogEntry.Builder entry = LogEntry.newBuilder().setBatch(applied);
+                if (!request.getRequestId().isEmpty()) {
+                    entry.setRequestId(request.getRequestId()).setResponse(response.toByteString());
+                }
+                Span span = Tracing.current();
+                if (span.isSampled()) entry.setTraceParent(span.traceParent());
+                seq = log.append(entry);
+            }
+        }
+
+        if (seq > 0) {
+            try (Span ignored = Tracing.start("wal.durable")) {
+                if (!persistence.awaitDurable()) throw new OutcomeUnknownException(response);
+            }
+            try (Span ignored = Tracing.start("replication.quorum")) {
+                if (!replicator.awaitQuorum("batchApply", seq)) throw new OutcomeUnknownException(response);
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public void multiGetBalance(MultiBalanceRequest request,
+                                StreamObserver<MultiBalanceResponse> responseObserver) {
+
+        // Checked for the whole batch, so a stale client map fails it before anything is read
+        if (!ensureFresh(request.getConsistency(), request.getMaxLag(), responseObserver)) return;
+        for (String id : request.getAccountIdsList()) {
+            if (!ensureOwned(responseObserver, id)) return;
+        }
+
+        MultiBalanceResponse.Builder response = MultiBalanceResponse.newBuilder();
+        for (String id : request.getAccountIdsList()) {
+            Double bal = store.getBalance(id);
+            response.addBalances(
+                    BalanceResponse.newBuilder()
+                            .setFound(bal != null)
+                            .setBalance(bal == null ? 0 : bal)
+                            .setMessage(bal == null ? "Account not found" : "OK")
+                            .build());
+        }
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
 
@@ -246,15 +395,9 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
     public void prepareTransfer(TransferRequest request,
                                 StreamObserver<PrepareResponse> responseObserver) {
 
-        boolean ok = store.prepareDebit(
-                request.getFromAccount(),
-                request.getAmount());
+        if (!ensureLeader(responseObserver)) return;
 
-        responseObserver.onNext(
-                PrepareResponse.newBuilder()
-                        .setOk(ok)
-                        .setMessage(ok ? "READY" : "INSUFFICIENT_FUNDS")
-                        .build());
+        responseObserver.onNext(transactions.prepare(request));
         responseObserver.onCompleted();
     }
 
@@ -262,10 +405,9 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
     public void commitTransfer(TransferRequest request,
                                StreamObserver<Ack> responseObserver) {
 
-        store.commitDebit(request.getFromAccount());
-        store.deposit(request.getToAccount(), request.getAmount());
+        if (!ensureLeader(responseObserver)) return;
 
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
+        responseObserver.onNext(Ack.newBuilder().setOk(transactions.finish(request, true)).build());
         responseObserver.onCompleted();
     }
 
@@ -273,9 +415,20 @@ public class WalletServiceImpl extends WalletServiceGrpc.WalletServiceImplBase {
     public void abortTransfer(TransferRequest request,
                               StreamObserver<Ack> responseObserver) {
 
-        store.abortDebit(request.getFromAccount());
+        if (!ensureLeader(responseObserver)) return;
+
+        responseObserver.onNext(Ack.newBuilder().setOk(transactions.finish(request, false)).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void txStatus(TxStatusRequest request,
+                         StreamObserver<TxStatusResponse> responseObserver) {
+
+        // Only the leader's answer counts: a follower knows nothing and would presume abort
+        if (!ensureLeader(responseObserver)) return;
 
-        responseObserver.onNext(Ack.newBuilder().setOk(true).build());
+        responseObserver.onNext(TxStatusResponse.newBuilder().setState(transactions.status(request.getTxId())).build());
         responseObserver.onCompleted();
     }
 }
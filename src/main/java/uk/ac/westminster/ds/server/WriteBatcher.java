@@ -0,0 +1,294 @@
+package uk.ac.westminster.ds.server;
+
+import com.google.protobuf.Message;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.tracing.Span;
+import uk.ac.westminster.ds.tracing.Tracing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Group commit for single-operation writes on the leader.
+ * <p>
+ * Writes are queued instead of each locking, logging and waiting for replication on its own
+ * request thread. A batcher thread takes everything that arrives within {@code windowMicros}
+ * of the first queued write (at most {@code maxBatch} writes), applies them in arrival order
+ * under one acquisition of their accounts' store locks and appends them to the replication
+ * log in one go, so they reach followers in the same stream batch. A completer thread then
+ * waits once for the batch to be durable and acknowledged by a quorum and completes every
+ * write in it together; the batcher meanwhile applies the next batch.
+ * <p>
+ * Sampled writes get spans for the time they were queued and applied, for the WAL sync and
+ * for the quorum wait, under the span of the request that submitted them.
+ */
+public class WriteBatcher {
+
+    private static final class Write<T extends Message> {
+        final String requestId;
+        final String[] accounts;
+        final BooleanSupplier mutation;
+        final Function<Boolean, T> response;
+        final LogEntry.Builder entry;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Span span = Tracing.current();
+        final long queuedNanos = System.nanoTime();
+
+        T reply;
+        boolean logged;
+        RuntimeException failure;
+
+        Write(String requestId, String[] accounts, BooleanSupplier mutation,
+              Function<Boolean, T> response, LogEntry.Builder entry) {
+            this.requestId = requestId;
+            this.accounts = accounts;
+            this.mutation = mutation;
+            this.response = response;
+            this.entry = entry;
+        }
+
+        /** Applies the write under its accounts' locks; @return the entry to log, or null if it failed */
+        LogEntry.Builder apply() {
+            boolean ok = mutation.getAsBoolean();
+            reply = response.apply(ok);
+            if (!ok) return null;
+
+            // Logged with the response so followers can answer retries after a failover
+            if (!requestId.isEmpty()) entry.setRequestId(requestId).setResponse(reply.toByteString());
+            if (span.isSampled()) entry.setTraceParent(span.traceParent());
+            logged = true;
+            return entry;
+        }
+
+        /** A logged write whose entry missed the quorum deadline is not reported as done. */
+        void notReplicated() {
+            if (logged && failure == null) failure = new OutcomeUnknownException(reply);
+        }
+
+        void finish() {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(reply);
+            }
+        }
+    }
+
+    private record Batch(long lastSeq, long appliedNanos, List<Write<?>> writes) {
+    }
+
+    private final AccountStore store;
+    private final PartitionOwnership ownership;
+    private final ReplicationLog log;
+    private final StorePersistence persistence;
+    private final QuorumReplicator replicator;
+    private final long windowNanos;
+    private final int maxBatch;
+
+    private final LinkedBlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Batch> applied = new LinkedBlockingQueue<>();
+    private final Thread batcher;
+    private final Thread completer;
+
+    // Writes to a bucket frozen for migration wait for it there instead of stalling the batch
+    private final ExecutorService frozenWrites = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "frozen-write");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WriteBatcher(AccountStore store,
+                        PartitionOwnership ownership,
+                        ReplicationLog log,
+                        StorePersistence persistence,
+                        QuorumReplicator replicator,
+                        long windowMicros,
+                        int maxBatch) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be positive");
+        this.store = store;
+        this.ownership = ownership;
+        this.log = log;
+        this.persistence = persistence;
+        this.replicator = replicator;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+
+        batcher = new Thread(this::runBatcher, "write-batcher");
+        batcher.setDaemon(true);
+        completer = new Thread(this::runCompleter, "write-completer");
+        completer.setDaemon(true);
+    }
+
+    public void start() {
+        batcher.start();
+        completer.start();
+    }
+
+    /**
+     * Queues a write to {@code accounts}. The future completes with {@code response} of the
+     * mutation's result once a successful write is durable and replicated to a quorum. It fails
+     * with WRONG_PARTITION if the accounts belong to another partition, and with
+     * {@link OutcomeUnknownException} if the write missed the quorum deadline.
+     */
+    public <T extends Message> CompletableFuture<T> submit(String requestId,
+                                                           String[] accounts,
+                                                           BooleanSupplier mutation,
+                                                           Function<Boolean, T> response,
+                                                           LogEntry.Builder entry) {
+        Write<T> w = new Write<>(requestId, accounts, mutation, response, entry);
+        queue.add(w);
+        return w.result;
+    }
+
+    private void runBatcher() {
+        List<Write<?>> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    Write<?> next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+                    batch.add(next);
+                }
+
+                applyBatch(batch);
+                batch = new ArrayList<>(maxBatch);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void applyBatch(List<Write<?>> batch) {
+        Set<String> accounts = new LinkedHashSet<>();
+        for (Write<?> w : batch) {
+            accounts.addAll(List.of(w.accounts));
+        }
+
+        List<Write<?>> done = new ArrayList<>(batch.size());
+        List<LogEntry.Builder> entries = new ArrayList<>(batch.size());
+        long lastSeq = 0;
+
+        try (AccountStore.Locked ignored = store.lock(accounts.toArray(String[]::new))) {
+            for (Write<?> w : batch) {
+                switch (ownership.check(w.accounts)) {
+                    case NOT_OWNED -> w.failure = PartitionOwnership.wrongPartition().asRuntimeException();
+                    case FROZEN -> {
+                        frozenWrites.execute(() -> applyAlone(w));
+                        continue;
+                    }
+                    case OWNED -> {
+                        try {
+                            LogEntry.Builder entry = w.apply();
+                            if (entry != null) entries.add(entry);
+                        } catch (RuntimeException e) {
+                            w.failure = e;
+                        }
+                    }
+                }
+                done.add(w);
+            }
+            if (!entries.isEmpty()) lastSeq = log.appendAll(entries);
+        }
+
+        long now = System.nanoTime();
+        for (Write<?> w : done) {
+            Tracing.startAt(w.span, "write.apply", w.queuedNanos).set("batch", batch.size()).end(now);
+        }
+        if (!done.isEmpty()) applied.add(new Batch(lastSeq, now, done));
+    }
+
+    /** The unbatched path, for a write that has to wait for a migration to finish. */
+    private void applyAlone(Write<?> w) {
+        long seq = 0;
+        try (AccountStore.Locked ignored = ownership.lockOwned(store, w.accounts)) {
+            LogEntry.Builder entry = w.apply();
+            if (entry != null) seq = log.append(entry);
+        } catch (RuntimeException e) {
+            w.failure = e;
+        }
+        long appliedAt = System.nanoTime();
+        Tracing.startAt(w.span, "write.apply", w.queuedNanos).set("frozen", true).end(appliedAt);
+
+        if (seq > 0) {
+            boolean durable = persistence.awaitDurable();
+            long durableAt = System.nanoTime();
+            if (!durable || !replicator.awaitQuorum(w.entry.getOpCase().name(), seq)) w.notReplicated();
+            Tracing.record(w.span, "wal.durable", appliedAt, durableAt);
+            Tracing.record(w.span, "replication.quorum", durableAt, System.nanoTime());
+        }
+        w.finish();
+    }
+
+    private void runCompleter() {
+        List<Batch> ready = new ArrayList<>();
+        while (true) {
+            try {
+                // Batches applied while we waited on the previous one share a single wait
+                ready.add(applied.take());
+                applied.drainTo(ready);
+
+                long lastSeq = 0;
+                int writes = 0;
+                for (Batch b : ready) {
+                    lastSeq = Math.max(lastSeq, b.lastSeq());
+                    writes += b.writes().size();
+                }
+                if (lastSeq > 0) {
+                    boolean durable = persistence.awaitDurable();
+                    long durableAt = System.nanoTime();
+                    boolean replicated = durable && replicator.awaitQuorum("batch of " + writes + " writes", lastSeq);
+                    traceWaits(ready, durableAt, System.nanoTime());
+                    if (!replicated) {
+                        // Earlier batches in the wait may still have made it, unless the WAL failed
+                        for (Batch b : ready) {
+                            if (b.lastSeq() > 0 && (!durable || !replicator.isReplicated(b.lastSeq()))) {
+                                b.writes().forEach(Write::notReplicated);
+                            }
+                        }
+                    }
+                }
+
+                for (Batch b : ready) {
+                    b.writes().forEach(Write::finish);
+                }
+                ready.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void traceWaits(List<Batch> ready, long durableAt, long replicatedAt) {
+        for (Batch b : ready) {
+            if (b.lastSeq() == 0) continue;
+            for (Write<?> w : b.writes()) {
+                if (!w.span.isSampled()) continue;
+                Tracing.record(w.span, "wal.durable", b.appliedNanos(), durableAt);
+                Tracing.record(w.span, "replication.quorum", durableAt, replicatedAt);
+            }
+        }
+    }
+
+    public void close() {
+        batcher.interrupt();
+        completer.interrupt();
+        frozenWrites.shutdownNow();
+    }
+}
@@ -1,73 +1,560 @@
 package uk.ac.westminster.ds.store;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * In-memory balances for one partition.
+ * <p>
+ * Balances are kept as {@code long} minor units (cents) in a pluggable {@link BalanceTable};
+ * the {@code double} methods convert at the edge so the RPC layer is unchanged.
+ * <p>
+ * Accounts are guarded by a fixed array of lock stripes. Single-account operations take the
+ * account's stripe; transfers take both stripes in index order, so transfers between unrelated
+ * accounts run in parallel and opposite transfers cannot deadlock. Locks are reentrant, so
+ * callers can hold {@link #lock(String...)} around an operation to make it atomic with their
+ * own bookkeeping (e.g. appending it to a log).
+ * <p>
+ * Cross-partition transfers hold funds between prepare and commit: a prepared debit reserves
+ * part of the balance, and withdrawals and transfers may only spend what is not reserved. An
+ * account can be part of any number of prepared transactions at once.
+ * <p>
+ * Designated hot accounts (e.g. merchant or settlement accounts that receive a large share of
+ * deposits) keep credits in a {@link LongAdder} on top of the balance in the table. A credit
+ * takes just one of the account's {@value #HOT_LANES} lane locks, so concurrent credits to the
+ * same account neither wait for each other nor rewrite its table entry. Debits, reads that need
+ * an exact balance and {@link #lock(String...)} take every lane, which keeps credits ordered
+ * against debits (and against log appends made under the same locks).
+ */
 public class AccountStore {
 
-    private final ConcurrentHashMap<String, Double> accounts = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Double> preparedDebits = new ConcurrentHashMap<>();
+    public static final long MINOR_UNITS = 100;
+
+    private static final int STRIPES = 1024; // power of two
+    private static final int SNAPSHOT_FORMAT = 3;
+    private static final int HOT_LANES = 16; // power of two
+
+    /** One partition's side of a cross-partition transfer, held between prepare and commit or abort. */
+    public record TxHold(String account, long amount, boolean debit, int peerPartition, String peerAccount) {
+    }
+
+    /** A decided transaction that the coordinator keeps until the participant has the outcome. */
+    public record TxOutcome(TxHold hold, boolean committed) {
+    }
+
+    // Credits to a hot account not yet folded into its table balance
+    private static final class HotAccount {
+        final LongAdder credits = new LongAdder();
+        final ReentrantLock[] lanes = new ReentrantLock[HOT_LANES];
+
+        HotAccount() {
+            for (int i = 0; i < HOT_LANES; i++) {
+                lanes[i] = new ReentrantLock();
+            }
+        }
+
+        void lockAll() {
+            for (ReentrantLock l : lanes) {
+                l.lock();
+            }
+        }
+
+        void unlockAll() {
+            for (int i = HOT_LANES - 1; i >= 0; i--) {
+                lanes[i].unlock();
+            }
+        }
+    }
+
+    private final BalanceTable balances;
+    private final ConcurrentHashMap<String, TxHold> prepared = new ConcurrentHashMap<>();   // txId ->
+    private final ConcurrentHashMap<String, Long> reserved = new ConcurrentHashMap<>();     // account -> prepared debits
+    private final ConcurrentHashMap<String, TxOutcome> decided = new ConcurrentHashMap<>(); // txId ->
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Locked[] stripeGuards = new Locked[STRIPES];
+
+    private final Map<String, HotAccount> hot;   // fixed at construction, so read without locking
+    private final HotAccount[] hotInLockOrder;
+
+    public AccountStore() {
+        this(new HashMapBalanceTable());
+    }
+
+    public AccountStore(BalanceTable balances) {
+        this(balances, Set.of());
+    }
+
+    /** @param hotAccounts accounts whose credits are spread over striped cells */
+    public AccountStore(BalanceTable balances, Set<String> hotAccounts) {
+        this.balances = balances;
+        Map<String, HotAccount> h = new TreeMap<>();
+        hotAccounts.forEach(id -> h.put(id, new HotAccount()));
+        this.hot = Map.copyOf(h);
+        this.hotInLockOrder = h.values().toArray(HotAccount[]::new);
+        for (int i = 0; i < STRIPES; i++) {
+            ReentrantLock l = new ReentrantLock();
+            stripes[i] = l;
+            stripeGuards[i] = l::unlock;
+        }
+    }
+
+    /** Releases the stripes taken by {@link #lock(String...)} or {@link #lockAll()}. */
+    public interface Locked extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static int stripeOf(String id) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private HotAccount hotAccount(String id) {
+        return hot.isEmpty() ? null : hot.get(id);
+    }
+
+    // Stripes are always taken before lanes, and lanes of several hot accounts in id order
+    private Locked lockOne(String id) {
+        int i = stripeOf(id);
+        stripes[i].lock();
+        HotAccount h = hotAccount(id);
+        if (h == null) return stripeGuards[i];
+
+        h.lockAll();
+        return () -> {
+            h.unlockAll();
+            stripes[i].unlock();
+        };
+    }
+
+    /**
+     * Locks {@code id} for a credit only. For a hot account this is one lane picked by the
+     * calling thread, so credits from different threads proceed in parallel; otherwise it is
+     * the same as {@link #lock(String...)}.
+     */
+    public Locked lockCredit(String id) {
+        HotAccount h = hotAccount(id);
+        if (h == null) return lockOne(id);
+
+        ReentrantLock lane = h.lanes[(int) Thread.currentThread().threadId() & (HOT_LANES - 1)];
+        lane.lock();
+        return lane::unlock;
+    }
+
+    public boolean isHot(String id) {
+        return hotAccount(id) != null;
+    }
+
+    /** Locks the stripes of the given accounts in a deterministic order. */
+    public Locked lock(String... ids) {
+        if (ids.length == 1) return lockOne(ids[0]);
+
+        int[] idx = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            idx[i] = stripeOf(ids[i]);
+        }
+        Arrays.sort(idx);
+
+        int n = 0;
+        for (int i = 0; i < idx.length; i++) {
+            if (i == 0 || idx[i] != idx[i - 1]) idx[n++] = idx[i];
+        }
+        int taken = n;
+        for (int i = 0; i < taken; i++) {
+            stripes[idx[i]].lock();
+        }
+
+        HotAccount[] hotTaken = hot.isEmpty() ? null : hotAccounts(ids);
+        if (hotTaken != null) {
+            for (HotAccount h : hotTaken) {
+                h.lockAll();
+            }
+        }
+        return () -> {
+            if (hotTaken != null) {
+                for (int i = hotTaken.length - 1; i >= 0; i--) {
+                    hotTaken[i].unlockAll();
+                }
+            }
+            for (int i = taken - 1; i >= 0; i--) {
+                stripes[idx[i]].unlock();
+            }
+        };
+    }
+
+    /** @return the distinct hot accounts among {@code ids} in lock order, or null if there are none */
+    private HotAccount[] hotAccounts(String[] ids) {
+        TreeSet<String> hotIds = null;
+        for (String id : ids) {
+            if (hot.containsKey(id)) {
+                if (hotIds == null) hotIds = new TreeSet<>();
+                hotIds.add(id);
+            }
+        }
+        return hotIds == null ? null : hotIds.stream().map(hot::get).toArray(HotAccount[]::new);
+    }
+
+    /** Locks every stripe, holding off all writers (e.g. for a consistent snapshot). */
+    public Locked lockAll() {
+        for (ReentrantLock l : stripes) {
+            l.lock();
+        }
+        for (HotAccount h : hotInLockOrder) {
+            h.lockAll();
+        }
+        return () -> {
+            for (int i = hotInLockOrder.length - 1; i >= 0; i--) {
+                hotInLockOrder[i].unlockAll();
+            }
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        };
+    }
+
+    public static long toMinor(double amount) {
+        return Math.round(amount * MINOR_UNITS);
+    }
+
+    public static double fromMinor(long minor) {
+        return (double) minor / MINOR_UNITS;
+    }
+
+    /* ---------------- double API (RPC layer) ---------------- */
 
     public boolean createAccount(String id) {
-        return accounts.putIfAbsent(id, 0.0) == null;
+        return balances.create(id);
     }
 
     public Double getBalance(String id) {
-        return accounts.get(id);
+        long bal = balanceOf(id);
+        return bal == BalanceTable.MISSING ? null : fromMinor(bal);
     }
 
     public boolean deposit(String id, double amount) {
-        if (amount < 0) return false;
-        return accounts.computeIfPresent(id, (k, v) -> v + amount) != null;
+        return amount >= 0 && depositMinor(id, toMinor(amount));
     }
 
     public boolean withdraw(String id, double amount) {
-        if (amount < 0) return false;
-        return accounts.computeIfPresent(id, (k, v) -> (v >= amount) ? (v - amount) : v) != null
-                && accounts.get(id) >= 0;
+        return amount >= 0 && withdrawMinor(id, toMinor(amount));
+    }
+
+    public boolean transfer(String from, String to, double amount) {
+        return amount >= 0 && transferMinor(from, to, toMinor(amount));
+    }
+
+    /* ---------------- minor-unit API (allocation-free) ---------------- */
+
+    /** @return the balance in minor units, or {@link BalanceTable#MISSING} */
+    public long getBalanceMinor(String id) {
+        return balanceOf(id);
+    }
+
+    // Table balance plus unfolded credits; exact while the account is locked
+    private long balanceOf(String id) {
+        long bal = balances.get(id);
+        HotAccount h = hotAccount(id);
+        return h == null || bal == BalanceTable.MISSING ? bal : bal + h.credits.sum();
     }
 
-    public synchronized boolean transfer(String from, String to, double amount) {
+    // Callers hold lockCredit(id) (or a stronger lock) and have checked that the account exists
+    private void credit(String id, long amount) {
+        HotAccount h = hotAccount(id);
+        if (h != null) {
+            h.credits.add(amount);
+        } else {
+            balances.set(id, balances.get(id) + amount);
+        }
+    }
+
+    public boolean depositMinor(String id, long amount) {
         if (amount < 0) return false;
 
-        Double fromBal = accounts.get(from);
-        Double toBal = accounts.get(to);
+        try (Locked ignored = lockCredit(id)) {
+            if (balances.get(id) == BalanceTable.MISSING) return false;
 
-        if (fromBal == null || toBal == null) return false;
-        if (fromBal < amount) return false;
+            credit(id, amount);
+            return true;
+        }
+    }
 
-        accounts.put(from, fromBal - amount);
-        accounts.put(to, toBal + amount);
-        return true;
+    public boolean withdrawMinor(String id, long amount) {
+        if (amount < 0) return false;
+
+        try (Locked ignored = lockOne(id)) {
+            long bal = balanceOf(id);
+            if (bal == BalanceTable.MISSING || bal - reservedMinor(id) < amount) return false;
+
+            balances.set(id, balances.get(id) - amount);
+            return true;
+        }
     }
 
-    public synchronized boolean prepareDebit(String from, double amount) {
+    public boolean transferMinor(String from, String to, long amount) {
         if (amount < 0) return false;
+        if (!hot.isEmpty() && (hot.containsKey(from) || hot.containsKey(to))) return transferHotMinor(from, to, amount);
+
+        // Take both stripes in index order without allocating a guard
+        int a = stripeOf(from);
+        int b = stripeOf(to);
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        first.lock();
+        second.lock();
+        try {
+            long fromBal = balances.get(from);
+            long toBal = balances.get(to);
+
+            if (fromBal == BalanceTable.MISSING || toBal == BalanceTable.MISSING) return false;
+            if (fromBal - reservedMinor(from) < amount) return false;
+
+            balances.set(from, fromBal - amount);
+            // Re-read in case from and to are the same account
+            balances.set(to, balances.get(to) + amount);
+            return true;
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    // A hot destination is locked only for a credit, after the source's stripe (stripes come before lanes)
+    private boolean transferHotMinor(String from, String to, long amount) {
+        boolean creditOnly = hot.containsKey(to) && !hot.containsKey(from);
+        try (Locked debit = creditOnly ? lockOne(from) : lock(from, to);
+             Locked credit = creditOnly ? lockCredit(to) : null) {
+            long fromBal = balanceOf(from);
+            if (fromBal == BalanceTable.MISSING || balances.get(to) == BalanceTable.MISSING) return false;
+            if (fromBal - reservedMinor(from) < amount) return false;
+
+            balances.set(from, balances.get(from) - amount);
+            credit(to, amount);
+            return true;
+        }
+    }
+
+    /** @return the part of the balance held by prepared debits, in minor units */
+    public long reservedMinor(String id) {
+        Long r = reserved.get(id);
+        return r == null ? 0 : r;
+    }
+
+    /* ---------------- two-phase commit ---------------- */
+
+    /**
+     * Prepares this partition's side of transaction {@code txId}: reserves the amount for a
+     * debit, or just records a credit. Preparing the same transaction again succeeds.
+     *
+     * @return false if the account does not exist or (for a debit) too little is available
+     */
+    public boolean prepareTx(String txId, TxHold hold) {
+        if (hold.amount() < 0) return false;
 
-        Double bal = accounts.get(from);
-        if (bal == null) return false;
-        if (preparedDebits.containsKey(from)) return false;
-        if (bal < amount) return false;
+        try (Locked ignored = lockOne(hold.account())) {
+            if (prepared.containsKey(txId)) return true;
 
-        preparedDebits.put(from, amount);
-        return true;
+            long bal = balanceOf(hold.account());
+            if (bal == BalanceTable.MISSING) return false;
+            if (hold.debit()) {
+                if (bal - reservedMinor(hold.account()) < hold.amount()) return false;
+                reserved.merge(hold.account(), hold.amount(), Long::sum);
+            }
+            prepared.put(txId, hold);
+            return true;
+        }
+    }
+
+    /**
+     * Applies a prepared transaction. A coordinator's (debit) side keeps the outcome until
+     * {@link #forgetTx}.
+     *
+     * @return false if {@code txId} is not prepared here (e.g. it was already committed)
+     */
+    public boolean commitTx(String txId) {
+        return finishTx(txId, true);
     }
 
-    public synchronized boolean commitDebit(String from) {
-        Double amount = preparedDebits.remove(from);
-        if (amount == null) return false;
+    /** Releases a prepared transaction without applying it. */
+    public boolean abortTx(String txId) {
+        return finishTx(txId, false);
+    }
 
-        Double bal = accounts.get(from);
-        if (bal == null) return false;
-        if (bal < amount) {
-            preparedDebits.putIfAbsent(from, amount);
-            return false;
+    private boolean finishTx(String txId, boolean commit) {
+        TxHold hold = prepared.get(txId);
+        if (hold == null) return false;
+
+        try (Locked ignored = lockOne(hold.account())) {
+            if (prepared.remove(txId) == null) return false;
+
+            if (hold.debit()) {
+                reserved.computeIfPresent(hold.account(), (id, r) -> r == hold.amount() ? null : r - hold.amount());
+                decided.put(txId, new TxOutcome(hold, commit));
+            }
+            if (commit) {
+                if (hold.debit()) {
+                    balances.set(hold.account(), balances.get(hold.account()) - hold.amount());
+                } else {
+                    credit(hold.account(), hold.amount());
+                }
+            }
+            return true;
         }
+    }
+
+    /** Drops a decided transaction once the participant has applied the outcome. */
+    public void forgetTx(String txId) {
+        decided.remove(txId);
+    }
+
+    /** @return the transaction if it is prepared here, or null */
+    public TxHold preparedTx(String txId) {
+        return prepared.get(txId);
+    }
 
-        accounts.put(from, bal - amount);
-        return true;
+    /** @return the outcome of a decided transaction the participant may not have yet, or null */
+    public TxOutcome decidedTx(String txId) {
+        return decided.get(txId);
     }
 
-    public synchronized boolean abortDebit(String from) {
-        return preparedDebits.remove(from) != null;
+    public Map<String, TxHold> preparedTxs() {
+        return prepared;
+    }
+
+    public Map<String, TxOutcome> decidedTxs() {
+        return decided;
+    }
+
+    /** @return the accounts with a prepared debit or credit */
+    public Set<String> accountsInTransactions() {
+        Set<String> out = new HashSet<>();
+        prepared.values().forEach(h -> out.add(h.account()));
+        return out;
+    }
+
+    /* ---------------- migration ---------------- */
+
+    /** Creates the account if needed and sets its balance, e.g. when it is moved in from another partition. */
+    public void importAccountMinor(String id, long balance) {
+        try (Locked ignored = lockOne(id)) {
+            balances.create(id);
+            balances.set(id, balance);
+            resetCredits(id);
+        }
+    }
+
+    /** Deletes the account, e.g. once it has been moved to another partition. */
+    public boolean removeAccount(String id) {
+        try (Locked ignored = lockOne(id)) {
+            resetCredits(id);
+            return balances.remove(id);
+        }
+    }
+
+    private void resetCredits(String id) {
+        HotAccount h = hotAccount(id);
+        if (h != null) h.credits.reset();
+    }
+
+    /** Visits every account; concurrent writes may or may not be seen. */
+    public void forEachAccount(BalanceTable.EntryConsumer consumer) {
+        if (hot.isEmpty()) {
+            balances.forEach(consumer);
+        } else {
+            balances.forEach((id, bal) -> consumer.accept(id, balanceOf(id)));
+        }
+    }
+
+    public int size() {
+        return balances.size();
+    }
+
+    /**
+     * Writes balances and the state of cross-partition transactions. Callers must hold {@link #lockAll()} while this
+     * runs so the snapshot is a consistent cut.
+     */
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_FORMAT);
+
+        out.writeInt(balances.size());
+        IOException[] failure = {null};
+        forEachAccount((id, bal) -> {
+            if (failure[0] != null) return;
+            try {
+                out.writeUTF(id);
+                out.writeLong(bal);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+
+        out.writeInt(prepared.size());
+        for (Map.Entry<String, TxHold> e : prepared.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeHold(out, e.getValue());
+        }
+        out.writeInt(decided.size());
+        for (Map.Entry<String, TxOutcome> e : decided.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeHold(out, e.getValue().hold());
+            out.writeBoolean(e.getValue().committed());
+        }
+    }
+
+    private static void writeHold(DataOutputStream out, TxHold hold) throws IOException {
+        out.writeUTF(hold.account());
+        out.writeLong(hold.amount());
+        out.writeBoolean(hold.debit());
+        out.writeInt(hold.peerPartition());
+        out.writeUTF(hold.peerAccount());
+    }
+
+    private static TxHold readHold(DataInputStream in) throws IOException {
+        return new TxHold(in.readUTF(), in.readLong(), in.readBoolean(), in.readInt(), in.readUTF());
+    }
+
+    /** Replaces the current contents with a snapshot written by {@link #writeSnapshot}. */
+    public void readSnapshot(DataInputStream in) throws IOException {
+        int format = in.readInt();
+        if (format != SNAPSHOT_FORMAT) throw new IOException("Unsupported snapshot format " + format);
+
+        try (Locked ignored = lockAll()) {
+            balances.clear();
+            hot.values().forEach(h -> h.credits.reset());
+            prepared.clear();
+            reserved.clear();
+            decided.clear();
+
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String id = in.readUTF();
+                balances.create(id);
+                balances.set(id, in.readLong());
+            }
+
+            int nPrepared = in.readInt();
+            for (int i = 0; i < nPrepared; i++) {
+                String txId = in.readUTF();
+                TxHold hold = readHold(in);
+                prepared.put(txId, hold);
+                if (hold.debit()) reserved.merge(hold.account(), hold.amount(), Long::sum);
+            }
+            int nDecided = in.readInt();
+            for (int i = 0; i < nDecided; i++) {
+                String txId = in.readUTF();
+                decided.put(txId, new TxOutcome(readHold(in), in.readBoolean()));
+            }
+        }
     }
 }
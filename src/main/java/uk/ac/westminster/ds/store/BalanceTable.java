@@ -0,0 +1,37 @@
+package uk.ac.westminster.ds.store;
+
+/**
+ * Storage engine behind {@link AccountStore}: account id to balance in minor units (cents).
+ * <p>
+ * {@link AccountStore} serializes all writes to one account with its stripe lock, so an
+ * implementation only has to cope with concurrent access to <em>different</em> accounts and
+ * with unlocked {@link #get} calls.
+ */
+public interface BalanceTable {
+
+    /** Returned by {@link #get} for an unknown account. */
+    long MISSING = Long.MIN_VALUE;
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(String id, long balance);
+    }
+
+    /** Adds the account with a zero balance; false if it already exists. */
+    boolean create(String id);
+
+    /** The balance, or {@link #MISSING}. */
+    long get(String id);
+
+    /** Sets the balance of an existing account. */
+    void set(String id, long balance);
+
+    /** Removes the account; false if it did not exist. */
+    boolean remove(String id);
+
+    int size();
+
+    void forEach(EntryConsumer consumer);
+
+    void clear();
+}
@@ -0,0 +1,47 @@
+package uk.ac.westminster.ds.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default engine: a {@link ConcurrentHashMap} of boxed balances.
+ */
+public class HashMapBalanceTable implements BalanceTable {
+
+    private final ConcurrentHashMap<String, Long> balances = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean create(String id) {
+        return balances.putIfAbsent(id, 0L) == null;
+    }
+
+    @Override
+    public long get(String id) {
+        Long bal = balances.get(id);
+        return bal == null ? MISSING : bal;
+    }
+
+    @Override
+    public void set(String id, long balance) {
+        balances.put(id, balance);
+    }
+
+    @Override
+    public boolean remove(String id) {
+        return balances.remove(id) != null;
+    }
+
+    @Override
+    public int size() {
+        return balances.size();
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        balances.forEach(consumer::accept);
+    }
+
+    @Override
+    public void clear() {
+        balances.clear();
+    }
+}
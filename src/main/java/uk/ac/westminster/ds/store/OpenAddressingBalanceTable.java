@@ -0,0 +1,230 @@
+package uk.ac.westminster.ds.store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Compact engine for very large partitions: an open-addressing (linear probing) table with
+ * balances in a primitive {@code long[]} next to the key and cached-hash arrays, so there is
+ * no per-account node or boxed value and {@link #get}/{@link #set} never allocate.
+ * <p>
+ * Inserts and resizes take the write side of a {@link StampedLock}. Reads and balance updates
+ * run under an optimistic stamp and only fall back to the read lock if a resize or insert
+ * raced with them; {@link #set} is idempotent, so repeating it after a failed validation is safe.
+ * <p>
+ * Removed accounts leave a tombstone rather than shifting later entries back, so a slot only
+ * ever holds one live key at a time and an optimistic {@link #set} can never land on another
+ * account's balance. Tombstones are reused by inserts and dropped on resize.
+ */
+public class OpenAddressingBalanceTable implements BalanceTable {
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final double LOAD_FACTOR = 0.6;
+    private static final int MIN_CAPACITY = 16;
+    private static final String TOMBSTONE = new String("<removed>"); // compared by identity
+
+    private static final class Table {
+        final String[] keys;
+        final int[] hashes;
+        final long[] values;
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            hashes = new int[capacity];
+            values = new long[capacity];
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final int initialCapacity;
+
+    private volatile Table table;
+    private volatile int size;
+    private int tombstones; // guarded by the write lock
+
+    public OpenAddressingBalanceTable(int expectedAccounts) {
+        this.initialCapacity = capacityFor(expectedAccounts);
+        this.table = new Table(initialCapacity);
+    }
+
+    private static int capacityFor(int accounts) {
+        long needed = (long) Math.ceil(Math.max(accounts, 1) / LOAD_FACTOR);
+        int cap = MIN_CAPACITY;
+        while (cap < needed) {
+            if (cap >= 1 << 30) throw new IllegalArgumentException("too many accounts: " + accounts);
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode() * 0x9E3779B9; // spread clustered String hashes
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot holding {@code id}, or {@code -1 - slot} of the free slot where it would
+     * go (the first tombstone on its probe path, if any)
+     */
+    private static int find(Table t, String id, int h) {
+        int mask = t.keys.length - 1;
+        int reusable = -1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            String k = t.keys[i];
+            if (k == null) return -1 - (reusable >= 0 ? reusable : i);
+            if (k == TOMBSTONE) {
+                if (reusable < 0) reusable = i;
+            } else if (t.hashes[i] == h && k.equals(id)) {
+                return i;
+            }
+        }
+    }
+
+    @Override
+    public boolean create(String id) {
+        int h = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, id, h);
+            if (slot >= 0) return false;
+
+            int free = -1 - slot;
+            if (t.keys[free] != TOMBSTONE && size + tombstones + 1 > t.keys.length * LOAD_FACTOR) {
+                t = resize(t);
+                free = -1 - find(t, id, h);
+            }
+            if (t.keys[free] == TOMBSTONE) tombstones--;
+            t.hashes[free] = h;
+            LONGS.setVolatile(t.values, free, 0L);
+            t.keys[free] = id;
+            size++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private Table resize(Table old) {
+        // Mostly tombstones: rehash at the same size to clear them out
+        int capacity = size + 1 > old.keys.length * LOAD_FACTOR / 2 ? old.keys.length * 2 : old.keys.length;
+        Table bigger = new Table(capacity);
+        int mask = bigger.keys.length - 1;
+        for (int i = 0; i < old.keys.length; i++) {
+            String k = old.keys[i];
+            if (k == null || k == TOMBSTONE) continue;
+            int h = old.hashes[i];
+            int j = h & mask;
+            while (bigger.keys[j] != null) j = (j + 1) & mask;
+            bigger.keys[j] = k;
+            bigger.hashes[j] = h;
+            bigger.values[j] = (long) LONGS.getVolatile(old.values, i);
+        }
+        table = bigger;
+        tombstones = 0;
+        return bigger;
+    }
+
+    @Override
+    public long get(String id) {
+        int h = hash(id);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Table t = table;
+            int slot = find(t, id, h);
+            long v = slot < 0 ? MISSING : (long) LONGS.getVolatile(t.values, slot);
+            if (lock.validate(stamp)) return v;
+        }
+
+        stamp = lock.readLock();
+        try {
+            Table t = table;
+            int slot = find(t, id, h);
+            return slot < 0 ? MISSING : (long) LONGS.getVolatile(t.values, slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void set(String id, long balance) {
+        int h = hash(id);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Table t = table;
+            int slot = find(t, id, h);
+            if (slot >= 0) {
+                LONGS.setVolatile(t.values, slot, balance);
+                if (lock.validate(stamp)) return;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            Table t = table;
+            int slot = find(t, id, h);
+            if (slot < 0) throw new IllegalStateException("Unknown account: " + id);
+            LONGS.setVolatile(t.values, slot, balance);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(String id) {
+        int h = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, id, h);
+            if (slot < 0) return false;
+
+            t.keys[slot] = TOMBSTONE;
+            tombstones++;
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            for (int i = 0; i < t.keys.length; i++) {
+                String k = t.keys[i];
+                if (k != null && k != TOMBSTONE) consumer.accept(k, (long) LONGS.getVolatile(t.values, i));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            if (t.keys.length == initialCapacity) {
+                Arrays.fill(t.keys, null);
+            } else {
+                table = new Table(initialCapacity);
+            }
+            size = 0;
+            tombstones = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
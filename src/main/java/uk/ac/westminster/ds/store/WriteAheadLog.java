@@ -0,0 +1,309 @@
+package uk.ac.westminster.ds.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, group-committed log of opaque records split into numbered segment files.
+ * <p>
+ * Writers copy records into an in-memory buffer; a flusher thread writes the buffer to the
+ * current segment through a {@link FileChannel} every {@code flushIntervalMs} and optionally
+ * fsyncs it, so many writes share one disk sync. Each record is framed as
+ * {@code [int length][int crc32c][bytes]}; replay stops at the first torn or corrupt record.
+ * <p>
+ * A failed write is cut off the segment and its records are kept for the next flush, so the
+ * durable position never moves past data that is not on disk. If the segment cannot be cut back
+ * the log fails: appends and waiters are rejected from then on.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int INITIAL_BUFFER_BYTES = 1 << 20;
+
+    private final Path dir;
+    private final long flushIntervalMs;
+    private final boolean fsync;
+
+    // Guarded by ioLock: the open segment and all writes to it
+    private final Object ioLock = new Object();
+    private FileChannel segment;
+    private long segmentId;
+
+    // Guarded by this: records not yet handed to the flusher
+    private ByteBuffer pending = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+    private long appended;
+
+    // Guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durable;
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private final Thread flusher;
+
+    public WriteAheadLog(Path dir, long flushIntervalMs, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.flushIntervalMs = flushIntervalMs;
+        this.fsync = fsync;
+
+        Files.createDirectories(dir);
+        List<Long> existing = segmentIds();
+        openSegment(existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1);
+
+        flusher = new Thread(this::runFlusher, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Buffers a record for the next group commit.
+     *
+     * @return the record's position; pass it to {@link #awaitDurable(long)}
+     */
+    public synchronized long append(byte[] record) {
+        if (failure != null) throw new UncheckedIOException("write-ahead log failed", failure);
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+
+        ensureCapacity(HEADER_BYTES + record.length);
+        pending.putInt(record.length);
+        pending.putInt((int) crc.getValue());
+        pending.put(record);
+        return ++appended;
+    }
+
+    public synchronized long appendedPosition() {
+        return appended;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (pending.remaining() >= bytes) return;
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + bytes));
+        pending.flip();
+        bigger.put(pending);
+        pending = bigger;
+    }
+
+    /**
+     * Blocks until every record up to {@code position} has been written (and fsynced, if enabled).
+     *
+     * @throws UncheckedIOException if the log has failed and the records will never be written
+     */
+    public void awaitDurable(long position) throws InterruptedException {
+        synchronized (durableLock) {
+            while (durable < position) {
+                if (failure != null) throw new UncheckedIOException("write-ahead log failed", failure);
+                if (closed) throw new IllegalStateException("write-ahead log is closed");
+                durableLock.wait();
+            }
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMs);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (failure != null) return;
+                logger.warn("WAL flush failed, retrying: {}", e.getMessage());
+            }
+        }
+    }
+
+    /** Writes everything appended so far to the current segment. */
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) return; // close() flushed the rest; the flusher may have been waiting on ioLock
+        long start = segment.size();
+        ByteBuffer toWrite;
+        long upTo;
+        synchronized (this) {
+            if (pending.position() == 0) return;
+            toWrite = pending;
+            pending = spare;
+            spare = null;
+            upTo = appended;
+        }
+
+        try {
+            toWrite.flip();
+            while (toWrite.hasRemaining()) {
+                segment.write(toWrite);
+            }
+            if (fsync) segment.force(false);
+        } catch (IOException e) {
+            requeue(toWrite, start, e);
+            throw e;
+        }
+
+        // Reuse the buffer for the next swap, unless a burst made it very large
+        toWrite.clear();
+        synchronized (this) {
+            spare = toWrite.capacity() > INITIAL_BUFFER_BYTES * 4L
+                    ? ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES)
+                    : toWrite;
+        }
+
+        synchronized (durableLock) {
+            durable = upTo;
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Undoes a failed write: cuts off whatever part of it reached the segment, so replay does not
+     * stop at a torn record, and puts its records back ahead of those appended since.
+     */
+    private void requeue(ByteBuffer failed, long segmentSize, IOException cause) {
+        try {
+            segment.truncate(segmentSize);
+        } catch (IOException e) {
+            fail(cause);
+            return;
+        }
+        failed.position(0);
+        synchronized (this) {
+            pending.flip();
+            ByteBuffer merged = ByteBuffer.allocateDirect(
+                    Math.max(INITIAL_BUFFER_BYTES, failed.remaining() + pending.remaining()));
+            merged.put(failed).put(pending);
+            pending.clear();
+            spare = pending;
+            pending = merged;
+        }
+    }
+
+    private void fail(IOException cause) {
+        logger.error("WAL segment {} could not be repaired after a failed write; rejecting writes", segmentId, cause);
+        synchronized (durableLock) {
+            failure = cause;
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Flushes the current segment and starts a new one.
+     *
+     * @return the id of the new segment; everything appended from now on lands in it or later ones
+     */
+    public long rollSegment() throws IOException {
+        synchronized (ioLock) {
+            flushLocked();
+            segment.force(true);
+            segment.close();
+            openSegment(segmentId + 1);
+            return segmentId;
+        }
+    }
+
+    private void openSegment(long id) throws IOException {
+        segment = FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentId = id;
+    }
+
+    /** Deletes segments older than {@code segmentId}; call once a snapshot covers them. */
+    public void deleteSegmentsBefore(long segmentId) throws IOException {
+        for (long id : segmentIds()) {
+            if (id < segmentId) Files.deleteIfExists(segmentPath(id));
+        }
+    }
+
+    /** Replays every intact record in segments numbered {@code fromSegment} and above, in order. */
+    public static void replay(Path dir, long fromSegment, Consumer<byte[]> consumer) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+
+        for (long id : segmentIds(dir)) {
+            if (id < fromSegment) continue;
+
+            try (FileChannel ch = FileChannel.open(segmentPath(dir, id), StandardOpenOption.READ)) {
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+                while (buf.remaining() >= HEADER_BYTES) {
+                    int length = buf.getInt();
+                    int expectedCrc = buf.getInt();
+                    if (length < 0 || length > buf.remaining()) break; // torn write
+
+                    byte[] record = new byte[length];
+                    buf.get(record);
+
+                    CRC32C crc = new CRC32C();
+                    crc.update(record);
+                    if ((int) crc.getValue() != expectedCrc) break;
+
+                    consumer.accept(record);
+                }
+            }
+        }
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        return segmentIds(dir);
+    }
+
+    private static List<Long> segmentIds(Path dir) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                    .forEach(n -> ids.add(Long.parseLong(
+                            n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length()))));
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private Path segmentPath(long id) {
+        return segmentPath(dir, id);
+    }
+
+    private static Path segmentPath(Path dir, long id) {
+        return dir.resolve(SEGMENT_PREFIX + String.format("%012d", id) + SEGMENT_SUFFIX);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (ioLock) {
+            if (closed) return;
+            try {
+                flushLocked();
+                segment.force(true);
+            } finally {
+                closed = true;
+                flusher.interrupt();
+                segment.close();
+            }
+        }
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package uk.ac.westminster.ds.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends spans to a file as JSON lines from a background thread. The queue is bounded;
+ * spans that arrive while it is full are dropped and counted rather than slowing requests down.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSpanExporter.class);
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final ArrayBlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final BufferedWriter out;
+    private final Thread writer;
+
+    public FileSpanExporter(Path file) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer = new Thread(this::run, "span-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void export(Span span) {
+        if (!queue.offer(span)) dropped.incrementAndGet();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                write(queue.take());
+                // Flush once the burst is written, not per span
+                Span next;
+                while ((next = queue.poll()) != null) {
+                    write(next);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } catch (IOException e) {
+            logger.warn("Span export stopped: {}", e.getMessage());
+        }
+    }
+
+    private void write(Span span) throws IOException {
+        out.write(span.toJson().toString());
+        out.newLine();
+    }
+
+    @Override
+    public void close() {
+        writer.interrupt();
+        try {
+            writer.join(1000);
+            Span next;
+            while ((next = queue.poll()) != null) {
+                write(next);
+            }
+            out.close();
+        } catch (InterruptedException | IOException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
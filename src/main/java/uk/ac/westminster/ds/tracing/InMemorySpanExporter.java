@@ -0,0 +1,35 @@
+package uk.ac.westminster.ds.tracing;
+
+import org.json.JSONArray;
+
+/** Keeps the most recent {@code capacity} spans, e.g. to serve them from the metrics endpoint. */
+public class InMemorySpanExporter implements SpanExporter {
+
+    private final Span[] ring;
+    private long next;
+
+    public InMemorySpanExporter(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.ring = new Span[capacity];
+    }
+
+    @Override
+    public synchronized void export(Span span) {
+        ring[(int) (next++ % ring.length)] = span;
+    }
+
+    /** The retained spans, oldest first, as a JSON array. */
+    public String toJson() {
+        Span[] spans;
+        long end;
+        synchronized (this) {
+            spans = ring.clone();
+            end = next;
+        }
+        JSONArray out = new JSONArray();
+        for (long i = Math.max(0, end - spans.length); i < end; i++) {
+            out.put(spans[(int) (i % spans.length)].toJson());
+        }
+        return out.toString();
+    }
+}
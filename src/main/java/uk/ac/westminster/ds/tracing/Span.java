@@ -0,0 +1,139 @@
+package uk.ac.westminster.ds.tracing;
+
+import io.grpc.Context;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One timed operation in a trace. Only sampled requests get real spans; everything else gets
+ * {@link #NOOP}, whose methods do nothing, so untraced requests pay for a context lookup and
+ * nothing more.
+ * <p>
+ * Spans started with {@link Tracing#start} are the current span of their thread until closed,
+ * so spans started inside them (and gRPC calls made inside them) become their children. Close
+ * them in the thread that started them, with try-with-resources.
+ */
+public final class Span implements AutoCloseable {
+
+    static final Span NOOP = new Span();
+
+    private final String name;
+    private final long traceIdHigh;
+    private final long traceIdLow;
+    private final long spanId;
+    private final long parentSpanId; // 0 for a root span
+    private final long startNanos;
+    private final boolean sampled;
+
+    // Guarded by this; key/value pairs
+    private List<String> attributes;
+    private long endNanos;
+
+    private Context previous;
+
+    private Span() {
+        this.name = "";
+        this.traceIdHigh = 0;
+        this.traceIdLow = 0;
+        this.spanId = 0;
+        this.parentSpanId = 0;
+        this.startNanos = 0;
+        this.sampled = false;
+    }
+
+    Span(String name, long traceIdHigh, long traceIdLow, long spanId, long parentSpanId, long startNanos) {
+        this.name = name;
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.startNanos = startNanos;
+        this.sampled = true;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    long traceIdHigh() {
+        return traceIdHigh;
+    }
+
+    long traceIdLow() {
+        return traceIdLow;
+    }
+
+    long spanId() {
+        return spanId;
+    }
+
+    public synchronized Span set(String key, Object value) {
+        if (!sampled) return this;
+        if (attributes == null) attributes = new ArrayList<>(8);
+        attributes.add(key);
+        attributes.add(String.valueOf(value));
+        return this;
+    }
+
+    /** The W3C {@code traceparent} header naming this span as the parent. */
+    public String traceParent() {
+        return String.format("00-%016x%016x-%016x-01", traceIdHigh, traceIdLow, spanId);
+    }
+
+    /** Makes this span current until {@link #close()}. */
+    Span attach() {
+        if (sampled) previous = Context.current().withValue(Tracing.CURRENT, this).attach();
+        return this;
+    }
+
+    /** Ends the span now; for spans that were not made current. */
+    public void end() {
+        end(System.nanoTime());
+    }
+
+    /** Ends the span at {@code endNanos}, a {@link System#nanoTime()} reading. */
+    public void end(long endNanos) {
+        if (!sampled) return;
+        synchronized (this) {
+            if (this.endNanos != 0) return;
+            this.endNanos = endNanos;
+        }
+        Tracing.exporter().export(this);
+    }
+
+    /** Ends the span and restores the span that was current before it. */
+    @Override
+    public void close() {
+        if (!sampled) return;
+        if (previous != null) {
+            Context.current().detach(previous);
+            previous = null;
+        }
+        end();
+    }
+
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject()
+                .put("traceId", String.format("%016x%016x", traceIdHigh, traceIdLow))
+                .put("spanId", String.format("%016x", spanId))
+                .put("name", name)
+                .put("service", Tracing.service())
+                .put("startMicros", Tracing.epochMicros(startNanos))
+                .put("durationMicros", (endNanos - startNanos) / 1000);
+        if (parentSpanId != 0) json.put("parentId", String.format("%016x", parentSpanId));
+        if (attributes != null) {
+            JSONObject attrs = new JSONObject();
+            for (int i = 0; i < attributes.size(); i += 2) {
+                attrs.put(attributes.get(i), attributes.get(i + 1));
+            }
+            json.put("attributes", attrs);
+        }
+        return json;
+    }
+}
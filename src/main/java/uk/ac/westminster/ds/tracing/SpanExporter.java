@@ -0,0 +1,12 @@
+package uk.ac.westminster.ds.tracing;
+
+/** Receives finished, sampled spans. Called on the thread that ended the span, so it must not block. */
+public interface SpanExporter {
+
+    SpanExporter NONE = span -> { };
+
+    void export(Span span);
+
+    default void close() {
+    }
+}
@@ -0,0 +1,178 @@
+package uk.ac.westminster.ds.tracing;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Request tracing across the client, the partition leader, its followers and 2PC participants.
+ * <p>
+ * Trace context travels in the W3C {@code traceparent} gRPC header
+ * ({@link TracingClientInterceptor}, {@link TracingServerInterceptor}), and to followers in the
+ * log entries a sampled request writes. Sampling is decided once, where a trace starts: the
+ * client, or a server that received a request without a {@code traceparent}. Every hop after
+ * that follows the decision. Finished spans go to the configured {@link SpanExporter}.
+ */
+public final class Tracing {
+
+    static final Context.Key<Span> CURRENT = Context.key("ewallet-span");
+
+    public static final Metadata.Key<String> TRACEPARENT =
+            Metadata.Key.of("traceparent", Metadata.ASCII_STRING_MARSHALLER);
+
+    // nanoTime -> wall clock, so spans from different processes line up
+    private static final long EPOCH_MICROS_AT_START = System.currentTimeMillis() * 1000;
+    private static final long NANOS_AT_START = System.nanoTime();
+
+    private static volatile String service = "ewallet";
+    private static volatile double sampleRate = 0;
+    private static volatile SpanExporter exporter = SpanExporter.NONE;
+
+    private Tracing() {
+    }
+
+    public static void configure(String service, double sampleRate, SpanExporter exporter) {
+        SpanExporter old = Tracing.exporter;
+        Tracing.service = service;
+        Tracing.sampleRate = sampleRate;
+        Tracing.exporter = exporter;
+        if (old != exporter) old.close();
+    }
+
+    /** Stops tracing, flushing spans still waiting to be exported. */
+    public static void close() {
+        configure(service, 0, SpanExporter.NONE);
+    }
+
+    /**
+     * Configures tracing from ewallet.trace.sampleRate (default 0.01) and ewallet.trace.file:
+     * spans are appended there as JSON lines, or kept in memory if it is not set.
+     */
+    public static void configureFromProperties(String service) throws IOException {
+        double rate = Double.parseDouble(System.getProperty("ewallet.trace.sampleRate", "0.01"));
+        String file = System.getProperty("ewallet.trace.file");
+        configure(service, rate, file == null
+                ? new InMemorySpanExporter(Integer.getInteger("ewallet.trace.memorySpans", 10_000))
+                : new FileSpanExporter(Path.of(file)));
+    }
+
+    static String service() {
+        return service;
+    }
+
+    static SpanExporter exporter() {
+        return exporter;
+    }
+
+    static long epochMicros(long nanos) {
+        return EPOCH_MICROS_AT_START + (nanos - NANOS_AT_START) / 1000;
+    }
+
+    /** The current span, or a no-op span if the current request is not sampled. */
+    public static Span current() {
+        Span span = CURRENT.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    /**
+     * Starts a child of the current span and makes it current. A no-op if the current request
+     * is not sampled.
+     */
+    public static Span start(String name) {
+        Span parent = CURRENT.get();
+        if (parent == null) return Span.NOOP;
+        return child(parent, name, System.nanoTime()).attach();
+    }
+
+    /**
+     * Starts a trace (or, inside one, a child span) and makes it current. New traces are
+     * sampled at the configured rate.
+     */
+    public static Span startRoot(String name) {
+        if (CURRENT.get() != null) return start(name);
+        if (!sample()) return Span.NOOP;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return new Span(name, rnd.nextLong(), rnd.nextLong(), nonZero(rnd), 0, System.nanoTime()).attach();
+    }
+
+    /**
+     * Records a finished child of {@code parent} from timestamps taken elsewhere, e.g. by a
+     * thread that worked on many requests at once.
+     */
+    public static Span record(Span parent, String name, long startNanos, long endNanos) {
+        if (!parent.isSampled()) return Span.NOOP;
+        Span span = child(parent, name, startNanos);
+        span.end(endNanos);
+        return span;
+    }
+
+    /**
+     * Like {@link #record}, but the caller adds attributes and then ends the span with
+     * {@link Span#end(long)}.
+     */
+    public static Span startAt(Span parent, String name, long startNanos) {
+        return parent.isSampled() ? child(parent, name, startNanos) : Span.NOOP;
+    }
+
+    /**
+     * A span continuing the trace in a {@code traceparent} header, or a new root if there is
+     * none. Not made current; the caller decides where it applies.
+     *
+     * @return {@link Span#NOOP} if the trace is not sampled
+     */
+    public static Span continueTrace(String traceParent, String name) {
+        if (traceParent == null) {
+            if (!sample()) return Span.NOOP;
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            return new Span(name, rnd.nextLong(), rnd.nextLong(), nonZero(rnd), 0, System.nanoTime());
+        }
+
+        // 00-<32 hex trace id>-<16 hex parent id>-<2 hex flags>
+        if (traceParent.length() != 55 || traceParent.charAt(2) != '-' || traceParent.charAt(35) != '-'
+                || traceParent.charAt(52) != '-') {
+            return Span.NOOP;
+        }
+        try {
+            if ((Integer.parseInt(traceParent.substring(53), 16) & 1) == 0) return Span.NOOP;
+            return new Span(name,
+                    Long.parseUnsignedLong(traceParent.substring(3, 19), 16),
+                    Long.parseUnsignedLong(traceParent.substring(19, 35), 16),
+                    nonZero(ThreadLocalRandom.current()),
+                    Long.parseUnsignedLong(traceParent.substring(36, 52), 16),
+                    System.nanoTime());
+        } catch (NumberFormatException e) {
+            return Span.NOOP;
+        }
+    }
+
+    /** {@code context} with {@code span} as its current span. */
+    public static Context withSpan(Context context, Span span) {
+        return span.isSampled() ? context.withValue(CURRENT, span) : context;
+    }
+
+    private static Span child(Span parent, String name, long startNanos) {
+        return new Span(name, parent.traceIdHigh(), parent.traceIdLow(), nonZero(ThreadLocalRandom.current()),
+                parent.spanId(), startNanos);
+    }
+
+    private static boolean sample() {
+        double rate = sampleRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private static long nonZero(ThreadLocalRandom rnd) {
+        long id;
+        do {
+            id = rnd.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /** The spans kept in memory, as a JSON array, or null if spans are exported elsewhere. */
+    public static String recentSpansJson() {
+        return exporter instanceof InMemorySpanExporter memory ? memory.toJson() : null;
+    }
+}
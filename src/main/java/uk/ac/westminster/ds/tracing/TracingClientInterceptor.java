@@ -0,0 +1,29 @@
+package uk.ac.westminster.ds.tracing;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+/** Sends the current span, if sampled, as the {@code traceparent} of outgoing calls. */
+public class TracingClientInterceptor implements ClientInterceptor {
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions,
+                                                               Channel next) {
+        Span span = Tracing.current();
+        if (!span.isSampled()) return next.newCall(method, callOptions);
+
+        return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                headers.put(Tracing.TRACEPARENT, span.traceParent());
+                super.start(responseListener, headers);
+            }
+        };
+    }
+}
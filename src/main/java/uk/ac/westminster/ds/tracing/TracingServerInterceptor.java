@@ -0,0 +1,37 @@
+package uk.ac.westminster.ds.tracing;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Gives each sampled call a span, from the call arriving to its status being sent, that is
+ * current while the service handles it. Calls with a {@code traceparent} join the caller's
+ * trace; calls without one start a trace at the sample rate.
+ */
+public class TracingServerInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        Span span = Tracing.continueTrace(headers.get(Tracing.TRACEPARENT),
+                call.getMethodDescriptor().getBareMethodName());
+        if (!span.isSampled()) return next.startCall(call, headers);
+
+        ServerCall<ReqT, RespT> traced = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                span.set("status", status.getCode());
+                span.end();
+                super.close(status, trailers);
+            }
+        };
+        return Contexts.interceptCall(Tracing.withSpan(Context.current(), span), traced, headers, next);
+    }
+}
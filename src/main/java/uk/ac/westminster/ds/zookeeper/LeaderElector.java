@@ -2,58 +2,330 @@ package uk.ac.westminster.ds.zookeeper;
 
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
-public class LeaderElector {
+/**
+ * ZooKeeper leader election over ephemeral sequential znodes. The replica with the lowest znode
+ * leads; every other replica watches only the znode just below its own, so a departure wakes
+ * exactly one replica instead of the whole group.
+ * <p>
+ * The leader's term is its znode's sequence number plus one. Sequence numbers only grow, so
+ * each new leader has a higher term than the last; it goes on every replication batch so followers can refuse a
+ * leader that has been replaced.
+ * <p>
+ * If the session expires this replica steps down, opens a new session and enrolls again. All
+ * election work runs on one thread, which is also where the leadership callback is invoked.
+ * <p>
+ * A crashed leader's znode only goes when its session expires. With
+ * {@link #takeOverFromSilentLeader} the replica next in line removes it sooner, once the leader
+ * has stopped sending heartbeats; a leader whose znode was removed steps down and enrolls again.
+ */
+public class LeaderElector implements AutoCloseable {
 
-    private final ZooKeeper zk;
+    private static final Logger logger = LoggerFactory.getLogger(LeaderElector.class);
+
+    private static final String NODE_PREFIX = "replica-";
+    private static final long RETRY_MS = 200;
+
+    private final String zkAddress;
+    private final int sessionTimeoutMs;
     private final String electionPath;
     private final String replicaId;
+    private final String address;
+
+    private final ScheduledExecutorService events = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "leader-election");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile ZooKeeper zk;
+    private volatile boolean closed;
+
+    // Written on the election thread only
     private String myNodePath;
+    private volatile boolean leader;
+    private volatile long term;
+    private volatile String leaderAddress;
+    private volatile long vacancyDetectedNanos;
 
     private Consumer<Boolean> onLeadershipChange = isLeader -> {};
 
-    public LeaderElector(ZooKeeper zk, String electionPath, String replicaId) {
-        this.zk = zk;
+    /**
+     * @param address host:port clients can reach this replica on; stored in the election znode
+     *                ({@code replicaId@address}) so followers can point clients at the leader
+     */
+    public LeaderElector(String zkAddress, int sessionTimeoutMs, String electionPath, String replicaId, String address)
+            throws IOException, InterruptedException {
+        this.zkAddress = zkAddress;
+        this.sessionTimeoutMs = sessionTimeoutMs;
         this.electionPath = electionPath;
         this.replicaId = replicaId;
+        this.address = address;
+        this.zk = ZkConnector.connect(zkAddress, sessionTimeoutMs, this::onSessionEvent);
     }
 
+    /** Called on the election thread, only when this replica's role actually changes. */
     public void setOnLeadershipChange(Consumer<Boolean> handler) {
         this.onLeadershipChange = handler;
     }
 
-    public void startElection() throws Exception {
+    /** True if some replica is already enrolled in (and so leading) this election. */
+    public boolean hasCandidates() throws Exception {
         ensurePath(electionPath);
+        return !zk.getChildren(electionPath, false).isEmpty();
+    }
+
+    /** Enrolls this replica and waits for the first outcome. */
+    public void startElection() throws Exception {
+        try {
+            events.submit((Callable<Void>) () -> {
+                enroll();
+                return null;
+            }).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /** Address of the current leader as last seen by this replica, or null if unknown. */
+    public String getLeaderAddress() {
+        return leaderAddress;
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /** Term of the current leader as last seen by this replica, 0 before the first election. */
+    public long term() {
+        return term;
+    }
 
-        // Create ephemeral sequential znode
-        String prefix = electionPath + "/replica-";
-        myNodePath = zk.create(prefix,
-                replicaId.getBytes(StandardCharsets.UTF_8),
+    /**
+     * When this replica last saw its predecessor's znode go, from {@link System#nanoTime()};
+     * 0 if it never has. The time from here to taking over is this replica's part of a failover.
+     */
+    public long vacancyDetectedNanos() {
+        return vacancyDetectedNanos;
+    }
+
+    /**
+     * A leader's stream showed {@code newTerm}. Only the replica right behind the old leader is
+     * woken when it goes, so the others refresh the leader's address here.
+     */
+    public void observeTerm(long newTerm) {
+        if (newTerm > term) submit(this::check);
+    }
+
+    /**
+     * A follower has seen {@code newTerm}, newer than ours: another replica leads and our own
+     * view of the election is stale. Step down and enroll again at the back of the queue.
+     */
+    public void deposed(long newTerm) {
+        submit(() -> {
+            if (!leader || newTerm <= term) return;
+            logger.atWarn().addKeyValue("term", term).log("Replaced by the leader of term {}, stepping down", newTerm);
+            setLeader(false, newTerm, null);
+            reenroll();
+        });
+    }
+
+    /**
+     * This replica must not lead, e.g. its log lacks entries another replica holds: step down
+     * and enroll again at the back of the queue, so another replica gets to lead.
+     */
+    public void resign() {
+        submit(() -> {
+            if (!leader) return;
+            logger.atWarn().addKeyValue("term", term).log("Giving up leadership");
+            setLeader(false, term, null);
+            reenroll();
+        });
+    }
+
+    /**
+     * Every {@code periodMs}, if this replica is next in line and {@code leaderSilent} says the
+     * leader of the current term has gone quiet, deletes the leader's znode so this replica takes
+     * over without waiting for the leader's session to expire. A leader that is only cut off from
+     * this replica is fenced by the new term, like one that was paused past its session.
+     */
+    public void takeOverFromSilentLeader(LongPredicate leaderSilent, long periodMs) {
+        events.scheduleWithFixedDelay(() -> removeSilentLeader(leaderSilent), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leaves the election. Closing the session removes our znode at once, so the next replica
+     * takes over without waiting for the session to time out.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        events.shutdownNow();
+        events.awaitTermination(1, TimeUnit.SECONDS);
+        zk.close();
+    }
+
+    private void enroll() throws Exception {
+        vacancyDetectedNanos = 0;
+        ensurePath(electionPath);
+        myNodePath = zk.create(electionPath + "/" + NODE_PREFIX,
+                (replicaId + "@" + address).getBytes(StandardCharsets.UTF_8),
                 ZooDefs.Ids.OPEN_ACL_UNSAFE,
                 CreateMode.EPHEMERAL_SEQUENTIAL);
+        logger.atInfo().addKeyValue("node", myNodePath).log("Enrolled in leader election");
+        check();
+    }
 
-        electLeader();
+    private void reenroll() throws Exception {
+        if (myNodePath != null) {
+            try {
+                zk.delete(myNodePath, -1);
+            } catch (KeeperException.NoNodeException ignored) {
+            }
+            myNodePath = null;
+        }
+        enroll();
     }
 
-    private void electLeader() throws Exception {
-        List<String> children = zk.getChildren(electionPath, watchedEvent -> {
-            // Re-run election if membership changes
-            try { electLeader(); } catch (Exception e) { System.err.println("Election error: " + e); }
-        });
+    private void check() throws Exception {
+        while (!closed && myNodePath != null) {
+            List<String> children = zk.getChildren(electionPath, false);
+            Collections.sort(children);
+            String me = myNodePath.substring(electionPath.length() + 1);
+            int i = children.indexOf(me);
+
+            if (i < 0) {
+                // Our znode was removed while the session lives on (e.g. by hand)
+                setLeader(false, term, null);
+                enroll();
+                return;
+            }
+            String leaderChild = children.get(0);
+            if (i == 0) {
+                // Removed by the replica behind us if we stop sending heartbeats
+                if (zk.exists(myNodePath, this::onOwnNodeEvent) == null) continue;
+                setLeader(true, termOf(leaderChild), address);
+                return;
+            }
+
+            // Watch only the replica just ahead of us; if it has already gone, look again
+            String predecessor = electionPath + "/" + children.get(i - 1);
+            if (zk.exists(predecessor, this::onPredecessorEvent) == null) continue;
+            try {
+                setLeader(false, termOf(leaderChild), addressOf(electionPath + "/" + leaderChild));
+                vacancyDetectedNanos = 0; // whoever went, it did not make us leader
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                // The leader just went away; look again for the next one
+            }
+        }
+    }
+
+    private void setLeader(boolean now, long newTerm, String newLeaderAddress) {
+        term = newTerm;
+        leaderAddress = newLeaderAddress;
+        if (leader != now) {
+            leader = now;
+            onLeadershipChange.accept(now);
+        }
+    }
+
+    private void onPredecessorEvent(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.None) return; // session state; see onSessionEvent
+        if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+            vacancyDetectedNanos = System.nanoTime();
+        }
+        submit(this::check);
+    }
 
-        if (children.isEmpty()) return;
+    private void onOwnNodeEvent(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.NodeDeleted) submit(this::check);
+    }
+
+    private void removeSilentLeader(LongPredicate leaderSilent) {
+        if (closed || leader || myNodePath == null || !leaderSilent.test(term)) return;
+        try {
+            List<String> children = zk.getChildren(electionPath, false);
+            Collections.sort(children);
+            // Only the replica watching the leader acts, so the others wait for it to take over
+            if (children.indexOf(myNodePath.substring(electionPath.length() + 1)) != 1) return;
+            String leaderNode = electionPath + "/" + children.get(0);
+            logger.atWarn().addKeyValue("term", term).log("Leader has gone silent, removing its znode {}", leaderNode);
+            zk.delete(leaderNode, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // Already gone; our predecessor watch takes it from here
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warn("Could not remove the silent leader's znode: {}", e.getMessage());
+        }
+    }
+
+    private void onSessionEvent(WatchedEvent event) {
+        if (event.getState() == Watcher.Event.KeeperState.Expired && !closed) {
+            submit(this::recoverSession);
+        }
+    }
+
+    /** Our znode went with the expired session: step down, open a new session and enroll again. */
+    private void recoverSession() throws Exception {
+        logger.warn("ZooKeeper session expired, stepping down and re-enrolling");
+        setLeader(false, term, null);
+        myNodePath = null;
+        zk.close();
+        zk = ZkConnector.connect(zkAddress, sessionTimeoutMs, this::onSessionEvent);
+        enroll();
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /** Runs {@code task} on the election thread, retrying shortly if ZooKeeper is unreachable. */
+    private void submit(Task task) {
+        try {
+            events.execute(() -> {
+                if (closed) return;
+                try {
+                    task.run();
+                } catch (KeeperException.SessionExpiredException e) {
+                    // The session watcher re-enrolls
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    logger.warn("Election error, retrying: {}", e.getMessage());
+                    events.schedule(() -> submit(task), RETRY_MS, TimeUnit.MILLISECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
 
-        Collections.sort(children);
-        String leaderChild = children.get(0);
-        String leaderPath = electionPath + "/" + leaderChild;
+    /** Term of the replica enrolled as {@code child} if it leads; starts at 1 so 0 can mean none yet. */
+    private static long termOf(String child) {
+        return Long.parseLong(child.substring(NODE_PREFIX.length())) + 1;
+    }
 
-        boolean iAmLeader = myNodePath.equals(leaderPath);
-        onLeadershipChange.accept(iAmLeader);
+    private String addressOf(String nodePath) throws Exception {
+        String data = new String(zk.getData(nodePath, false, null), StandardCharsets.UTF_8);
+        int at = data.indexOf('@');
+        return at < 0 ? null : data.substring(at + 1);
     }
 
     private void ensurePath(String path) throws Exception {
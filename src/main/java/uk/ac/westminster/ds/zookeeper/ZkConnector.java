@@ -10,6 +10,15 @@ import java.util.concurrent.CountDownLatch;
 public class ZkConnector {
 
     public static ZooKeeper connect(String zkAddress, int sessionTimeoutMs) throws IOException, InterruptedException {
+        return connect(zkAddress, sessionTimeoutMs, event -> { });
+    }
+
+    /**
+     * @param sessionEvents also told about every later change of the session's state
+     *                      (disconnected, reconnected, expired)
+     */
+    public static ZooKeeper connect(String zkAddress, int sessionTimeoutMs, Watcher sessionEvents)
+            throws IOException, InterruptedException {
         CountDownLatch connectedSignal = new CountDownLatch(1);
 
         ZooKeeper zk = new ZooKeeper(zkAddress, sessionTimeoutMs, new Watcher() {
@@ -18,10 +27,16 @@ public class ZkConnector {
                 if (event.getState() == Event.KeeperState.SyncConnected) {
                     connectedSignal.countDown();
                 }
+                sessionEvents.process(event);
             }
         });
 
-        connectedSignal.await();
+        try {
+            connectedSignal.await();
+        } catch (InterruptedException e) {
+            zk.close();
+            throw e;
+        }
         return zk;
     }
 }
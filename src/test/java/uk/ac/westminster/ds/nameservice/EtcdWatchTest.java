@@ -0,0 +1,133 @@
+package uk.ac.westminster.ds.nameservice;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** {@link EtcdClient#watchPrefix} across dropped streams and compaction. */
+class EtcdWatchTest {
+
+    private FakeEtcd etcd;
+    private EtcdClient client;
+    private Closeable watch;
+
+    /** Keeps a copy of the watched keys, as the routing caches do. */
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+    private final List<Map<String, String>> resyncs = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        etcd = new FakeEtcd();
+        client = new EtcdClient(etcd.address());
+        client.put("svc/a", "1");
+        cache.putAll(client.getPrefix("svc/"));
+        watch = client.watchPrefix("svc/", new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                cache.put(key, value);
+            }
+
+            @Override
+            public void onDelete(String key) {
+                cache.remove(key);
+            }
+
+            @Override
+            public void onResync(Map<String, String> current) {
+                resyncs.add(current);
+                cache.keySet().retainAll(current.keySet());
+                cache.putAll(current);
+            }
+        });
+        awaitWatching(cache, "svc/b", "2");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        watch.close();
+        etcd.close();
+    }
+
+    @Test
+    void replaysChangesMadeWhileTheStreamWasDown() throws Exception {
+        etcd.dropWatches();
+        etcd.delete("svc/a");
+        etcd.put("svc/c", "3");
+        etcd.put("other", "x");
+
+        await(() -> cache.equals(Map.of("svc/b", "2", "svc/c", "3")));
+        assertTrue(resyncs.isEmpty());
+    }
+
+    @Test
+    void rereadsThePrefixWhenTheMissedChangesWereCompacted() throws Exception {
+        etcd.dropWatches();
+        etcd.delete("svc/a");
+        etcd.put("svc/c", "3");
+        etcd.compact();
+
+        await(() -> !resyncs.isEmpty());
+        assertEquals(Map.of("svc/b", "2", "svc/c", "3"), resyncs.get(0));
+        assertEquals(Map.of("svc/b", "2", "svc/c", "3"), cache);
+
+        // Watching resumes after the revision that was read
+        client.put("svc/d", "4");
+        await(() -> "4".equals(cache.get("svc/d")));
+        assertEquals(1, resyncs.size());
+    }
+
+    @Test
+    void listenersWithoutResyncGetTheCurrentValuesAsPuts() throws Exception {
+        Map<String, String> seen = new ConcurrentHashMap<>();
+        try (Closeable other = client.watchPrefix("svc/", new EtcdClient.WatchListener() {
+            @Override
+            public void onPut(String key, String value) {
+                seen.put(key, value);
+            }
+
+            @Override
+            public void onDelete(String key) {
+                seen.remove(key);
+            }
+        })) {
+            awaitWatching(seen, "svc/b", "20");
+
+            etcd.dropWatches();
+            etcd.put("svc/a", "10");
+            etcd.compact();
+
+            await(() -> "10".equals(seen.get("svc/a")));
+        }
+    }
+
+    /** Puts {@code key} until the watch reports it, as the watch only sees changes once it is open. */
+    private void awaitWatching(Map<String, String> seen, String key, String value) throws InterruptedException {
+        await(() -> {
+            try {
+                client.put(key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return value.equals(seen.get(key));
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("condition not met in 5000 ms");
+            Thread.sleep(10);
+        }
+    }
+}
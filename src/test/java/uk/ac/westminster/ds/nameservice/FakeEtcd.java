@@ -0,0 +1,268 @@
+package uk.ac.westminster.ds.nameservice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory stand-in for the parts of etcd's v3 JSON gateway that {@link EtcdClient} uses:
+ * put, range, compare-and-put transactions on {@code mod_revision}, leases without expiry,
+ * watches with {@code start_revision}, and compaction. Listens on an ephemeral local port.
+ */
+public final class FakeEtcd implements AutoCloseable {
+
+    private record Value(String value, long modRevision, long lease) {
+    }
+
+    private record Watcher(String from, String to, OutputStream out, HttpExchange exchange) {
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-etcd");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    private final TreeMap<String, Value> kv = new TreeMap<>();
+    private final List<JSONObject> history = new ArrayList<>(); // events with their "revision"
+    private final Map<Long, Long> leases = new HashMap<>();      // id -> TTL
+    private long revision = 1;
+    private long compacted;                                      // history up to this is gone
+    private long nextLease = 1000;
+
+    private final List<Watcher> watchers = new CopyOnWriteArrayList<>();
+
+    public FakeEtcd() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/v3/kv/put", ex -> {
+            JSONObject req = body(ex);
+            synchronized (this) {
+                put(decode(req.getString("key")), decode(req.getString("value")), req.optLong("lease", 0));
+            }
+            reply(ex, new JSONObject().put("header", header()));
+        });
+        server.createContext("/v3/kv/range", ex -> {
+            JSONObject req = body(ex);
+            String key = decode(req.getString("key"));
+            JSONObject res;
+            synchronized (this) {
+                JSONArray kvs = new JSONArray();
+                Map<String, Value> hits = req.has("range_end")
+                        ? kv.subMap(key, decode(req.getString("range_end")))
+                        : kv.containsKey(key) ? Map.of(key, kv.get(key)) : Map.of();
+                hits.forEach((k, v) -> kvs.put(keyValue(k, v)));
+                res = new JSONObject().put("header", header());
+                if (!kvs.isEmpty()) res.put("kvs", kvs).put("count", String.valueOf(kvs.length()));
+            }
+            reply(ex, res);
+        });
+        server.createContext("/v3/kv/txn", ex -> {
+            JSONObject req = body(ex);
+            boolean succeeded;
+            synchronized (this) {
+                succeeded = true;
+                for (Object c : array(req, "compare")) {
+                    JSONObject compare = (JSONObject) c;
+                    Value current = kv.get(decode(compare.getString("key")));
+                    long modRevision = current == null ? 0 : current.modRevision();
+                    if (!"MOD".equals(compare.getString("target")) || !"EQUAL".equals(compare.getString("result"))) {
+                        throw new IllegalArgumentException("unsupported compare " + compare);
+                    }
+                    succeeded &= modRevision == compare.getLong("mod_revision");
+                }
+                for (Object o : array(req, succeeded ? "success" : "failure")) {
+                    JSONObject put = ((JSONObject) o).getJSONObject("request_put");
+                    put(decode(put.getString("key")), decode(put.getString("value")), put.optLong("lease", 0));
+                }
+            }
+            JSONObject res = new JSONObject().put("header", header());
+            if (succeeded) res.put("succeeded", true);
+            reply(ex, res);
+        });
+        server.createContext("/v3/lease/grant", ex -> {
+            JSONObject req = body(ex);
+            long id;
+            synchronized (this) {
+                id = nextLease++;
+                leases.put(id, req.getLong("TTL"));
+            }
+            reply(ex, new JSONObject().put("header", header()).put("ID", String.valueOf(id)).put("TTL", req.getLong("TTL")));
+        });
+        server.createContext("/v3/lease/keepalive", ex -> {
+            long id = body(ex).getLong("ID");
+            JSONObject result = new JSONObject().put("ID", String.valueOf(id));
+            synchronized (this) {
+                if (leases.containsKey(id)) result.put("TTL", String.valueOf(leases.get(id)));
+            }
+            reply(ex, new JSONObject().put("result", result));
+        });
+        server.createContext("/v3/lease/revoke", ex -> {
+            long id = body(ex).getLong("ID");
+            synchronized (this) {
+                leases.remove(id);
+                for (Map.Entry<String, Value> e : new ArrayList<>(kv.entrySet())) {
+                    if (e.getValue().lease() == id) delete(e.getKey());
+                }
+            }
+            reply(ex, new JSONObject().put("header", header()));
+        });
+        server.createContext("/v3/watch", this::watch);
+        server.start();
+    }
+
+    /** Base URL to hand to {@link EtcdClient}. */
+    public String address() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public synchronized String value(String key) {
+        Value v = kv.get(key);
+        return v == null ? null : v.value();
+    }
+
+    /** A write made behind the clients' backs, e.g. by another process. */
+    public synchronized void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    public synchronized void delete(String key) {
+        if (kv.remove(key) == null) return;
+        event("DELETE", key, null);
+    }
+
+    /** Discards the history up to the current revision; watches from before it are refused. */
+    public synchronized void compact() {
+        compacted = revision;
+        history.clear();
+    }
+
+    /** Ends every open watch stream, as a restart of etcd would. */
+    public void dropWatches() {
+        for (Watcher w : watchers) {
+            watchers.remove(w);
+            w.exchange().close();
+        }
+    }
+
+    @Override
+    public void close() {
+        dropWatches();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void put(String key, String value, long lease) {
+        kv.put(key, new Value(value, revision + 1, lease));
+        event("PUT", key, value);
+    }
+
+    private void event(String type, String key, String value) {
+        revision++;
+        JSONObject kvJson = new JSONObject().put("key", encode(key)).put("mod_revision", String.valueOf(revision));
+        if (value != null) kvJson.put("value", encode(value));
+        JSONObject event = new JSONObject().put("kv", kvJson);
+        if (type.equals("DELETE")) event.put("type", "DELETE"); // the gateway omits the default PUT
+        history.add(new JSONObject().put("revision", revision).put("event", event));
+        for (Watcher w : watchers) {
+            send(w, List.of(event));
+        }
+    }
+
+    private void watch(HttpExchange ex) throws IOException {
+        JSONObject create = body(ex).getJSONObject("create_request");
+        ex.sendResponseHeaders(200, 0);
+        Watcher w = new Watcher(decode(create.getString("key")), decode(create.getString("range_end")),
+                ex.getResponseBody(), ex);
+        synchronized (this) {
+            write(w, new JSONObject().put("result", new JSONObject().put("header", header()).put("created", true)));
+            long start = create.optLong("start_revision", 0);
+            if (start > 0 && start <= compacted) {
+                write(w, new JSONObject().put("result", new JSONObject().put("header", header())
+                        .put("compact_revision", String.valueOf(compacted)).put("canceled", true)));
+                return;
+            }
+            if (start > 0) {
+                List<JSONObject> missed = new ArrayList<>();
+                for (JSONObject h : history) {
+                    if (h.getLong("revision") >= start) missed.add(h.getJSONObject("event"));
+                }
+                send(w, missed);
+            }
+            watchers.add(w);
+        }
+    }
+
+    private void send(Watcher w, List<JSONObject> events) {
+        JSONArray matching = new JSONArray();
+        for (JSONObject event : events) {
+            String key = decode(event.getJSONObject("kv").getString("key"));
+            if (key.compareTo(w.from()) >= 0 && key.compareTo(w.to()) < 0) matching.put(event);
+        }
+        if (matching.isEmpty()) return;
+        write(w, new JSONObject().put("result", new JSONObject().put("header", header()).put("events", matching)));
+    }
+
+    private void write(Watcher w, JSONObject message) {
+        try {
+            w.out().write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            w.out().flush();
+        } catch (IOException e) {
+            watchers.remove(w);
+        }
+    }
+
+    private JSONObject header() {
+        return new JSONObject().put("revision", String.valueOf(revision));
+    }
+
+    private static JSONObject keyValue(String key, Value v) {
+        return new JSONObject()
+                .put("key", encode(key))
+                .put("value", encode(v.value()))
+                .put("mod_revision", String.valueOf(v.modRevision()));
+    }
+
+    private static JSONArray array(JSONObject o, String key) {
+        JSONArray a = o.optJSONArray(key);
+        return a == null ? new JSONArray() : a;
+    }
+
+    private static JSONObject body(HttpExchange ex) throws IOException {
+        return new JSONObject(new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    private static void reply(HttpExchange ex, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String encode(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8);
+    }
+}
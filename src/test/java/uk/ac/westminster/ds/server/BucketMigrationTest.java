@@ -0,0 +1,208 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.AmountResponse;
+import uk.ac.westminster.ds.ewallet.grpc.MigrateBucketResponse;
+import uk.ac.westminster.ds.nameservice.FakeEtcd;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Moving a bucket from partition 0 (replica 1) to partition 1 (replica 2). */
+class BucketMigrationTest {
+
+    @TempDir
+    Path dir;
+
+    private final PartitionMap map = PartitionMap.initial(List.of(List.of(1), List.of(2)));
+    private FakeEtcd etcd;
+    private TestReplica source;
+    private TestReplica dest;
+    private int bucket;
+    private final List<String> accounts = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        etcd = new FakeEtcd();
+        etcd.put(PartitionMap.ETCD_KEY, map.toJson());
+        etcd.put("WalletService/p1", NameServiceClient.buildServerDetailsEntry("127.0.0.1", 2, "grpc"));
+
+        source = new TestReplica(dir, 1, List.of(1), map, 0, etcd.address()).serve().lead(1);
+        dest = new TestReplica(dir, 2, List.of(2), map, 1, etcd.address()).serve().lead(1);
+
+        bucket = map.bucketsOf(0).get(0);
+        for (int i = 0; accounts.size() < 5; i++) {
+            if (PartitionMap.bucketOf("acct-" + i) == bucket) accounts.add("acct-" + i);
+        }
+        for (String id : accounts) {
+            source.store.createAccount(id);
+            source.store.deposit(id, 10);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        source.close();
+        dest.close();
+        etcd.close();
+    }
+
+    @Test
+    void movesTheAccountsAndFlipsTheMap() {
+        MigrateBucketResponse r = source.migrator.migrate(bucket, 1);
+
+        assertTrue(r.getOk(), r.getMessage());
+        assertEquals(accounts.size(), r.getAccountsMoved());
+        for (String id : accounts) {
+            assertEquals(10, dest.store.getBalance(id));
+            assertNull(source.store.getBalance(id));
+        }
+        PartitionMap stored = PartitionMap.fromJson(etcd.value(PartitionMap.ETCD_KEY));
+        assertEquals(1, stored.ownerOf(bucket));
+        assertEquals(1, source.ownership.map().ownerOf(bucket));
+        assertEquals(1, dest.ownership.map().ownerOf(bucket));
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> source.client().deposit(deposit(accounts.get(0))));
+        assertEquals("WRONG_PARTITION", e.getStatus().getDescription());
+        assertEquals(11, dest.client().deposit(deposit(accounts.get(0))).getBalance());
+    }
+
+    @Test
+    void everyWriteMadeDuringTheCopyArrives() throws Exception {
+        // Enough accounts for the copy to go through rounds of re-sends before it freezes
+        for (int i = 0; accounts.size() < 500; i++) {
+            String id = "busy-" + i;
+            if (PartitionMap.bucketOf(id) != bucket) continue;
+            accounts.add(id);
+            source.store.createAccount(id);
+            source.store.deposit(id, 10);
+        }
+        Map<String, AtomicLong> acked = new ConcurrentHashMap<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<CompletableFuture<Void>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            writers.add(CompletableFuture.runAsync(() -> {
+                while (!stop.get()) {
+                    String id = accounts.get(ThreadLocalRandom.current().nextInt(accounts.size()));
+                    try {
+                        source.client().deposit(deposit(id));
+                        acked.computeIfAbsent(id, k -> new AtomicLong()).incrementAndGet();
+                    } catch (StatusRuntimeException e) {
+                        if (!"WRONG_PARTITION".equals(e.getStatus().getDescription())) throw e;
+                    }
+                }
+            }));
+        }
+
+        MigrateBucketResponse r;
+        try {
+            Thread.sleep(50);
+            r = source.migrator.migrate(bucket, 1);
+        } finally {
+            stop.set(true);
+        }
+        CompletableFuture.allOf(writers.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+        assertTrue(r.getOk(), r.getMessage());
+        for (String id : accounts) {
+            long deposits = acked.containsKey(id) ? acked.get(id).get() : 0;
+            assertEquals(10 + deposits, dest.store.getBalance(id), id);
+        }
+    }
+
+    @Test
+    void writesToAFrozenBucketWaitAndThenFollowTheFlip() throws Exception {
+        source.ownership.startTracking(bucket);
+        source.ownership.freeze();
+        CompletableFuture<AmountResponse> write = CompletableFuture.supplyAsync(() -> source.client().deposit(deposit(accounts.get(0))));
+
+        Thread.sleep(200);
+        assertFalse(write.isDone(), "a write to a frozen bucket must wait");
+
+        source.ownership.install(map.withOwner(bucket, 1));
+        source.ownership.finish();
+
+        Exception e = assertThrows(Exception.class, () -> write.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StatusRuntimeException.class, e.getCause());
+        assertEquals("WRONG_PARTITION", ((StatusRuntimeException) e.getCause()).getStatus().getDescription());
+        assertEquals(10, source.store.getBalance(accounts.get(0)));
+    }
+
+    @Test
+    void writesAfterAFailedMigrationStayHere() throws Exception {
+        source.ownership.startTracking(bucket);
+        source.ownership.freeze();
+        CompletableFuture<AmountResponse> write = CompletableFuture.supplyAsync(() -> source.client().deposit(deposit(accounts.get(0))));
+        Thread.sleep(100);
+
+        source.ownership.finish();
+
+        assertEquals(11, write.get(5, TimeUnit.SECONDS).getBalance());
+    }
+
+    @Test
+    void onlyTheLeaderMigrates() {
+        source.stepDown();
+
+        MigrateBucketResponse r = source.migrator.migrate(bucket, 1);
+
+        assertFalse(r.getOk());
+        assertEquals("NOT_LEADER", r.getMessage());
+        assertEquals(0, PartitionMap.fromJson(etcd.value(PartitionMap.ETCD_KEY)).ownerOf(bucket));
+        assertEquals(10, source.store.getBalance(accounts.get(0)));
+    }
+
+    @Test
+    void aConcurrentMapChangeIsNotOverwritten() {
+        // Someone else moved the bucket to a third partition after this leader read its map
+        PartitionMap elsewhere = map.withReplicaGroup(2, List.of(3)).withOwner(bucket, 2);
+        etcd.put(PartitionMap.ETCD_KEY, elsewhere.toJson());
+
+        MigrateBucketResponse r = source.migrator.migrate(bucket, 1);
+
+        assertFalse(r.getOk());
+        assertTrue(r.getMessage().contains("changed owner"), r.getMessage());
+        assertEquals(2, PartitionMap.fromJson(etcd.value(PartitionMap.ETCD_KEY)).ownerOf(bucket));
+    }
+
+    @Test
+    void concurrentUpdatesAreRetriedOnTheNewMap() throws Exception {
+        NameServiceClient ns = new NameServiceClient(etcd.address());
+        PartitionMap added = map.withReplicaGroup(2, List.of(3));
+        boolean[] raced = {false};
+
+        PartitionMap result = PartitionMap.update(ns.getEtcdClient(), current -> {
+            if (!raced[0]) {
+                raced[0] = true;
+                etcd.put(PartitionMap.ETCD_KEY, added.toJson()); // lands between our read and our write
+            }
+            return current.withOwner(bucket, 1);
+        });
+
+        PartitionMap stored = PartitionMap.fromJson(etcd.value(PartitionMap.ETCD_KEY));
+        assertEquals(result.version(), stored.version());
+        assertEquals(1, stored.ownerOf(bucket));
+        assertTrue(stored.partitions().containsKey(2), "the concurrent change must survive");
+    }
+
+    private static AmountRequest deposit(String id) {
+        return AmountRequest.newBuilder().setAccountId(id).setAmount(1).build();
+    }
+}
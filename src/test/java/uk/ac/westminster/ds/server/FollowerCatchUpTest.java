@@ -0,0 +1,199 @@
+package uk.ac.westminster.ds.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A follower that missed entries, or holds entries from a replaced leader, ending up with the
+ * leader's log; a follower refusing a leader that lacks its entries, and a new leader fetching
+ * them first; and a follower noticing that its leader has stopped.
+ */
+class FollowerCatchUpTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<TestReplica> replicas = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (TestReplica r : replicas) r.close();
+    }
+
+    @Test
+    void aFollowerThatWasDownCatchesUpFromTheLog() throws Exception {
+        List<Integer> group = List.of(1, 2, 3);
+        TestReplica leader = replica(1, group).serve().lead(1);
+        TestReplica follower = replica(2, group).serve();
+        TestReplica late = replica(3, group); // down while the leader takes writes
+
+        // The leader reconnects to the follower after a back-off
+        append(leader, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+        TestReplica.await(() -> leader.replicator.isReplicated(1), 5000);
+        for (int i = 0; i < 20; i++) {
+            leader.client().deposit(AmountRequest.newBuilder().setAccountId("a").setAmount(1).build());
+        }
+
+        late.serve();
+        TestReplica.await(() -> late.log.lastSeq() == leader.log.lastSeq(), 5000);
+
+        assertEquals(20, late.store.getBalance("a"));
+        assertEquals(20, follower.store.getBalance("a"));
+        assertEquals(leader.log.termAt(leader.log.lastSeq()), late.log.termAt(late.log.lastSeq()));
+    }
+
+    @Test
+    void entriesFromAReplacedLeaderAreDroppedAndUndone() throws Exception {
+        List<Integer> group = List.of(1, 2);
+        TestReplica leader = replica(1, group);
+        TestReplica follower = replica(2, group);
+
+        // Replica 2 led term 1 on its own and wrote entries that never reached a quorum
+        follower.log.setTerm(1);
+        append(follower, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("ghost")));
+        append(follower, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("ghost").setAmount(5)));
+
+        // Replica 1 leads term 2 and writes other entries at the same seqs
+        leader.serve().lead(2);
+        append(leader, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+        append(leader, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("a").setAmount(7)));
+        append(leader, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("a").setAmount(1)));
+
+        follower.serve();
+        TestReplica.await(() -> leader.replicator.isReplicated(leader.log.lastSeq()), 5000);
+
+        assertNull(follower.store.getBalance("ghost"));
+        assertEquals(8, follower.store.getBalance("a"));
+        assertEquals(leader.log.lastSeq(), follower.log.lastSeq());
+        assertEquals(0, follower.replication.lag());
+    }
+
+    @Test
+    void aLongerLogFromAReplacedLeaderIsDroppedAndUndone() throws Exception {
+        List<Integer> group = List.of(1, 2);
+        TestReplica leader = replica(1, group);
+        TestReplica follower = replica(2, group);
+
+        // Replica 2 led term 1 on its own and wrote more entries than replica 1 does in term 2
+        follower.log.setTerm(1);
+        append(follower, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("ghost")));
+        append(follower, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("ghost").setAmount(5)));
+        append(follower, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("ghost").setAmount(1)));
+
+        leader.serve().lead(2);
+        append(leader, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+        append(leader, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("a").setAmount(7)));
+
+        follower.serve();
+        TestReplica.await(() -> leader.replicator.isReplicated(leader.log.lastSeq()), 5000);
+
+        assertNull(follower.store.getBalance("ghost"));
+        assertEquals(7, follower.store.getBalance("a"));
+        assertEquals(2, follower.log.lastSeq());
+    }
+
+    @Test
+    void aFollowerAheadOfTheLeaderKeepsItsEntries() throws Exception {
+        List<Integer> group = List.of(1, 2);
+        TestReplica leader = replica(1, group);
+        TestReplica follower = replica(2, group);
+
+        // Replica 2 led term 1: its first entry reached replica 1, the next two did not
+        follower.log.setTerm(1);
+        append(follower, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+        LogEntry shared = follower.log.read(1, 1, 0).get(0);
+        leader.applier.apply(shared);
+        leader.log.appendReplicated(shared);
+        append(follower, LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId("a").setAmount(5)));
+        append(follower, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("b")));
+
+        AtomicBoolean refused = new AtomicBoolean();
+        leader.replicator.setOnFollowerAhead(() -> refused.set(true));
+        follower.serve();
+        leader.serve().lead(2);
+
+        TestReplica.await(refused::get, 5000);
+        assertEquals(3, follower.log.lastSeq());
+        assertEquals(1, follower.log.termAt(3));
+        assertEquals(5, follower.store.getBalance("a"));
+        assertEquals(0, follower.store.getBalance("b"));
+        assertFalse(leader.replicator.isReplicated(1), "the refusing follower does not count towards the quorum");
+    }
+
+    @Test
+    void aNewLeaderFetchesAcknowledgedEntriesItMissed() throws Exception {
+        List<Integer> group = List.of(1, 2, 3);
+        TestReplica third = replica(3, group).serve();
+        TestReplica first = replica(1, group).serve().lead(1);
+        TestReplica second = replica(2, group); // down while replicas 1 and 3 acknowledge writes
+
+        first.client().createAccount(CreateAccountRequest.newBuilder().setAccountId("a").build());
+        assertEquals(5, first.client().deposit(AmountRequest.newBuilder().setAccountId("a").setAmount(5).build()).getBalance());
+        TestReplica.await(() -> third.log.lastSeq() == first.log.lastSeq(), 5000);
+        first.stepDown();
+        first.stopServing();
+
+        second.serve();
+        assertTrue(second.takeOver(2));
+        assertEquals(5, second.store.getBalance("a"));
+        assertEquals(first.log.lastSeq(), second.log.lastSeq());
+        assertEquals(1, second.log.termAt(second.log.lastSeq()));
+
+        assertEquals(6, second.client().deposit(AmountRequest.newBuilder().setAccountId("a").setAmount(1).build()).getBalance());
+        TestReplica.await(() -> third.log.lastSeq() == second.log.lastSeq(), 5000);
+        assertEquals(6, third.store.getBalance("a"));
+    }
+
+    @Test
+    void aLeaderThatCannotReachAQuorumDoesNotLead() throws Exception {
+        List<Integer> group = List.of(1, 2, 3);
+        TestReplica lonely = replica(1, group).serve();
+        replica(2, group); // down
+        replica(3, group); // down
+
+        assertFalse(lonely.takeOver(1));
+        assertFalse(lonely.isLeader.get());
+    }
+
+    @Test
+    void aLeaderThatStopsIsNoticedWithinTheTimeout() throws Exception {
+        List<Integer> group = List.of(1, 2);
+        TestReplica leader = replica(1, group).serve().lead(1);
+        TestReplica follower = replica(2, group).serve();
+        append(leader, LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+        TestReplica.await(() -> leader.replicator.isReplicated(1), 5000);
+
+        // Idle, the leader still sends heartbeats
+        Thread.sleep(500);
+        assertFalse(follower.replication.leaderSilent(1, 300));
+        assertFalse(follower.replication.leaderSilent(2, 300), "no contact yet with the leader of term 2");
+
+        long stopped = System.currentTimeMillis();
+        leader.stepDown();
+        TestReplica.await(() -> follower.replication.leaderSilent(1, 300), 5000);
+        assertTrue(System.currentTimeMillis() - stopped < 1000);
+    }
+
+    private TestReplica replica(int port, List<Integer> group) throws Exception {
+        TestReplica r = new TestReplica(dir, port, group);
+        replicas.add(r);
+        return r;
+    }
+
+    /** Applies and logs {@code entry} as a leader does. */
+    private static void append(TestReplica r, LogEntry.Builder entry) {
+        r.applier.apply(entry.build());
+        r.log.append(entry);
+    }
+}
@@ -0,0 +1,77 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.MultiBalanceRequest;
+import uk.ac.westminster.ds.ewallet.grpc.MultiBalanceResponse;
+import uk.ac.westminster.ds.ewallet.grpc.ReadConsistency;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** multiGetBalance answers under the same freshness and ownership rules as getBalance. */
+class MultiGetBalanceTest {
+
+    @TempDir
+    Path dir;
+
+    private final PartitionMap map = PartitionMap.initial(List.of(List.of(1), List.of(2)));
+    private TestReplica follower;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // A follower of partition 0 that has never heard from a leader
+        follower = new TestReplica(dir, 1, List.of(1), map).serve();
+        follower.store.createAccount(ownedBy(0));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        follower.close();
+    }
+
+    @Test
+    void leaderReadsAreRedirected() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> read(ReadConsistency.LEADER, 0, ownedBy(0)));
+        assertEquals("NOT_LEADER", e.getStatus().getDescription());
+    }
+
+    @Test
+    void boundedReadsAreRefusedWhenTheLagIsUnknown() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> read(ReadConsistency.BOUNDED, 100, ownedBy(0)));
+        assertEquals("STALE_READ", e.getStatus().getDescription());
+    }
+
+    @Test
+    void anyReadsAreAnswered() {
+        MultiBalanceResponse r = read(ReadConsistency.ANY, 0, ownedBy(0));
+        assertTrue(r.getBalances(0).getFound());
+    }
+
+    @Test
+    void aBatchWithAnAccountOfAnotherPartitionIsRejected() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                () -> read(ReadConsistency.ANY, 0, ownedBy(0), ownedBy(1)));
+        assertEquals("WRONG_PARTITION", e.getStatus().getDescription());
+    }
+
+    private MultiBalanceResponse read(ReadConsistency consistency, long maxLag, String... ids) {
+        return follower.client().multiGetBalance(MultiBalanceRequest.newBuilder()
+                .addAllAccountIds(List.of(ids))
+                .setConsistency(consistency)
+                .setMaxLag(maxLag)
+                .build());
+    }
+
+    private String ownedBy(int partition) {
+        for (int i = 0; ; i++) {
+            if (map.partitionOf("acct-" + i) == partition) return "acct-" + i;
+        }
+    }
+}
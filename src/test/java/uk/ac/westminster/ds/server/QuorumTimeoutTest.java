@@ -0,0 +1,104 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.*;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Writes that miss the quorum deadline must not be reported as successful. */
+class QuorumTimeoutTest {
+
+    @TempDir
+    Path dir;
+
+    private TestReplica leader;
+    private TestReplica follower;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        List<Integer> group = List.of(1, 2);
+        leader = new TestReplica(dir, 1, group).serve().lead(1);
+        follower = new TestReplica(dir, 2, group); // not reachable until serve()
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        leader.close();
+        follower.close();
+    }
+
+    @Test
+    void awaitQuorumReturnsFalseAfterTheDeadline() {
+        long seq = leader.log.append(LogEntry.newBuilder()
+                .setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("a")));
+
+        long start = System.currentTimeMillis();
+        assertFalse(leader.replicator.awaitQuorum("test", seq));
+        assertTrue(System.currentTimeMillis() - start >= TestReplica.QUORUM_DEADLINE_MS);
+        assertFalse(leader.replicator.isReplicated(seq));
+    }
+
+    @Test
+    void unreplicatedWriteFailsWithOutcomeUnknown() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> leader.client()
+                .createAccount(CreateAccountRequest.newBuilder().setAccountId("a").build()));
+
+        assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+        assertEquals("OUTCOME_UNKNOWN", e.getStatus().getDescription());
+    }
+
+    @Test
+    void unreplicatedBatchFailsWithOutcomeUnknown() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> leader.client()
+                .batchApply(BatchRequest.newBuilder()
+                        .addOperations(Operation.newBuilder().setCreateAccount(
+                                CreateAccountRequest.newBuilder().setAccountId("a")))
+                        .build()));
+
+        assertEquals("OUTCOME_UNKNOWN", e.getStatus().getDescription());
+    }
+
+    @Test
+    void retryOfAnUnknownWriteIsNotAppliedTwice() throws Exception {
+        leader.store.createAccount("a");
+        AmountRequest deposit = AmountRequest.newBuilder()
+                .setAccountId("a").setAmount(100).setRequestId("req-1").build();
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> leader.client().deposit(deposit));
+        assertEquals("OUTCOME_UNKNOWN", e.getStatus().getDescription());
+
+        // While the follower is still down the retry cannot be confirmed either
+        e = assertThrows(StatusRuntimeException.class, () -> leader.client().deposit(deposit));
+        assertEquals("OUTCOME_UNKNOWN", e.getStatus().getDescription());
+
+        follower.serve();
+        TestReplica.await(() -> leader.replicator.isReplicated(leader.log.lastSeq()), 5000);
+
+        AmountResponse retried = leader.client().deposit(deposit);
+        assertTrue(retried.getOk());
+        assertEquals(100, retried.getBalance());
+        assertEquals(100, leader.store.getBalance("a"));
+    }
+
+    @Test
+    void writesSucceedOnceTheFollowerIsBack() throws Exception {
+        follower.serve();
+        // The leader reconnects to the follower after a back-off
+        long seq = leader.log.append(LogEntry.newBuilder()
+                .setCreateAccount(CreateAccountRequest.newBuilder().setAccountId("first")));
+        TestReplica.await(() -> leader.replicator.isReplicated(seq), 5000);
+
+        CreateAccountResponse r = leader.client().createAccount(CreateAccountRequest.newBuilder().setAccountId("a").build());
+
+        assertTrue(r.getCreated());
+        assertNotNull(follower.store.getBalance("a"));
+    }
+}
@@ -0,0 +1,99 @@
+package uk.ac.westminster.ds.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.AmountResponse;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A client retrying a write against the follower that took over after the leader applied it
+ * gets the original response, and the write is not applied again.
+ */
+class RetryAfterFailoverTest {
+
+    private static final List<Integer> GROUP = List.of(1, 2, 3);
+
+    @TempDir
+    Path dir;
+
+    private TestReplica first;
+    private TestReplica second;
+    private TestReplica third;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        second = new TestReplica(dir, 2, GROUP).serve();
+        third = new TestReplica(dir, 3, GROUP).serve();
+        first = new TestReplica(dir, 1, GROUP).serve().lead(1);
+
+        first.client().createAccount(CreateAccountRequest.newBuilder().setAccountId("a").build());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        first.close();
+        second.close();
+        third.close();
+    }
+
+    @Test
+    void aRetryOnTheNewLeaderGetsTheOriginalResponse() throws Exception {
+        AmountRequest request = deposit("r1", 5);
+        AmountResponse original = first.client().deposit(request);
+        assertEquals(5, original.getBalance());
+
+        failOver();
+        second.client().deposit(deposit("r2", 1));
+
+        assertEquals(original, second.client().deposit(request));
+        assertEquals(6, second.store.getBalance("a"));
+    }
+
+    @Test
+    void retriesOfWritesCommittedInOneBatchAreEachAnsweredOnce() throws Exception {
+        // Sent together, so the leader's write batcher groups them into few quorum rounds
+        List<CompletableFuture<AmountResponse>> sent = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            AmountRequest request = deposit("batch-" + i, 1);
+            sent.add(CompletableFuture.supplyAsync(() -> first.client().deposit(request)));
+        }
+        List<AmountResponse> originals = new ArrayList<>();
+        for (CompletableFuture<AmountResponse> f : sent) {
+            originals.add(f.get(5, TimeUnit.SECONDS));
+        }
+
+        failOver();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(originals.get(i), second.client().deposit(deposit("batch-" + i, 1)));
+        }
+        assertEquals(20, second.store.getBalance("a"));
+        assertEquals(20, third.store.getBalance("a"));
+    }
+
+    /** Stops the leader once the others have its log, and makes replica 2 leader of term 2 once replica 3 follows it. */
+    private void failOver() throws InterruptedException {
+        TestReplica.await(() -> first.replicator.isReplicated(first.log.lastSeq())
+                && third.log.lastSeq() == first.log.lastSeq()
+                && second.log.lastSeq() == first.log.lastSeq(), 5000);
+        first.stepDown();
+        first.stopServing();
+        second.lead(2);
+        TestReplica.await(() -> second.replicator.isReplicated(second.log.lastSeq()), 5000);
+    }
+
+    private static AmountRequest deposit(String requestId, double amount) {
+        return AmountRequest.newBuilder().setAccountId("a").setAmount(amount).setRequestId(requestId).build();
+    }
+}
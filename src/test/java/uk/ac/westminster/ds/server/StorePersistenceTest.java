@@ -0,0 +1,112 @@
+package uk.ac.westminster.ds.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.LogEntry;
+import uk.ac.westminster.ds.store.AccountStore;
+import uk.ac.westminster.ds.store.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Recovery of the store from snapshots and the WAL. */
+class StorePersistenceTest {
+
+    @TempDir
+    Path dir;
+
+    private AccountStore store;
+    private ReplicationLog log;
+    private StorePersistence persistence;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (persistence != null) persistence.close();
+    }
+
+    @Test
+    void replaysTheWalOnRestart() throws IOException {
+        open();
+        append(create("a"));
+        append(deposit("a", 25));
+        append(deposit("a", 5));
+
+        reopen();
+
+        assertEquals(30, store.getBalance("a"));
+        assertEquals(3, log.lastSeq());
+    }
+
+    @Test
+    void replaysOnlyWhatASnapshotDoesNotCover() throws IOException {
+        open();
+        append(create("a"));
+        append(deposit("a", 25));
+        persistence.snapshot();
+        append(deposit("a", 5));
+
+        reopen();
+
+        assertEquals(30, store.getBalance("a"));
+        assertEquals(3, log.lastSeq());
+    }
+
+    @Test
+    void snapshotIsTheStateAtItsSeq() throws IOException {
+        open();
+        append(create("a"));
+        append(deposit("a", 25));
+        Path snapshot = persistence.snapshot();
+        append(deposit("a", 5));
+        persistence.close();
+        persistence = null;
+
+        // Only the snapshot: the entry logged after it must not be in it
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(p -> p.getFileName().toString().startsWith("wal-")).toList()) {
+                Files.delete(p);
+            }
+        }
+        open();
+
+        assertTrue(Files.exists(snapshot));
+        assertEquals(25, store.getBalance("a"));
+        assertEquals(2, log.lastSeq());
+    }
+
+    private void open() throws IOException {
+        store = new AccountStore();
+        log = new ReplicationLog(1000);
+        IdempotencyCache dedup = new IdempotencyCache(1000, 600_000);
+        persistence = StorePersistence.open(dir, store, dedup, log, new LogApplier(store, dedup),
+                1, false, true, 1_000_000);
+    }
+
+    private void reopen() throws IOException {
+        persistence.close();
+        open();
+    }
+
+    private void append(LogEntry.Builder entry) {
+        try (AccountStore.Locked ignored = store.lock(LogApplier.accounts(entry.build()))) {
+            new LogApplier(store, new IdempotencyCache(10, 1000)).apply(entry.build());
+            log.append(entry);
+        }
+        assertTrue(persistence.awaitDurable());
+    }
+
+    private static LogEntry.Builder create(String account) {
+        return LogEntry.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setAccountId(account));
+    }
+
+    private static LogEntry.Builder deposit(String account, double amount) {
+        return LogEntry.newBuilder().setDeposit(AmountRequest.newBuilder().setAccountId(account).setAmount(amount));
+    }
+}
@@ -0,0 +1,167 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.util.TransmitStatusRuntimeExceptionInterceptor;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.store.AccountStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * One replica wired up as {@link WalletServer} does, over in-process gRPC and without
+ * ZooKeeper or etcd. The replica only becomes reachable once {@link #serve()} is called, so
+ * tests can take followers down and bring them back.
+ */
+final class TestReplica implements AutoCloseable {
+
+    static final long QUORUM_DEADLINE_MS = 300;
+
+    final int port;
+    final Path dir;
+    final List<Integer> group;
+    final ReplicationChannels channels;
+    final AtomicBoolean isLeader = new AtomicBoolean();
+    final NameServiceClient nameService;
+
+    AccountStore store;
+    ReplicationLog log;
+    IdempotencyCache dedup;
+    LogApplier applier;
+    StorePersistence persistence;
+    PartitionOwnership ownership;
+    QuorumReplicator replicator;
+    WriteBatcher writes;
+    ReplicationServiceImpl replication;
+    LeaderCatchUp catchUp;
+    TransactionCoordinator transactions;
+    WalletServiceImpl wallet;
+    BucketMigrator migrator;
+    private Server server;
+    private ManagedChannel clientChannel;
+
+    TestReplica(Path root, int port, List<Integer> group) throws IOException {
+        this(root, port, group, PartitionMap.initial(List.of(group)));
+    }
+
+    TestReplica(Path root, int port, List<Integer> group, PartitionMap map) throws IOException {
+        this(root, port, group, map, 0, "http://127.0.0.1:1");
+    }
+
+    /** A replica of partition {@code partitionId} that looks up other partitions in the etcd at {@code etcdAddress}. */
+    TestReplica(Path root, int port, List<Integer> group, PartitionMap map, int partitionId, String etcdAddress)
+            throws IOException {
+        this.port = port;
+        this.dir = root.resolve("r" + port);
+        this.group = group;
+        this.channels = channels();
+        this.nameService = new NameServiceClient(etcdAddress);
+        open(map, partitionId);
+    }
+
+    static ReplicationChannels channels() {
+        return new ReplicationChannels(p -> InProcessChannelBuilder.forName(name(p)).build());
+    }
+
+    static String name(int port) {
+        return "test-replica-" + port;
+    }
+
+    /** (Re)builds the replica's state from its data directory, as a restart would. */
+    private void open(PartitionMap map, int partitionId) throws IOException {
+        store = new AccountStore();
+        log = new ReplicationLog(10_000);
+        dedup = new IdempotencyCache(10_000, 600_000);
+        applier = new LogApplier(store, dedup);
+        persistence = StorePersistence.open(dir, store, dedup, log, applier, 1, false, true, 1_000_000);
+        ownership = new PartitionOwnership(partitionId, map);
+        replicator = new QuorumReplicator(channels, log, persistence, port, group,
+                QuorumReplicator.majority(group.size()), QUORUM_DEADLINE_MS, 64, 1000);
+        writes = new WriteBatcher(store, ownership, log, persistence, replicator, 100, 64);
+        writes.start();
+        replication = new ReplicationServiceImpl(store, log, applier, persistence, 1000);
+        catchUp = new LeaderCatchUp(channels, replication, log, persistence, port, group,
+                QuorumReplicator.majority(group.size()), QUORUM_DEADLINE_MS, 64);
+        transactions = new TransactionCoordinator(store, log, persistence, replicator, ownership, channels,
+                nameService, "WalletService", isLeader, 60_000);
+        wallet = new WalletServiceImpl(store, isLeader, () -> null, replication::lag, ownership,
+                log, replicator, persistence, transactions, dedup, writes);
+        migrator = new BucketMigrator(store, log, persistence, replicator, ownership, channels,
+                nameService, "WalletService", isLeader);
+    }
+
+    TestReplica serve() throws IOException {
+        server = InProcessServerBuilder.forName(name(port))
+                .addService(ServerInterceptors.intercept(wallet, TransmitStatusRuntimeExceptionInterceptor.instance()))
+                .addService(replication)
+                .addService(new MigrationServiceImpl(migrator, ownership))
+                .build()
+                .start();
+        return this;
+    }
+
+    void stopServing() throws InterruptedException {
+        if (server != null) server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server = null;
+    }
+
+    /** Makes this replica the leader of {@code term} and starts shipping its log. */
+    TestReplica lead(long term) {
+        log.setTerm(term);
+        isLeader.set(true);
+        replication.observeTerm(term);
+        replicator.start(term);
+        return this;
+    }
+
+    /**
+     * Catches up from the other replicas and leads {@code term} as a newly elected replica does.
+     *
+     * @return false if this replica must not lead
+     */
+    boolean takeOver(long term) {
+        replication.observeTerm(term);
+        if (!catchUp.run(term)) return false;
+        lead(term);
+        return true;
+    }
+
+    void stepDown() {
+        isLeader.set(false);
+        replicator.stop();
+    }
+
+    WalletServiceGrpc.WalletServiceBlockingStub client() {
+        if (clientChannel == null) clientChannel = InProcessChannelBuilder.forName(name(port)).build();
+        return WalletServiceGrpc.newBlockingStub(clientChannel);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (clientChannel != null) clientChannel.shutdownNow();
+        replicator.stop();
+        writes.close();
+        transactions.close();
+        channels.close();
+        stopServing();
+        persistence.close();
+    }
+
+    static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("condition not met in " + timeoutMs + " ms");
+            Thread.sleep(10);
+        }
+    }
+}
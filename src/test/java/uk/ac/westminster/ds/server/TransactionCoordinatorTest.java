@@ -0,0 +1,197 @@
+package uk.ac.westminster.ds.server;
+
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.westminster.ds.ewallet.grpc.AmountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.CreateAccountRequest;
+import uk.ac.westminster.ds.ewallet.grpc.PrepareResponse;
+import uk.ac.westminster.ds.ewallet.grpc.TransferRequest;
+import uk.ac.westminster.ds.ewallet.grpc.TxState;
+import uk.ac.westminster.ds.ewallet.grpc.TxStatusRequest;
+import uk.ac.westminster.ds.ewallet.grpc.WalletServiceGrpc;
+import uk.ac.westminster.ds.nameservice.FakeEtcd;
+import uk.ac.westminster.ds.nameservice.NameServiceClient;
+import uk.ac.westminster.ds.nameservice.PartitionMap;
+import uk.ac.westminster.ds.store.AccountStore;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Transfers from partition 0 (replica 1, the coordinator) to partition 1 (replica 2). */
+class TransactionCoordinatorTest {
+
+    private static final long TX_TIMEOUT_MS = 200;
+
+    @TempDir
+    Path dir;
+
+    private final PartitionMap map = PartitionMap.initial(List.of(List.of(1), List.of(2)));
+    private FakeEtcd etcd;
+    private TestReplica coordinator;
+    private TestReplica participant;
+    private String from;
+    private String to;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        etcd = new FakeEtcd();
+        etcd.put("WalletService/p0", NameServiceClient.buildServerDetailsEntry("127.0.0.1", 1, "grpc"));
+        etcd.put("WalletService/p1", NameServiceClient.buildServerDetailsEntry("127.0.0.1", 2, "grpc"));
+
+        coordinator = new TestReplica(dir, 1, List.of(1), map, 0, etcd.address()).serve().lead(1);
+        participant = new TestReplica(dir, 2, List.of(2), map, 1, etcd.address()).serve().lead(1);
+
+        from = accountOn(0);
+        to = accountOn(1);
+        coordinator.store.createAccount(from);
+        coordinator.store.deposit(from, 10);
+        participant.store.createAccount(to);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        coordinator.close();
+        participant.close();
+        etcd.close();
+    }
+
+    @Test
+    void transferCommitsOnBothPartitions() throws Exception {
+        TestReplica.await(() -> coordinator.replicator.isReplicated(coordinator.log.lastSeq()), 5000);
+
+        assertTrue(coordinator.client().transfer(transfer().build()).getOk());
+
+        assertEquals(6, coordinator.store.getBalance(from));
+        assertEquals(4, participant.store.getBalance(to));
+        assertTrue(coordinator.store.decidedTxs().isEmpty(), "the decision is forgotten once delivered");
+    }
+
+    @Test
+    void anUnknownTransactionIsReportedAborted() {
+        TxStatusRequest request = TxStatusRequest.newBuilder().setTxId("0-never-started").build();
+
+        assertEquals(TxState.ABORTED, coordinator.client().txStatus(request).getState());
+    }
+
+    @Test
+    void anUndecidedReservationIsAbortedByTheSweep() throws Exception {
+        // The coordinator reserved the debit and then failed before deciding
+        String txId = "0-crashed";
+        assertTrue(coordinator.store.prepareTx(txId,
+                new AccountStore.TxHold(from, AccountStore.toMinor(4), true, 1, to)));
+        assertEquals(TxState.PENDING, coordinator.transactions.status(txId));
+
+        TransactionCoordinator sweeping = sweeping(coordinator);
+        try {
+            TestReplica.await(() -> coordinator.store.preparedTx(txId) == null, 5000);
+        } finally {
+            sweeping.close();
+        }
+
+        assertEquals(TxState.ABORTED, coordinator.transactions.status(txId));
+        assertEquals(10, coordinator.store.getBalance(from));
+        assertEquals(0, coordinator.store.reservedMinor(from));
+    }
+
+    @Test
+    void aCreditTheCoordinatorDoesNotKnowIsAborted() throws Exception {
+        // Prepared here, but the coordinator has no record of the transaction (presumed abort)
+        TransferRequest request = transfer().setTxId("0-forgotten").setCoordinatorPartition(0).build();
+        PrepareResponse prepared = participant.transactions.prepare(request);
+        assertTrue(prepared.getOk(), prepared.getMessage());
+
+        TransactionCoordinator sweeping = sweeping(participant);
+        try {
+            TestReplica.await(() -> participant.store.preparedTx("0-forgotten") == null, 5000);
+        } finally {
+            sweeping.close();
+        }
+
+        assertEquals(0, participant.store.getBalance(to));
+    }
+
+    @Test
+    void aCommitIsPendingUntilAQuorumHasIt() throws Exception {
+        // Partition 0 on two replicas; its follower stops while partition 1 prepares the credit,
+        // so the commit decision is logged on the leader alone
+        TestReplica follower = new TestReplica(dir, 12, List.of(11, 12), map, 0, etcd.address()).serve();
+        TestReplica leader = new TestReplica(dir, 11, List.of(11, 12), map, 0, etcd.address()).serve().lead(1);
+        String[] txId = new String[1];
+        Server stalling = InProcessServerBuilder.forName(TestReplica.name(9))
+                .addService(new WalletServiceGrpc.WalletServiceImplBase() {
+                    @Override
+                    public void prepareTransfer(TransferRequest request, StreamObserver<PrepareResponse> responseObserver) {
+                        txId[0] = request.getTxId();
+                        try {
+                            follower.stopServing();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        responseObserver.onNext(PrepareResponse.newBuilder().setOk(true).setMessage("READY").build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        etcd.put("WalletService/p1", NameServiceClient.buildServerDetailsEntry("127.0.0.1", 9, "grpc"));
+        try {
+            leader.client().createAccount(CreateAccountRequest.newBuilder().setAccountId(from).build());
+            leader.client().deposit(AmountRequest.newBuilder().setAccountId(from).setAmount(10).build());
+
+            StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                    () -> leader.client().transfer(transfer().build()));
+            assertEquals("OUTCOME_UNKNOWN", e.getStatus().getDescription());
+            assertTrue(leader.store.decidedTx(txId[0]).committed());
+            assertEquals(TxState.PENDING, leader.transactions.status(txId[0]));
+
+            follower.serve();
+            TestReplica.await(() -> leader.replicator.isReplicated(leader.log.lastSeq()), 5000);
+            assertEquals(TxState.COMMITTED, leader.transactions.status(txId[0]));
+        } finally {
+            stalling.shutdownNow();
+            leader.close();
+            follower.close();
+        }
+    }
+
+    @Test
+    void aDecisionOnAMigratingBucketIsCopiedAgain() {
+        TransferRequest request = transfer().setTxId("0-moving").setCoordinatorPartition(0).build();
+        assertTrue(participant.transactions.prepare(request).getOk());
+
+        // The bucket's copy has started since the credit was prepared
+        participant.ownership.startTracking(PartitionMap.bucketOf(to));
+        assertTrue(participant.transactions.finish(request, true));
+
+        assertEquals(List.of(to), participant.ownership.drainDirty());
+        assertEquals(4, participant.store.getBalance(to));
+    }
+
+    private TransferRequest.Builder transfer() {
+        return TransferRequest.newBuilder().setFromAccount(from).setToAccount(to).setAmount(4);
+    }
+
+    /** A coordinator on {@code replica}'s state whose sweep runs after {@link #TX_TIMEOUT_MS}. */
+    private static TransactionCoordinator sweeping(TestReplica replica) {
+        TransactionCoordinator tx = new TransactionCoordinator(replica.store, replica.log, replica.persistence,
+                replica.replicator, replica.ownership, replica.channels, replica.nameService, "WalletService",
+                replica.isLeader, TX_TIMEOUT_MS);
+        tx.start();
+        return tx;
+    }
+
+    private String accountOn(int partition) {
+        for (int i = 0; ; i++) {
+            String id = "p" + partition + "-" + i;
+            if (map.ownerOf(PartitionMap.bucketOf(id)) == partition) return id;
+        }
+    }
+}
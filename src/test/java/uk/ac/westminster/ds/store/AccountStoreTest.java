@@ -0,0 +1,107 @@
+package uk.ac.westminster.ds.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Hot accounts, whose credits are kept apart from the table balance until read or spent. */
+class AccountStoreTest {
+
+    private final AccountStore store = new AccountStore(new HashMapBalanceTable(), Set.of("merchant"));
+
+    @Test
+    void concurrentCreditsAndDebitsAddUp() throws Exception {
+        store.createAccount("merchant");
+        store.createAccount("payer");
+        store.depositMinor("payer", 1_000_000);
+
+        AtomicLong withdrawn = new AtomicLong();
+        List<CompletableFuture<Void>> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            threads.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    switch ((thread + i) % 4) {
+                        case 0, 1 -> assertTrue(store.depositMinor("merchant", 5));
+                        case 2 -> assertTrue(store.transferMinor("payer", "merchant", 3));
+                        default -> {
+                            if (store.withdrawMinor("merchant", 7)) withdrawn.addAndGet(7);
+                        }
+                    }
+                }
+            }));
+        }
+        CompletableFuture.allOf(threads.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+
+        // 8 threads x 2000 ops: half deposits of 5, a quarter transfers of 3
+        long credited = 8_000 * 5 + 4_000 * 3;
+        assertEquals(credited - withdrawn.get(), store.getBalanceMinor("merchant"));
+        assertEquals(1_000_000 - 4_000 * 3, store.getBalanceMinor("payer"));
+        assertTrue(store.getBalanceMinor("merchant") >= 0);
+    }
+
+    @Test
+    void debitsSpendCreditsNotYetInTheTable() {
+        store.createAccount("merchant");
+        store.depositMinor("merchant", 10);
+
+        assertTrue(store.withdrawMinor("merchant", 10));
+        assertFalse(store.withdrawMinor("merchant", 1));
+        assertEquals(0, store.getBalanceMinor("merchant"));
+    }
+
+    @Test
+    void reservationsLimitWhatDebitsMaySpend() {
+        store.createAccount("merchant");
+        store.depositMinor("merchant", 10);
+        assertTrue(store.prepareTx("tx", new AccountStore.TxHold("merchant", 6, true, 1, "elsewhere")));
+
+        assertFalse(store.withdrawMinor("merchant", 5));
+        assertTrue(store.withdrawMinor("merchant", 4));
+        assertTrue(store.commitTx("tx"));
+        assertEquals(0, store.getBalanceMinor("merchant"));
+    }
+
+    @Test
+    void snapshotsCarryCreditsOnce() throws Exception {
+        store.createAccount("merchant");
+        store.depositMinor("merchant", 10);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (AccountStore.Locked ignored = store.lockAll()) {
+            store.writeSnapshot(new DataOutputStream(bytes));
+        }
+
+        // Reading over a store that has credits of its own replaces them
+        store.depositMinor("merchant", 5);
+        store.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(10, store.getBalanceMinor("merchant"));
+        assertTrue(store.withdrawMinor("merchant", 10));
+        assertEquals(0, store.getBalanceMinor("merchant"));
+    }
+
+    @Test
+    void importedAndRemovedAccountsDropTheirCredits() {
+        store.createAccount("merchant");
+        store.depositMinor("merchant", 10);
+
+        store.importAccountMinor("merchant", 3);
+        assertEquals(3, store.getBalanceMinor("merchant"));
+
+        store.depositMinor("merchant", 4);
+        assertTrue(store.removeAccount("merchant"));
+        store.createAccount("merchant");
+        assertEquals(0, store.getBalanceMinor("merchant"));
+    }
+}
@@ -0,0 +1,107 @@
+package uk.ac.westminster.ds.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysRecordsInOrderAcrossSegments() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1, false)) {
+            wal.append(bytes("a"));
+            wal.append(bytes("b"));
+            assertEquals(2, wal.rollSegment());
+            long position = wal.append(bytes("c"));
+            wal.awaitDurable(position);
+        }
+
+        assertEquals(List.of("a", "b", "c"), replay(1));
+        assertEquals(List.of("c"), replay(2));
+    }
+
+    @Test
+    void replayStopsAtATornTail() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1, false)) {
+            wal.append(bytes("a"));
+            wal.append(bytes("b"));
+        }
+        // A crash half way through the next record: a header claiming more bytes than follow
+        Files.write(segment(1), new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 'x'}, StandardOpenOption.APPEND);
+
+        assertEquals(List.of("a", "b"), replay(1));
+
+        // The next run logs to a fresh segment, which replays after the intact part of the torn one
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1, false)) {
+            wal.append(bytes("c"));
+        }
+        assertEquals(List.of("a", "b", "c"), replay(1));
+    }
+
+    @Test
+    void replayStopsAtACorruptRecord() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1, false)) {
+            wal.append(bytes("a"));
+            wal.append(bytes("b"));
+        }
+        byte[] data = Files.readAllBytes(segment(1));
+        data[data.length - 1] ^= 1; // last byte of "b"
+        Files.write(segment(1), data);
+
+        assertEquals(List.of("a"), replay(1));
+    }
+
+    @Test
+    void appendsAreDurableOnlyOnceFlushed() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 60_000, false)) {
+            long position = wal.append(bytes("a"));
+            assertEquals(List.of(), replay(1));
+
+            wal.flush();
+            wal.awaitDurable(position);
+            assertEquals(List.of("a"), replay(1));
+        }
+    }
+
+    @Test
+    void aFlushThatWaitedForCloseDoesNothing() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 60_000, false);
+        wal.append(bytes("a"));
+        wal.close();
+
+        // As the flusher does when close() held the lock it was waiting for
+        wal.flush();
+        wal.close();
+        assertEquals(List.of("a"), replay(1));
+    }
+
+    private List<String> replay(long fromSegment) throws IOException {
+        List<String> out = new ArrayList<>();
+        WriteAheadLog.replay(dir, fromSegment, r -> out.add(new String(r, StandardCharsets.UTF_8)));
+        return out;
+    }
+
+    private Path segment(long id) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().equals(String.format("wal-%012d.log", id)))
+                    .findFirst().orElseThrow();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}